@@ -0,0 +1,377 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+public class ConnectionBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		/*
+		 * Compares the throughput of the connection modes with many concurrent keep-alive connections.
+		 * Usage: java -cp <server classes>:<bench classes> net.donotturnoff.jhttp.ConnectionBenchmark [connections] [seconds] [mode...]
+		 * The defaults are 10000 connections for 30 seconds each in thread and virtual mode. For each mode, a server is started as a separate process
+		 * (with the same JVM and class path) from a generated config in a temporary directory, so the modes never share a heap or a JIT.
+		 * The clients are a few non-blocking selector threads in this process, so they cost the same whichever mode the server is in.
+		 * Each connection sends one request at a time and sends the next as soon as the response has arrived.
+		 * Only responses to requests sent after the connections are all open and a warm-up period has passed are counted.
+		 */
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		List<String> modes = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : List.of("thread", "virtual");
+		
+		if (modes.contains("virtual") && Runtime.version().feature() < 21) {
+			System.out.println("Virtual threads need Java 21 or later; on this JVM (" + Runtime.version() + ") virtual mode uses platform threads");
+		}
+		for (String mode: modes) {
+			ConnectionBenchmark benchmark = new ConnectionBenchmark(mode, connections, seconds);
+			System.out.println(benchmark.run());
+		}
+	}
+	
+	private final static int port = 8090;
+	private final static int warmup = 5000;
+	private final static int connectTimeout = 60000;
+	private final static int maxConnecting = 500;
+	private final static String path = "/index.html";
+	
+	private final String mode;
+	private final int connections;
+	private final int seconds;
+	private volatile long measureStart;
+	private volatile long measureEnd;
+	
+	public ConnectionBenchmark(String mode, int connections, int seconds) {
+		this.mode = mode;
+		this.connections = connections;
+		this.seconds = seconds;
+		this.measureStart = Long.MAX_VALUE;
+		this.measureEnd = Long.MAX_VALUE;
+	}
+	
+	public String run() throws IOException, InterruptedException {
+		Path dir = createServerDirectory();
+		Process server = startServer(dir);
+		try {
+			
+			/* Split the connections between the client threads and wait until they are all open before starting the clock. */
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			CountDownLatch connected = new CountDownLatch(threads);
+			Client[] clients = new Client[threads];
+			for (int i = 0; i < threads; i++) {
+				clients[i] = new Client(connections / threads + (i < connections % threads ? 1 : 0), connected);
+				clients[i].start();
+			}
+			if (!connected.await(connectTimeout, TimeUnit.MILLISECONDS)) {
+				System.out.println(mode + ": not all connections were open after " + connectTimeout + " ms, measuring anyway");
+			}
+			measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmup);
+			measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+			
+			long requests = 0;
+			long errors = 0;
+			long reconnects = 0;
+			int open = 0;
+			List<long[]> latencies = new ArrayList<>();
+			for (Client client: clients) {
+				client.join();
+				requests += client.requests;
+				errors += client.errors;
+				reconnects += client.reconnects;
+				open += client.openAtEnd;
+				latencies.add(Arrays.copyOf(client.latencies, client.requests));
+			}
+			long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+			return String.format("%s: %d of %d connections open, %d requests in %d s, %.0f requests/s, latency p50 %.2f ms, p99 %.2f ms, max %.2f ms, %d errors, %d reconnects",
+				mode, open, connections, requests, seconds, requests / (double) seconds, percentile(all, 0.5), percentile(all, 0.99), percentile(all, 1), errors, reconnects);
+		} finally {
+			server.destroy();
+			if (!server.waitFor(10, TimeUnit.SECONDS)) {
+				server.destroyForcibly().waitFor();
+			}
+			delete(dir);
+		}
+	}
+	
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path: (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+	
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+	
+	private Path createServerDirectory() throws IOException {
+		/* A small static page, served from the content cache, so the benchmark measures connection handling rather than the disk or PHP. */
+		Path dir = Files.createTempDirectory("jhttp-bench-");
+		Path www = Files.createDirectory(dir.resolve("www"));
+		Files.writeString(www.resolve("index.html"), "<!DOCTYPE html>\n<html><head><title>Benchmark</title></head><body>" + "<p>Benchmark page</p>".repeat(40) + "</body></html>\n");
+		Files.writeString(dir.resolve("jhttp.xml"), String.join("\n",
+			"<?xml version=\"1.0\"?>",
+			"<server>",
+			" <port>" + port + "</port>",
+			" <log>" + dir.resolve("jhttp.log") + "</log>",
+			" <timeout>0</timeout>",
+			" <keepalive>yes</keepalive>",
+			" <keepalivetimeout>" + connectTimeout + "</keepalivetimeout>",
+			" <keepalivemax>0</keepalivemax>",
+			" <mode>" + mode + "</mode>",
+			" <watch>no</watch>",
+			" <host>",
+			"  <hostname>localhost</hostname>",
+			"  <root>" + www + "</root>",
+			"  <default>yes</default>",
+			"  <cache>yes</cache>",
+			" </host>",
+			"</server>",
+			""));
+		return dir;
+	}
+	
+	private Process startServer(Path dir) throws IOException, InterruptedException {
+		/* Start the server and wait until it accepts connections. Its console output goes to a file next to its log. */
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), JHTTP.class.getName())
+			.directory(dir.toFile())
+			.redirectErrorStream(true)
+			.redirectOutput(dir.resolve("console.log").toFile())
+			.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (server.isAlive() && System.currentTimeMillis() < deadline) {
+			try {
+				new Socket("localhost", port).close();
+				return server;
+			} catch (ConnectException e) {
+				Thread.sleep(100);
+			}
+		}
+		server.destroyForcibly();
+		throw new IOException("Server in " + mode + " mode did not start, see " + dir.resolve("console.log"));
+	}
+	
+	private class Client extends Thread {
+		
+		private final int target;
+		private final CountDownLatch connected;
+		private final Selector selector;
+		private final byte[] request;
+		private int open;
+		private int openAtEnd;
+		private int connecting;
+		private int opened;
+		private boolean reported;
+		private int requests;
+		private long[] latencies;
+		private long errors;
+		private long reconnects;
+		
+		public Client(int target, CountDownLatch connected) throws IOException {
+			super("Benchmark client");
+			setDaemon(true);
+			this.target = target;
+			this.connected = connected;
+			this.selector = Selector.open();
+			this.request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			this.latencies = new long[1 << 16];
+		}
+		
+		public void run() {
+			/*
+			 * Opens the connections a batch at a time, so the server's accept backlog doesn't overflow, and then keeps every one of them busy until the end.
+			 * A connection closed by the server (or broken) is replaced, so the number of concurrent connections stays the same.
+			 * The clock starts once every connection has been opened, even if some have been replaced since.
+			 */
+			try {
+				while (System.nanoTime() < measureEnd) {
+					while (open + connecting < target && connecting < maxConnecting) {
+						connect();
+					}
+					if (!reported && opened >= target) {
+						reported = true;
+						connected.countDown();
+					}
+					selector.select(100);
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+				}
+				openAtEnd = open;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key: selector.keys()) {
+					close(key);
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		private void connect() throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			connecting++;
+			if (channel.connect(new InetSocketAddress("localhost", port))) {
+				opened(channel.register(selector, 0, new Exchange()));
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, new Exchange());
+			}
+		}
+		
+		private void opened(SelectionKey key) throws IOException {
+			connecting--;
+			open++;
+			opened++;
+			send(key);
+		}
+		
+		private void handle(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			Exchange exchange = (Exchange) key.attachment();
+			try {
+				if (key.isConnectable()) {
+					channel.finishConnect();
+					opened(key);
+				} else if (key.isWritable()) {
+					write(key);
+				} else if (key.isReadable()) {
+					if (channel.read(exchange.in) < 0) {
+						throw new EOFException();
+					}
+					if (exchange.received()) {
+						long now = System.nanoTime();
+						if (exchange.sent >= measureStart && now <= measureEnd) {
+							record(now - exchange.sent);
+						}
+						if (exchange.close) {
+							reconnects++;
+							close(key);
+						} else {
+							send(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				errors++;
+				close(key);
+			}
+		}
+		
+		private void send(SelectionKey key) throws IOException {
+			Exchange exchange = (Exchange) key.attachment();
+			exchange.reset();
+			exchange.out = ByteBuffer.wrap(request);
+			exchange.sent = System.nanoTime();
+			write(key);
+		}
+		
+		private void write(SelectionKey key) throws IOException {
+			Exchange exchange = (Exchange) key.attachment();
+			((SocketChannel) key.channel()).write(exchange.out);
+			key.interestOps(exchange.out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+		
+		private void record(long latency) {
+			if (requests == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[requests++] = latency;
+		}
+		
+		private void close(SelectionKey key) {
+			/* Closed connections are counted out here, so the main loop opens new ones in their place. */
+			if (key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+				connecting--;
+			} else {
+				open--;
+			}
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				errors++;
+			}
+		}
+	}
+	
+	private static class Exchange {
+		
+		private ByteBuffer out;
+		private final ByteBuffer in;
+		private long sent;
+		private int headerLength;
+		private long contentLength;
+		private boolean close;
+		
+		public Exchange() {
+			this.in = ByteBuffer.allocate(16384);
+		}
+		
+		public void reset() {
+			in.clear();
+			headerLength = -1;
+			contentLength = 0;
+			close = false;
+		}
+		
+		public boolean received() throws IOException {
+			/* Whether the whole response has arrived. The header section is only parsed for the body length and whether the server will close. */
+			if (headerLength < 0) {
+				byte[] data = in.array();
+				for (int i = 3; i < in.position(); i++) {
+					if (data[i - 3] == '\r' && data[i - 2] == '\n' && data[i - 1] == '\r' && data[i] == '\n') {
+						headerLength = i + 1;
+						break;
+					}
+				}
+				if (headerLength < 0) {
+					if (!in.hasRemaining()) {
+						throw new IOException("Response header section too large");
+					}
+					return false;
+				}
+				String header = new String(data, 0, headerLength, StandardCharsets.ISO_8859_1);
+				if (!header.startsWith("HTTP/1.1 200")) {
+					throw new IOException("Unexpected response: " + header.lines().findFirst().orElse(""));
+				}
+				for (String line: header.split("\r\n")) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						String name = line.substring(0, colon).trim();
+						String value = line.substring(colon + 1).trim();
+						if (name.equalsIgnoreCase("Content-Length")) {
+							contentLength = Long.parseLong(value);
+						} else if (name.equalsIgnoreCase("Connection")) {
+							close = value.equalsIgnoreCase("close");
+						}
+					}
+				}
+				if (headerLength + contentLength > in.capacity()) {
+					throw new IOException("Response too large");
+				}
+			}
+			return in.position() >= headerLength + contentLength;
+		}
+	}
+}
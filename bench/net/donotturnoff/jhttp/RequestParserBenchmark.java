@@ -0,0 +1,242 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.*;
+import java.util.regex.*;
+
+public class RequestParserBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		/*
+		 * Compares the time and memory taken to read and parse a request's header section by RequestParser and by the BufferedReader and regex code it replaced.
+		 * Usage: java -cp <server classes>:<bench classes> net.donotturnoff.jhttp.RequestParserBenchmark [rounds] [requests per round]
+		 * Each parser is warmed up for a few rounds (so the JIT has compiled it) before the measured rounds; the best and the median round are reported,
+		 * with the bytes allocated per request by the benchmark thread.
+		 */
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		
+		for (Map.Entry<String, byte[]> sample: samples.entrySet()) {
+			byte[] request = sample.getValue();
+			check(request);
+			System.out.println(sample.getKey() + " (" + request.length + " bytes):");
+			System.out.println("  BufferedReader and regex: " + measure(new LegacyParser(), request, rounds, requests));
+			System.out.println("  RequestParser:            " + measure(new ByteParser(), request, rounds, requests));
+		}
+	}
+	
+	private final static int warmupRounds = 5;
+	private final static Map<String, byte[]> samples = new LinkedHashMap<>();
+	private static volatile int sink;
+	
+	static {
+		samples.put("Minimal request", bytes(
+			"GET / HTTP/1.1",
+			"Host: localhost"));
+		samples.put("Browser request", bytes(
+			"GET /sub/page.html?lang=en&page=2 HTTP/1.1",
+			"Host: localhost:8080",
+			"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0",
+			"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8",
+			"Accept-Language: en-GB,en;q=0.5",
+			"Accept-Encoding: gzip, deflate, br",
+			"Referer: http://localhost:8080/sub/",
+			"Connection: keep-alive",
+			"Cookie: session=0123456789abcdef0123456789abcdef; theme=dark",
+			"Upgrade-Insecure-Requests: 1",
+			"Sec-Fetch-Dest: document",
+			"Sec-Fetch-Mode: navigate",
+			"Sec-Fetch-Site: same-origin",
+			"If-Modified-Since: Tue, 10 Oct 2023 08:00:00 GMT",
+			"If-None-Match: \"5f1a-2c4\""));
+	}
+	
+	private static byte[] bytes(String... lines) {
+		return (String.join("\r\n", lines) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	private interface Parser {
+		/* Parse one request from the given bytes, returning something derived from the result so the work can't be optimised away. */
+		int parse(byte[] request) throws Exception;
+	}
+	
+	private static void check(byte[] request) throws Exception {
+		/* Make sure both parsers understood the sample the same way before timing them. */
+		LegacyParser legacy = new LegacyParser();
+		ByteParser parser = new ByteParser();
+		legacy.parse(request);
+		parser.parse(request);
+		RequestParser result = parser.parser;
+		if (!(legacy.verb.equals(result.getVerb()) && legacy.path.equals(result.getPath()) && legacy.queryString.equals(result.getQueryString())
+				&& legacy.protocol.equals(result.getProtocol()) && legacy.headers.getHeader("Host").equals(result.getHeaders().getHeader("Host")))) {
+			throw new IllegalStateException("The parsers disagree about the request");
+		}
+	}
+	
+	private static String measure(Parser parser, byte[] request, int rounds, int requests) throws Exception {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long[] times = new long[rounds];
+		long allocated = 0;
+		for (int round = -warmupRounds; round < rounds; round++) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			int result = 0;
+			for (int i = 0; i < requests; i++) {
+				result += parser.parse(request);
+			}
+			long time = System.nanoTime() - start;
+			sink += result;
+			if (round >= 0) {
+				times[round] = time;
+				allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+			}
+		}
+		Arrays.sort(times);
+		return String.format("best %.0f ns, median %.0f ns, %d bytes allocated per request",
+			times[0] / (double) requests, times[rounds / 2] / (double) requests, allocated / ((long) rounds * requests));
+	}
+	
+	private static class ByteParser implements Parser {
+		
+		/* The same parser is reused for every request, as a connection reuses it for every request it receives. */
+		private final RequestParser parser;
+		private final ByteBuffer buffer;
+		
+		public ByteParser() {
+			this.parser = new RequestParser(new Config());
+			this.buffer = ByteBuffer.allocate(65536);
+		}
+		
+		public int parse(byte[] request) throws HTTPException {
+			buffer.clear();
+			buffer.put(request).flip();
+			parser.reset();
+			if (!parser.parse(buffer)) {
+				throw new IllegalStateException("Incomplete request");
+			}
+			return parser.getPath().length() + parser.getHeaders().getHeader("Host").length();
+		}
+	}
+	
+	private static class LegacyParser implements Parser {
+		
+		/*
+		 * The reading and parsing done by Request.handle() and Request.parse() before RequestParser, less the request body and the response.
+		 * The log messages are built as they were, but the logger discards them. Like a connection, the parser keeps one reader for every request,
+		 * but the header lines, splits, patterns and URL are all created afresh for each one, as they were.
+		 */
+		private final static Logger log = Logger.getLogger(LegacyParser.class.getName());
+		private final Source source;
+		private final BufferedReader in;
+		private String verb, path, queryString, protocol;
+		private Headers headers;
+		
+		public LegacyParser() {
+			this.source = new Source();
+			this.in = new BufferedReader(new InputStreamReader(source));
+		}
+		
+		public int parse(byte[] request) throws IOException {
+			source.set(request);
+			ArrayList<String> lines = new ArrayList<>(20);
+			StringBuilder requestBuilder = new StringBuilder();
+			int length = 0;
+			String line;
+			do {
+				line = in.readLine();
+			} while (line != null && line.equals(""));
+			while (line != null && !line.equals("")) {
+				if (line.split(":")[0].equals("Content-Length")) {
+					try {
+						length = Integer.parseInt(line.split(":")[1].trim());
+					} catch (NumberFormatException e) {
+						length = 0;
+					}
+				}
+				requestBuilder.append(line).append("\r\n");
+				lines.add(line);
+				line = in.readLine();
+			}
+			String received = requestBuilder.toString();
+			log.log(Level.FINE, "Received request: " + received);
+			
+			verb = "";
+			path = "";
+			protocol = "";
+			headers = new Headers();
+			final String requestLineRegex = "(GET|HEAD|POST|PUT|DELETE|CONNECT|OPTIONS|TRACE|PATCH)\\s+([^?\\s]+)((?:[?&][^&\\s]+)*)\\s+(HTTP/\\d(\\.\\d)?)";
+			final String headerRegex = "([\\w-]+): (.*)";
+			Pattern requestLinePattern = Pattern.compile(requestLineRegex);
+			Pattern headerPattern = Pattern.compile(headerRegex);
+			for (String l: lines) {
+				Matcher requestLineMatcher = requestLinePattern.matcher(l);
+				Matcher headerMatcher = headerPattern.matcher(l);
+				if (headerMatcher.find()) {
+					String[] parts = l.split(":");
+					String key = parts[0].trim();
+					String[] tail = Arrays.copyOfRange(parts, 1, parts.length);
+					String value = String.join(":", tail).trim();
+					headers.setHeader(key, value);
+					log.log(Level.FINER, "Header encountered: " + l);
+				} else if (requestLineMatcher.find()) {
+					String[] parts = l.split(" ");
+					verb = parts[0].trim();
+					String urlString = "http://" + parts[1].trim().replaceAll("/+$", "");
+					try {
+						URL url = new URL(urlString);
+						path = url.getPath();
+						queryString = url.getQuery();
+						if (queryString == null) {
+							queryString = "";
+						}
+					} catch (MalformedURLException e) {
+						path = "";
+						queryString = "";
+					}
+					protocol = parts[2].trim();
+					log.log(Level.FINER, "Request line encountered: " + l);
+				} else {
+					log.log(Level.FINER, "Unexpected header encountered: " + l);
+				}
+			}
+			return path.length() + headers.getHeader("Host").length() + length;
+		}
+	}
+	
+	private static class Source extends InputStream {
+		
+		/* Stands in for a socket's input: each request is only readable once it has been given, so the reader never sees the end of the stream. */
+		private byte[] data;
+		private int position;
+		
+		public void set(byte[] request) {
+			data = request;
+			position = 0;
+		}
+		
+		public int read() {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		public int read(byte[] b, int off, int len) {
+			if (position == data.length) {
+				throw new IllegalStateException("Read past the request");
+			}
+			int count = Math.min(len, data.length - position);
+			System.arraycopy(data, position, b, off, count);
+			position += count;
+			return count;
+		}
+		
+		public int available() {
+			return data.length - position;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.*;
+
+public class BodyDecoder {
+	
+	private final static int maxLineSize = 8192;
+	
+	private enum State {SIZE, DATA, DATA_END, TRAILER, DONE}
+	
+	private final int maxTrailerSize;
+	private final StringBuilder line;
+	private RequestBody body;
+	private boolean chunked;
+	private State state;
+	private long remaining;
+	private int trailerSize;
+	
+	public BodyDecoder(Config cfg) throws NumberFormatException {
+		
+		/*
+		 * An incremental decoder for request bodies, delimited either by Content-Length or by chunked transfer-coding.
+		 * Like the RequestParser, it can be fed bytes as they arrive and resumes where it left off; the decoded bytes are written to a RequestBody.
+		 */
+		this.maxTrailerSize = Integer.parseInt(cfg.get("maxheadersize"));
+		this.line = new StringBuilder();
+		this.state = State.DONE;
+	}
+	
+	public void reset(RequestParser parser, RequestBody body) throws IOException {
+		
+		/*
+		 * Prepare to decode the body of the request whose header section has just been parsed into the given RequestBody.
+		 * If Transfer-Encoding is present it takes precedence; chunked is the only transfer-coding supported.
+		 * A request with both Transfer-Encoding and Content-Length is rejected, as it is a common request smuggling vector.
+		 */
+		Headers headers = parser.getHeaders();
+		String transferEncoding = headers.getHeader("Transfer-Encoding").trim().toLowerCase();
+		this.body = body;
+		line.setLength(0);
+		trailerSize = 0;
+		if (!transferEncoding.equals("")) {
+			if (!headers.getHeader("Content-Length").equals("")) {
+				throw new HTTPException(new Status("400"), "Both Transfer-Encoding and Content-Length given");
+			}
+			if (!transferEncoding.equals("chunked")) {
+				throw new HTTPException(new Status("501"), "Unsupported transfer-coding " + transferEncoding);
+			}
+			chunked = true;
+			state = State.SIZE;
+		} else {
+			chunked = false;
+			remaining = parser.getContentLength();
+			body.checkSize(remaining);
+			state = remaining > 0 ? State.DATA : State.DONE;
+		}
+	}
+	
+	public boolean hasBody() {
+		return state != State.DONE;
+	}
+	
+	public boolean decode(ByteBuffer buffer) throws IOException {
+		
+		/* Consume bytes from a heap buffer up to the end of the body, returning true once it is complete. Bytes after the body are left in the buffer. */
+		while (state != State.DONE && buffer.hasRemaining()) {
+			if (state == State.DATA) {
+				int count = (int) Math.min(remaining, buffer.remaining());
+				body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+				buffer.position(buffer.position() + count);
+				remaining -= count;
+				if (remaining == 0) {
+					state = chunked ? State.DATA_END : State.DONE;
+				}
+			} else if (readLine(buffer)) {
+				endLine();
+			}
+		}
+		if (state == State.DONE) {
+			body.finish();
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean readLine(ByteBuffer buffer) throws HTTPException {
+		while (buffer.hasRemaining()) {
+			char c = (char) (buffer.get() & 0xff);
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return true;
+			}
+			if (line.length() >= maxLineSize) {
+				throw new HTTPException(new Status("400"), "Chunk line too long");
+			}
+			line.append(c);
+		}
+		return false;
+	}
+	
+	private void endLine() throws HTTPException {
+		
+		/*
+		 * Chunked format: each chunk is <size in hex>[;extensions] CRLF <data> CRLF, and the last chunk has size 0 and is followed by optional trailer fields and a blank line.
+		 * Extensions and trailer fields are ignored.
+		 */
+		String text = line.toString();
+		line.setLength(0);
+		switch (state) {
+			case SIZE:
+				int semicolon = text.indexOf(';');
+				remaining = parseChunkSize(semicolon < 0 ? text : text.substring(0, semicolon));
+				body.checkSize(body.getSize() + remaining);
+				state = remaining > 0 ? State.DATA : State.TRAILER;
+				break;
+			case DATA_END:
+				if (!text.isEmpty()) {
+					throw new HTTPException(new Status("400"), "Chunk data too long");
+				}
+				state = State.SIZE;
+				break;
+			case TRAILER:
+				trailerSize += text.length() + 2;
+				if (trailerSize > maxTrailerSize) {
+					throw new HTTPException(new Status("431"), "Trailer section too large");
+				}
+				if (text.isEmpty()) {
+					state = State.DONE;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+	
+	private static long parseChunkSize(String size) throws HTTPException {
+		
+		/*
+		 * The size must be nothing but hex digits. Signs, whitespace and prefixes which a more lenient parser would accept are refused,
+		 * since a proxy in front of the server could read them differently and split the stream into requests in another place (request smuggling).
+		 */
+		if (size.isEmpty() || size.length() > 15) {
+			throw new HTTPException(new Status("400"), "Invalid chunk size");
+		}
+		long length = 0;
+		for (int i = 0; i < size.length(); i++) {
+			char c = size.charAt(i);
+			int digit;
+			if (c >= '0' && c <= '9') {
+				digit = c - '0';
+			} else if (c >= 'a' && c <= 'f') {
+				digit = c - 'a' + 10;
+			} else if (c >= 'A' && c <= 'F') {
+				digit = c - 'A' + 10;
+			} else {
+				throw new HTTPException(new Status("400"), "Invalid chunk size");
+			}
+			length = length * 16 + digit;
+		}
+		return length;
+	}
+	
+	public RequestBody getBody() {
+		return body;
+	}
+	
+	public void discard() {
+		/* Throw away a body which won't be used, e.g. because the connection failed part way through it. */
+		if (body != null) {
+			body.delete();
+		}
+		state = State.DONE;
+	}
+}
@@ -0,0 +1,86 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+
+public class CachedDocument extends Document {
+	
+	private final ByteBuffer buffer;
+	
+	public CachedDocument(JHTTP server, Path path, String type, long lastModified, String etag, byte[] data, ByteBuffer buffer) {
+		this(server, path, type, lastModified, etag, data, buffer, "identity");
+	}
+	
+	public CachedDocument(JHTTP server, Path path, String type, long lastModified, String etag, byte[] data, ByteBuffer buffer, String encoding) {
+		super(server);
+		
+		/* The data array (heap tier) or buffer (mapped tier) is shared with the cache and with other requests, so it must never be modified. */
+		this.path = path;
+		this.type = type;
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.data = data;
+		this.buffer = buffer;
+		this.encoding = encoding;
+	}
+	
+	public Document getVariant(String encoding) {
+		if (encoding.equals(this.encoding)) {
+			return this;
+		}
+		return server.getContentCache().getVariant(this, encoding);
+	}
+	
+	public byte[] getData() {
+		if (data == null) {
+			byte[] copy = new byte[buffer.capacity()];
+			buffer.duplicate().get(copy);
+			return copy;
+		}
+		return data;
+	}
+	
+	public int getLengthInt() {
+		return buffer.capacity();
+	}
+	
+	public String getLength() {
+		return Integer.toString(buffer.capacity());
+	}
+	
+	public long getSize() {
+		return buffer.capacity();
+	}
+	
+	private ByteBuffer slice(long start, long length) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.position((int) start);
+		slice.limit((int) (start + length));
+		return slice;
+	}
+	
+	public void writeRange(OutputStream out, long start, long length) throws IOException {
+		if (data == null) {
+			ByteBuffer source = slice(start, length);
+			byte[] chunk = new byte[8192];
+			while (source.hasRemaining()) {
+				int count = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, count);
+				out.write(chunk, 0, count);
+			}
+		} else {
+			out.write(data, (int) start, (int) length);
+		}
+	}
+	
+	public void sendRange(Connection conn, long start, long length) throws IOException {
+		
+		/* Small heap entries go through the connection's buffered stream with the headers; mapped entries are written from the mapping. */
+		if (data == null) {
+			conn.sendBuffer(slice(start, length));
+		} else {
+			conn.getOutputStream().write(data, (int) start, (int) length);
+		}
+	}
+}
@@ -0,0 +1,571 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+public class ChannelConnection extends Connection {
+	
+	private final static int writeBufferSize = 16384;
+	
+	private final SocketChannel channel;
+	private final EventLoop loop;
+	private final WorkerPool workers;
+	private final int maxPipelined;
+	private final ArrayDeque<Request> pending;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private ByteBuffer writeBuffer;
+	private ByteArrayOutputStream responseBytes;
+	private ArrayDeque<Object> segments;
+	private ArrayDeque<Object> outgoing;
+	private CountDownLatch flushed;
+	private boolean busy;
+	private boolean handling;
+	private boolean writing;
+	private boolean closing;
+	private boolean inputClosed;
+	private boolean failed;
+	private boolean lingering;
+	private boolean bodyCreated;
+	private boolean offloading;
+	private boolean decoding;
+	private long lastActive;
+	
+	public ChannelConnection(JHTTP server, EventLoop loop, SocketChannel channel) throws IOException {
+		super(server, channel.socket());
+		this.channel = channel;
+		this.loop = loop;
+		this.workers = loop.getWorkers();
+		this.maxPipelined = Math.max(1, Integer.parseInt(cfg.get("pipelinemax")));
+		this.pending = new ArrayDeque<>();
+		
+		channel.configureBlocking(false);
+		readBuffer = ByteBuffer.allocate(8192);
+		lastActive = System.currentTimeMillis();
+		
+		log.log(Level.INFO, "Connection accepted from " + getHost());
+	}
+	
+	public void register(Selector selector) throws ClosedChannelException {
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+	
+	private void updateInterest() {
+		
+		/*
+		 * Requests keep being read and parsed while earlier responses are being written, until the limit on pipelined requests is reached.
+		 * Nothing is read while a worker is handling a batch, so the event loop can't close the connection underneath it,
+		 * nor while a request body is waiting for a worker or being written by one.
+		 * Reading stops for good once the client has closed its side or sent a request which couldn't be parsed.
+		 */
+		int ops = 0;
+		if (!inputClosed && !failed && !handling && !offloading && !decoding && pending.size() < maxPipelined) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (writing) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+	
+	public void read() throws IOException {
+		/* Read whatever is available without blocking, growing the buffer if it is full. */
+		if (lingering) {
+			readBuffer.clear();
+			if (channel.read(readBuffer) < 0) {
+				server.close(this);
+			}
+			return;
+		}
+		if (!readBuffer.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+		int count = channel.read(readBuffer);
+		if (count < 0) {
+			
+			/* The client may close its side after sending its last request, so requests which have already arrived are still answered. */
+			log.log(Level.FINE, "Connection closed by client");
+			inputClosed = true;
+			dispatch();
+			return;
+		}
+		lastActive = System.currentTimeMillis();
+		dispatch();
+	}
+	
+	private void dispatch() {
+		readBuffer.flip();
+		process();
+	}
+	
+	private void process() {
+		
+		/*
+		 * Feed newly read bytes to the parser and then to the body decoder, queueing each request once it has been completely received.
+		 * The parser and decoder keep their own copies of what they consume, so consumed bytes are dropped from the buffer; any bytes after the end of a request are kept for the next one.
+		 * Large bodies are spilled to a temporary file by the decoder, so the buffer itself never needs to hold a whole body.
+		 * Anything which touches the disk (creating an upload's body, which checks the target and quota, and writing bodies which don't fit in memory) is done by a worker,
+		 * once the responses before it have been sent; the worker then hands the connection back to here.
+		 * A request which can't be parsed is still queued so that it gets an error response, but nothing after it can be read.
+		 */
+		while (!failed && pending.size() < maxPipelined && (readBuffer.hasRemaining() || parser.isComplete() && !bodyCreated)) {
+			Request next;
+			try {
+				if (!parser.isComplete()) {
+					if (!parser.parse(readBuffer)) {
+						break;
+					}
+					bodyCreated = !parser.getVerb().equals("PUT");
+					if (bodyCreated) {
+						decoder.reset(parser, new RequestBody(server));
+						if (decoder.hasBody() && parser.isExpectingContinue() && !readBuffer.hasRemaining() && !busy && pending.isEmpty()) {
+							
+							/* Nothing else is being written at this point, so the socket's send buffer has room for this short response. */
+							channel.write(ByteBuffer.wrap(continueResponse));
+						}
+					}
+				}
+				if (!bodyCreated || !decoder.getBody().fitsInMemory(readBuffer.remaining())) {
+					if (busy || !pending.isEmpty()) {
+						offloading = true;
+						break;
+					}
+					offload();
+					return;
+				}
+				if (!decoder.decode(readBuffer)) {
+					break;
+				}
+				next = new Request(server, this);
+				next.parse();
+				next.receive(decoder.getBody());
+			} catch (IOException e) {
+				readBuffer.clear().flip();
+				decoder.discard();
+				next = new Request(server, this);
+				next.fail(e);
+				failed = true;
+			}
+			pending.add(next);
+			parser.reset();
+		}
+		readBuffer.compact();
+		
+		if (!busy && !pending.isEmpty()) {
+			startHandling();
+		} else if (!busy && (inputClosed || failed)) {
+			server.close(this);
+		} else {
+			updateInterest();
+		}
+	}
+	
+	private void offload() {
+		
+		/* Run the next step of reading the current request's body on a worker. The read buffer and decoder belong to the worker until it is done. */
+		offloading = false;
+		decoding = true;
+		updateInterest();
+		if (workers.tryExecute(this::decode)) {
+			return;
+		} else if (workers.isBlocking()) {
+			workers.whenAvailable(() -> loop.execute(() -> {
+				if (channel.isOpen()) {
+					offload();
+				} else {
+					decoding = false;
+					decoder.discard();
+				}
+			}));
+		} else {
+			decoding = false;
+			if (bodyCreated) {
+				decoder.discard();
+			}
+			readBuffer.clear();
+			reject();
+		}
+	}
+	
+	private void decode() {
+		
+		/* Run on a worker thread: create the body if it hasn't been yet, then decode what has been read so far. */
+		Request next = null;
+		boolean sendContinue = false;
+		try {
+			if (!bodyCreated) {
+				decoder.reset(parser, createBody());
+				bodyCreated = true;
+				sendContinue = decoder.hasBody() && parser.isExpectingContinue() && !readBuffer.hasRemaining();
+			}
+			if (decoder.decode(readBuffer)) {
+				next = new Request(server, this);
+				next.parse();
+				next.receive(decoder.getBody());
+			}
+		} catch (IOException e) {
+			readBuffer.clear().flip();
+			decoder.discard();
+			next = new Request(server, this);
+			next.fail(e);
+			failed = true;
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Could not read request body", e);
+			decoder.discard();
+			loop.execute(() -> {
+				decoding = false;
+				server.close(this);
+			});
+			return;
+		}
+		Request received = next;
+		boolean continuing = sendContinue;
+		loop.execute(() -> {
+			decoding = false;
+			if (!channel.isOpen()) {
+				decoder.discard();
+				if (received != null) {
+					received.discard();
+				}
+				return;
+			}
+			if (received != null) {
+				pending.add(received);
+				parser.reset();
+			} else if (continuing) {
+				try {
+					channel.write(ByteBuffer.wrap(continueResponse));
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Could not send response", e);
+					server.close(this);
+					return;
+				}
+			}
+			process();
+		});
+	}
+	
+	private void startHandling() {
+		
+		/*
+		 * Hand all the queued requests to a worker as one batch, so that their responses are written together.
+		 * If the workers are all busy and the overload policy is to block, the batch stays queued (with reading paused) until a worker is free.
+		 */
+		ArrayList<Request> batch = new ArrayList<>(pending);
+		busy = true;
+		handling = true;
+		updateInterest();
+		if (workers.tryExecute(() -> handle(batch))) {
+			pending.clear();
+		} else if (workers.isBlocking()) {
+			workers.whenAvailable(() -> loop.execute(() -> {
+				if (channel.isOpen()) {
+					startHandling();
+				}
+			}));
+		} else {
+			pending.clear();
+			handling = false;
+			for (Request r: batch) {
+				r.discard();
+			}
+			reject();
+		}
+	}
+	
+	public void reject() {
+		/*
+		 * Send the pre-rendered 503 from the event loop. Nothing more is read, and once the 503 has been written the connection lingers
+		 * rather than closing straight away, so that unread input doesn't make the kernel reset the connection and destroy the response.
+		 */
+		log.log(Level.WARNING, "Connection rejected: server overloaded");
+		closing = true;
+		failed = true;
+		ArrayDeque<Object> response = new ArrayDeque<>();
+		response.add(ByteBuffer.wrap(server.getOverloadResponse()));
+		startWriting(response);
+	}
+	
+	private void handle(List<Request> batch) {
+		
+		/* 
+		 * Run on a worker thread: pass each parsed request and its decoded body through the normal Request/Response pipeline, in order.
+		 * The responses are collected as one list of segments (bytes and file regions) which the event loop then writes.
+		 * If a response closes the connection, the requests after it are dropped.
+		 */
+		responseBytes = new ByteArrayOutputStream();
+		segments = new ArrayDeque<>();
+		out = responseBytes;
+		int handled = 0;
+		try {
+			for (Request next: batch) {
+				request = next;
+				handled++;
+				request.handle();
+				requestCount++;
+				if (!request.isKeepAlive()) {
+					break;
+				}
+			}
+			endSegment();
+		} catch (RuntimeException e) {
+			
+			/* Files already opened for the responses in this batch will never be written, so they are closed here. */
+			log.log(Level.WARNING, "Could not handle request", e);
+			release(segments);
+			segments.clear();
+			loop.execute(() -> server.close(this));
+			return;
+		} finally {
+			for (Request next: batch.subList(handled, batch.size())) {
+				next.discard();
+			}
+		}
+		ArrayDeque<Object> produced = segments;
+		loop.execute(() -> {
+			handling = false;
+			startWriting(produced);
+		});
+	}
+	
+	public void finishResponse() {
+		/* Responses are collected until the whole batch has been handled and are then written by the event loop. */
+	}
+	
+	public void flushResponse() throws IOException {
+		
+		/*
+		 * Called on the worker thread by streamed responses: hand what has been produced so far to the event loop and wait until it has been written.
+		 * Waiting means a slow client holds back the script producing the response rather than letting its output pile up in memory.
+		 */
+		endSegment();
+		if (segments.isEmpty()) {
+			return;
+		}
+		ArrayDeque<Object> produced = segments;
+		segments = new ArrayDeque<>();
+		CountDownLatch written = new CountDownLatch(1);
+		loop.execute(() -> {
+			flushed = written;
+			if (channel.isOpen()) {
+				startWriting(produced);
+			} else {
+				written.countDown();
+			}
+		});
+		try {
+			int timeout = Integer.parseInt(cfg.get("timeout"));
+			if (timeout <= 0) {
+				written.await();
+			} else if (!written.await(timeout, TimeUnit.MILLISECONDS)) {
+				loop.execute(() -> server.close(this));
+				throw new SocketTimeoutException("Client stopped reading response");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing response");
+		}
+		if (!channel.isOpen()) {
+			throw new IOException("Connection closed while writing response");
+		}
+	}
+	
+	private void endSegment() {
+		if (responseBytes.size() > 0) {
+			segments.add(ByteBuffer.wrap(responseBytes.toByteArray()));
+			responseBytes.reset();
+		}
+	}
+	
+	public void sendBuffer(ByteBuffer buffer) {
+		endSegment();
+		segments.add(buffer);
+	}
+	
+	public void sendFile(Path path, long position, long count) throws IOException {
+		/* The file is opened by the worker but only written by the event loop, which transfers it straight to the socket. */
+		endSegment();
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		segments.add(new FileRegion(file, position, position + count));
+	}
+	
+	private void startWriting(ArrayDeque<Object> produced) {
+		outgoing = produced;
+		if (writeBuffer == null) {
+			writeBuffer = ByteBuffer.allocateDirect(writeBufferSize);
+		}
+		writeBuffer.clear().flip();
+		try {
+			write();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not send response", e);
+			server.close(this);
+		}
+	}
+	
+	public void write() throws IOException {
+		
+		/*
+		 * Write as much of the pending segments as the socket accepts without blocking.
+		 * Heap bytes are copied through the direct buffer, direct buffers are written as they are and file regions are transferred by the kernel.
+		 */
+		while (true) {
+			long written;
+			Object segment = outgoing.peek();
+			if (writeBuffer.hasRemaining()) {
+				written = channel.write(writeBuffer);
+			} else if (segment == null && flushed != null) {
+				
+				/* Part of a streamed response has been written, so the worker can go on producing the rest. */
+				CountDownLatch latch = flushed;
+				flushed = null;
+				writing = false;
+				updateInterest();
+				latch.countDown();
+				return;
+			} else if (segment == null) {
+				finishWriting();
+				return;
+			} else if (segment instanceof FileRegion) {
+				FileRegion region = (FileRegion) segment;
+				if (region.position == region.end) {
+					region.file.close();
+					outgoing.poll();
+					continue;
+				}
+				written = region.file.transferTo(region.position, region.end - region.position, channel);
+				if (written == 0 && region.position >= region.file.size()) {
+					throw new EOFException("File shorter than expected");
+				}
+				region.position += written;
+			} else {
+				ByteBuffer buffer = (ByteBuffer) segment;
+				if (!buffer.hasRemaining()) {
+					outgoing.poll();
+					continue;
+				}
+				if (buffer.isDirect()) {
+					written = channel.write(buffer);
+				} else {
+					ByteBuffer chunk = buffer.duplicate();
+					chunk.limit(chunk.position() + Math.min(writeBuffer.capacity(), chunk.remaining()));
+					writeBuffer.clear();
+					writeBuffer.put(chunk);
+					writeBuffer.flip();
+					buffer.position(chunk.position());
+					continue;
+				}
+			}
+			if (written == 0) {
+				writing = true;
+				updateInterest();
+				return;
+			}
+		}
+	}
+	
+	private void finishWriting() {
+		
+		/* Either go on to the requests which have arrived in the meantime (or wait for more) or close the connection. */
+		busy = false;
+		writing = false;
+		lastActive = System.currentTimeMillis();
+		if (!closing && request.isKeepAlive()) {
+			dispatch();
+		} else if (!inputClosed && (failed || !pending.isEmpty() || readBuffer.position() > 0)) {
+			linger();
+		} else {
+			server.close(this);
+		}
+	}
+	
+	private void linger() {
+		
+		/*
+		 * Closing a socket with unread input makes the kernel reset the connection, which can destroy responses the client hasn't read yet.
+		 * So the sending side is shut down first, and the input is read and discarded until the client closes its side or a short timeout passes.
+		 */
+		lingering = true;
+		for (Request next: pending) {
+			next.discard();
+		}
+		pending.clear();
+		try {
+			channel.shutdownOutput();
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			server.close(this);
+		}
+	}
+	
+	public boolean isExpired(long now) {
+		
+		/* Connections waiting for a request are closed once they have been idle for longer than the applicable timeout. */
+		if (busy || decoding) {
+			return false;
+		}
+		if (lingering) {
+			return now - lastActive > lingerTimeout;
+		}
+		String timeoutKey = requestCount > 0 && !parser.isStarted() ? "keepalivetimeout" : "timeout";
+		try {
+			int timeout = Integer.parseInt(cfg.get(timeoutKey));
+			return timeout > 0 && now - lastActive > timeout;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+	
+	public void setTimeout(String timeout) {
+		/* Timeouts are enforced by the event loop rather than by the socket. */
+	}
+	
+	public void close() {
+		super.close();
+		if (!busy && !decoding) {
+			decoder.discard();
+		}
+		for (Request next: pending) {
+			next.discard();
+		}
+		if (flushed != null) {
+			flushed.countDown();
+		}
+		if (outgoing != null) {
+			release(outgoing);
+		}
+	}
+	
+	private void release(ArrayDeque<Object> unsent) {
+		for (Object segment: unsent) {
+			if (segment instanceof FileRegion) {
+				try {
+					((FileRegion) segment).file.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Could not close file");
+				}
+			}
+		}
+	}
+	
+	private static class FileRegion {
+		
+		private final FileChannel file;
+		private long position;
+		private final long end;
+		
+		public FileRegion(FileChannel file, long position, long end) {
+			this.file = file;
+			this.position = position;
+			this.end = end;
+		}
+	}
+}
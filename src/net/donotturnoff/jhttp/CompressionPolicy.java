@@ -0,0 +1,221 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+
+public class CompressionPolicy {
+	
+	private final static int maxPooledDeflaters = 64;
+	
+	private final String[] includeTypes;
+	private final String[] excludeTypes;
+	private final long minSize;
+	private final int level;
+	private final ConcurrentLinkedQueue<Deflater> rawDeflaters;
+	private final ConcurrentLinkedQueue<Deflater> zlibDeflaters;
+	private final AtomicInteger pooled;
+	
+	public CompressionPolicy(Config cfg) throws IllegalArgumentException {
+		
+		/*
+		 * Bodies are only compressed if their type matches the include list and not the exclude list, and they are at least the minimum size.
+		 * Type lists are comma-separated and may contain wildcards such as text/*.
+		 */
+		includeTypes = splitTypes(cfg.get("compressioninclude"));
+		excludeTypes = splitTypes(cfg.get("compressionexclude"));
+		minSize = Long.parseLong(cfg.get("compressionminsize"));
+		level = Integer.parseInt(cfg.get("compressionlevel"));
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Compression level must be between -1 and 9");
+		}
+		
+		/* Deflaters hold native memory, so a bounded number of them are kept for reuse instead of creating one per response. */
+		rawDeflaters = new ConcurrentLinkedQueue<>();
+		zlibDeflaters = new ConcurrentLinkedQueue<>();
+		pooled = new AtomicInteger();
+	}
+	
+	private static String[] splitTypes(String types) {
+		String[] parts = types.split(",");
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = parts[i].trim().toLowerCase();
+		}
+		return parts;
+	}
+	
+	public String chooseEncoding(String acceptEncoding) {
+		
+		/*
+		 * Choose the supported encoding with the highest quality value in an Accept-Encoding header such as "gzip;q=0.8, deflate, *;q=0".
+		 * Codings which aren't listed take the quality of "*" if it is present. Ties are resolved in favour of gzip.
+		 */
+		double gzip = -1;
+		double deflate = -1;
+		double wildcard = -1;
+		for (String part: acceptEncoding.split(",")) {
+			String[] params = part.split(";");
+			String coding = params[0].trim().toLowerCase();
+			double q = 1;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(param.substring(2).trim());
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			switch (coding) {
+				case "gzip":
+				case "x-gzip":
+					gzip = q;
+					break;
+				case "deflate":
+					deflate = q;
+					break;
+				case "*":
+					wildcard = q;
+					break;
+			}
+		}
+		if (gzip < 0) {
+			gzip = wildcard;
+		}
+		if (deflate < 0) {
+			deflate = wildcard;
+		}
+		
+		if (gzip > 0 && gzip >= deflate) {
+			return "gzip";
+		} else if (deflate > 0) {
+			return "deflate";
+		} else {
+			return "identity";
+		}
+	}
+	
+	public boolean isCompressible(Status status, String type, long size) {
+		
+		/* Responses without a full body (204, 206, 304) are never compressed. Streamed bodies, whose size isn't known (-1), may be. */
+		String code = status.getCode();
+		if (code.equals("204") || code.equals("206") || code.equals("304")) {
+			return false;
+		}
+		if (size >= 0 && size < minSize) {
+			return false;
+		}
+		String mime = type.split(";")[0].trim().toLowerCase();
+		return matches(mime, includeTypes) && !matches(mime, excludeTypes);
+	}
+	
+	private static boolean matches(String mime, String[] types) {
+		for (String type: types) {
+			if (type.equals(mime) || (type.endsWith("/*") && mime.startsWith(type.substring(0, type.length() - 1)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public OutputStream compress(OutputStream out, String encoding) throws IOException {
+		/* Wrap a stream so that it compresses with the given encoding using a pooled Deflater; closing it returns the Deflater to the pool. */
+		if (encoding.equals("gzip")) {
+			return new PooledDeflaterOutputStream(out, borrow(rawDeflaters, true), true);
+		} else if (encoding.equals("deflate")) {
+			return new PooledDeflaterOutputStream(out, borrow(zlibDeflaters, false), false);
+		} else {
+			throw new IOException("Unsupported encoding " + encoding);
+		}
+	}
+	
+	public byte[] compress(byte[] data, String encoding) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+		OutputStream out = compress(compressed, encoding);
+		out.write(data);
+		out.close();
+		return compressed.toByteArray();
+	}
+	
+	public void discard(OutputStream out) {
+		/* Give back the Deflater of a stream which couldn't be finished (e.g. because the client went away), without writing anything more. */
+		if (out instanceof PooledDeflaterOutputStream) {
+			((PooledDeflaterOutputStream) out).discard();
+		}
+	}
+	
+	private Deflater borrow(ConcurrentLinkedQueue<Deflater> pool, boolean raw) {
+		Deflater deflater = pool.poll();
+		if (deflater == null) {
+			return new Deflater(level, raw);
+		}
+		pooled.decrementAndGet();
+		return deflater;
+	}
+	
+	private void release(Deflater deflater, boolean raw) {
+		if (pooled.incrementAndGet() <= maxPooledDeflaters) {
+			deflater.reset();
+			(raw ? rawDeflaters : zlibDeflaters).add(deflater);
+		} else {
+			pooled.decrementAndGet();
+			deflater.end();
+		}
+	}
+	
+	private class PooledDeflaterOutputStream extends DeflaterOutputStream {
+		
+		/* gzip is written by hand (header, raw deflate data, CRC-32 and length trailer) because GZIPOutputStream can't use a supplied Deflater. */
+		private final static int gzipMagic = 0x8b1f;
+		
+		private final boolean gzip;
+		private final CRC32 crc;
+		private boolean closed;
+		
+		public PooledDeflaterOutputStream(OutputStream out, Deflater deflater, boolean gzip) throws IOException {
+			
+			/* Flushing emits everything compressed so far, so that streamed bodies reach the client as they are produced. */
+			super(out, deflater, true);
+			this.gzip = gzip;
+			this.crc = new CRC32();
+			if (gzip) {
+				out.write(new byte[] {(byte) gzipMagic, (byte) (gzipMagic >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+			}
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+		
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				finish();
+				if (gzip) {
+					writeInt((int) crc.getValue());
+					writeInt((int) def.getBytesRead());
+				}
+				out.close();
+			} finally {
+				release(def, gzip);
+			}
+		}
+		
+		public void discard() {
+			if (!closed) {
+				closed = true;
+				release(def, gzip);
+			}
+		}
+		
+		private void writeInt(int value) throws IOException {
+			out.write(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+		}
+	}
+}
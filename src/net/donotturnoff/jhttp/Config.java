@@ -14,8 +14,61 @@ public class Config {
 		defaults.put("index", "index.html,index.htm");
 		defaults.put("root", "/var/www/html/");
 		defaults.put("timeout", "0");
+		defaults.put("keepalive", "yes");
+		defaults.put("keepalivetimeout", "5000");
+		defaults.put("keepalivemax", "100");
+		defaults.put("pipelinemax", "16");
+		defaults.put("mode", "thread");
+		defaults.put("eventloops", "2");
+		defaults.put("workers", "16");
+		defaults.put("queue", "64");
+		defaults.put("overload", "reject");
+		defaults.put("poolkeepalivetimeout", "1000");
+		defaults.put("cache", "yes");
+		defaults.put("cacheheapfilesize", "65536");
+		defaults.put("cacheheapsize", "33554432");
+		defaults.put("cachemappedfilesize", "67108864");
+		defaults.put("cachemappedsize", "268435456");
+		defaults.put("compressioninclude", "text/*,application/javascript,application/json,application/xml,application/xhtml+xml,image/svg+xml");
+		defaults.put("compressionexclude", "text/event-stream");
+		defaults.put("compressionminsize", "1024");
+		defaults.put("compressionlevel", "6");
+		defaults.put("etag", "metadata");
+		defaults.put("coalescetimeout", "10000");
+		defaults.put("listingcachesize", "8388608");
+		defaults.put("listingpagesize", "1000");
+		defaults.put("pathcachesize", "4096");
+		defaults.put("pathcachettl", "2000");
+		defaults.put("pathcachemissing", "4096");
+		defaults.put("watch", "yes");
+		defaults.put("watchdelay", "100");
+		defaults.put("maxheadersize", "65536");
+		defaults.put("maxheaders", "100");
+		defaults.put("maxbodysize", "104857600");
+		defaults.put("bodymemorysize", "65536");
+		defaults.put("php", "cgi");
+		defaults.put("fastcgiaddress", "127.0.0.1:9000");
+		defaults.put("fastcgiconnections", "8");
+		defaults.put("fastcgitimeout", "30000");
+		defaults.put("fastcgibuffersize", "1048576");
+		defaults.put("phptimeout", "30000");
+		defaults.put("phpworkersmin", "2");
+		defaults.put("phpworkersmax", "8");
+		defaults.put("phpworkerrequests", "500");
+		defaults.put("phpcache", "no");
+		defaults.put("phpcachettl", "1000");
+		defaults.put("phpcachestale", "10000");
+		defaults.put("phpcachevary", "");
+		defaults.put("phpcachesize", "16777216");
+		defaults.put("phpcacheentrysize", "1048576");
 		defaults.put("symlinks", "no");
+		defaults.put("uploads", "no");
+		defaults.put("uploadmaxsize", "0");
+		defaults.put("uploadreserve", "0");
 		defaults.put("defaultmime", "text/html");
+		defaults.put("mimetypes", "/etc/mime.types");
+		defaults.put("mimeextensions", "");
+		defaults.put("phpextensions", "php");
 		defaults.put("defaultprotocol", "HTTP/1.1");
 	}
 	
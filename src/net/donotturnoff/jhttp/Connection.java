@@ -2,53 +2,352 @@ package net.donotturnoff.jhttp;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
-public class Connection extends Thread {
+public class Connection implements Runnable {
 	
-	private final JHTTP server;
-	private final Socket s;
-	private Request request;
-	private final Logger log;
+	protected final static byte[] continueResponse = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+	protected final static int lingerTimeout = 2000;
+	
+	protected final JHTTP server;
+	protected final Socket s;
+	protected Request request;
+	protected final Logger log;
+	protected final Config cfg;
+	protected final RequestParser parser;
+	protected final BodyDecoder decoder;
+	protected InputStream in;
+	protected ByteBuffer input;
+	protected OutputStream out;
+	protected int requestCount;
 	
 	public Connection(JHTTP server, Socket s) {
 		this.server = server;
 		this.log = server.getLog();
-		Config cfg = server.getServerConfig();
+		this.cfg = server.getServerConfig();
 		this.s = s;
+		this.parser = new RequestParser(cfg);
+		this.decoder = new BodyDecoder(cfg);
 		
+		setTimeout(cfg.get("timeout"));
+	}
+	
+	public void run() {
+		/* 
+		 * Handles requests in its own (platform or virtual) thread.
+		 * Requests are read and answered one after another on the same socket until either side asks for the connection to be closed,
+		 * the request limit is reached or the client stays idle for longer than the keep-alive timeout.
+		 * The streams and the input buffer belong to the connection rather than to each request, so that bytes buffered while reading one request
+		 * are not lost and the socket stays open between responses.
+		 * The accept message is logged here so that the reverse lookup of the client's hostname doesn't hold up the accepting thread.
+		 */
+		log.log(Level.INFO, "Connection accepted from " + getHost());
 		try {
-			int timeout = Integer.parseInt(cfg.get("timeout"));
-			s.setSoTimeout(timeout);
-		} catch (SocketException e) {
-			log.log(Level.WARNING, "Could not set socket timeout");
+			in = s.getInputStream();
+			input = ByteBuffer.allocate(8192);
+			input.flip();
+			out = new BufferedOutputStream(s.getOutputStream());
+			log.log(Level.FINE, "Socket streams opened");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not open socket streams", e);
+			server.close(this);
+			return;
 		}
 		
-		log.log(Level.INFO, "Connection accepted from " + getHost());
+		do {
+			request = new Request(server, this);
+			if (!request.read()) {
+				break;
+			}
+			request.handle();
+			requestCount++;
+			
+			/*
+			 * In pool mode the whole connection is one task, so a client idling between requests holds a worker that other connections may be queued for.
+			 * Such connections get a shorter keep-alive timeout, so an idle client gives its worker back quickly while one sending requests back to back keeps it.
+			 */
+			setTimeout(cfg.get(cfg.get("mode").equals("pool") ? "poolkeepalivetimeout" : "keepalivetimeout"));
+		} while (request.isKeepAlive());
+		server.close(this);
 	}
 	
-	public void run() {
-		/* Handles request in a new thread. */
-		request = new Request(server, this);
-		request.handle();
-		server.close(this);
+	public boolean canKeepAlive(Request request) {
+		
+		/*
+		 * Determine whether the connection may stay open after responding to the given request.
+		 * HTTP/1.1 connections are persistent unless the client sends "Connection: close".
+		 * HTTP/1.0 connections are only persistent if the client sends "Connection: keep-alive".
+		 */
+		if (!cfg.get("keepalive").equals("yes") || !request.isReceived()) {
+			return false;
+		}
+		try {
+			int max = Integer.parseInt(cfg.get("keepalivemax"));
+			if (max > 0 && requestCount + 1 >= max) {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			log.log(Level.WARNING, "Invalid keep-alive request limit");
+			return false;
+		}
+		String connectionHeader = request.getHeader("Connection").toLowerCase();
+		if (request.getProtocol().equals("HTTP/1.1")) {
+			return !connectionHeader.contains("close");
+		} else {
+			return connectionHeader.contains("keep-alive");
+		}
+	}
+	
+	public boolean readHead() throws IOException {
+		
+		/*
+		 * Read and parse the request line and headers of the next request, reading more from the socket whenever the buffer runs out.
+		 * Returns false if the client closes the connection before starting a request.
+		 * Once a request has started, the normal timeout applies to the rest of it rather than the keep-alive timeout.
+		 */
+		parser.reset();
+		while (!parser.parse(input)) {
+			boolean started = parser.isStarted();
+			if (!fill()) {
+				if (started) {
+					throw new EOFException("Request ended early");
+				}
+				return false;
+			}
+			if (!started && requestCount > 0) {
+				setTimeout(cfg.get("timeout"));
+			}
+		}
+		return true;
+	}
+	
+	public RequestBody readBody() throws IOException {
+		
+		/*
+		 * Read and decode the body of the request whose header section has just been read, starting with any bytes which were buffered along with it.
+		 * A client which asked to wait for "100 Continue" before sending the body is told to go ahead.
+		 */
+		try {
+			decoder.reset(parser, createBody());
+			if (decoder.hasBody() && parser.isExpectingContinue() && !input.hasRemaining()) {
+				out.write(continueResponse);
+				out.flush();
+			}
+			while (!decoder.decode(input)) {
+				if (!fill()) {
+					throw new EOFException("Request body ended early");
+				}
+			}
+			return decoder.getBody();
+		} catch (IOException e) {
+			decoder.discard();
+			throw e;
+		}
+	}
+	
+	protected RequestBody createBody() throws IOException {
+		/* Uploads get a body which is written straight to the directory they are going to; other bodies are kept in memory until they grow too large. */
+		if (parser.getVerb().equals("PUT")) {
+			return PutHandler.createBody(server, parser);
+		} else {
+			return new RequestBody(server);
+		}
+	}
+	
+	private boolean fill() throws IOException {
+		
+		/*
+		 * Replace the (fully consumed) input buffer with the next bytes from the socket. Returns false at the end of the stream.
+		 * Any responses which are still buffered are flushed first, since the client may be waiting for them before it sends more.
+		 */
+		out.flush();
+		input.clear();
+		int count = in.read(input.array(), 0, input.capacity());
+		if (count < 0) {
+			input.limit(0);
+			return false;
+		}
+		input.limit(count);
+		return true;
+	}
+	
+	public void finishResponse() throws IOException {
+		
+		/*
+		 * Called after each response has been written to the output stream.
+		 * If the client has pipelined more requests which are already buffered, the response is left in the output buffer so that
+		 * the responses to consecutive small requests go out together; otherwise it is flushed now.
+		 */
+		if (!input.hasRemaining()) {
+			out.flush();
+		}
+	}
+	
+	public void flushResponse() throws IOException {
+		/* Called by streamed responses to send what has been produced so far without waiting for the rest. */
+		out.flush();
+	}
+	
+	public void sendFile(Path path, long position, long count) throws IOException {
+		
+		/*
+		 * Send part of a file after anything already written to the output stream.
+		 * If the socket has a channel, FileChannel.transferTo lets the kernel copy the file to the socket directly (sendfile).
+		 * Otherwise the file is streamed through a small buffer.
+		 */
+		out.flush();
+		SocketChannel channel = s.getChannel();
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			long end = position + count;
+			if (channel != null) {
+				while (position < end) {
+					long sent = file.transferTo(position, end - position, channel);
+					if (sent <= 0 && position >= file.size()) {
+						throw new EOFException("File shorter than expected: " + path);
+					}
+					position += sent;
+				}
+			} else {
+				InputStream in = Channels.newInputStream(file.position(position));
+				byte[] buffer = new byte[8192];
+				while (position < end) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+					if (read < 0) {
+						throw new EOFException("File shorter than expected: " + path);
+					}
+					out.write(buffer, 0, read);
+					position += read;
+				}
+				out.flush();
+			}
+		}
+	}
+	
+	public void sendBuffer(ByteBuffer buffer) throws IOException {
+		
+		/* Send a buffer after anything already written to the output stream, writing it directly to the socket's channel if there is one. */
+		out.flush();
+		SocketChannel channel = s.getChannel();
+		if (channel != null) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} else {
+			byte[] chunk = new byte[8192];
+			while (buffer.hasRemaining()) {
+				int count = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, count);
+				out.write(chunk, 0, count);
+			}
+			out.flush();
+		}
+	}
+	
+	public void reject() {
+		
+		/*
+		 * Send the pre-rendered 503 without reading the request, and shut down the sending side so the client sees the end of the response.
+		 * Closing the socket with the request still unread would make the kernel reset the connection, which can destroy the 503 before the client reads it,
+		 * so the socket is only closed once the linger timeout has passed, discarding whatever the client sent. This is left to a timer so the accepting thread doesn't wait.
+		 */
+		try {
+			OutputStream rejectOut = s.getOutputStream();
+			rejectOut.write(server.getOverloadResponse());
+			rejectOut.flush();
+			s.shutdownOutput();
+			log.log(Level.WARNING, "Connection rejected: server overloaded");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not send overload response");
+			server.close(this);
+			return;
+		}
+		CompletableFuture.delayedExecutor(lingerTimeout, TimeUnit.MILLISECONDS).execute(() -> {
+			try {
+				InputStream rejectIn = s.getInputStream();
+				while (rejectIn.available() > 0) {
+					rejectIn.skip(rejectIn.available());
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Could not discard unread input");
+			}
+			server.close(this);
+		});
+	}
+	
+	public void setTimeout(String timeout) {
+		try {
+			s.setSoTimeout(Integer.parseInt(timeout));
+		} catch (SocketException | NumberFormatException e) {
+			log.log(Level.WARNING, "Could not set socket timeout");
+		}
 	}
 	
 	public Socket getSocket() {
 		return s;
 	}
 	
+	public RequestParser getParser() {
+		return parser;
+	}
+	
+	public OutputStream getOutputStream() {
+		return out;
+	}
+	
 	public Request getRequest() {
 		return request;
 	}
 	
+	public int getRequestCount() {
+		return requestCount;
+	}
+	
 	public String getHost() {
 		return s.getInetAddress().getCanonicalHostName();
 	}
 	
+	private void linger() throws IOException {
+		
+		/*
+		 * Closing a socket with unread input makes the kernel reset the connection, which can destroy responses the client hasn't read yet
+		 * (e.g. when a pipelined request was refused). So the sending side is shut down first, and the input is read and discarded
+		 * until the client closes its side or a short timeout passes.
+		 */
+		s.shutdownOutput();
+		s.setSoTimeout(lingerTimeout);
+		long deadline = System.currentTimeMillis() + lingerTimeout;
+		byte[] discard = input.array();
+		while (in.read(discard) >= 0 && System.currentTimeMillis() < deadline) {
+			log.log(Level.FINEST, "Discarded unread input");
+		}
+	}
+	
+	public void shutdown() {
+		/* Close the socket from another thread, e.g. when the server exits, without touching the streams, which belong to the connection's own thread. */
+		try {
+			s.close();
+			log.log(Level.INFO, "Socket closed");
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not close socket");
+		}
+	}
+	
 	public void close() {
 		try {
-			request.close();
+			if (out != null && input != null && !s.isClosed()) {
+				out.flush();
+				if (input.hasRemaining() || in.available() > 0) {
+					linger();
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not finish output before closing");
+		}
+		try {
 			s.close();
 			log.log(Level.INFO, "Socket closed");
 		} catch (IOException e) {
@@ -0,0 +1,297 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+
+public class ContentCache implements FileWatcher.Listener {
+	
+	private final JHTTP server;
+	private final Logger log;
+	private final Config cfg;
+	private final long heapFileSize, heapCapacity, mappedFileSize, mappedCapacity;
+	private final LinkedHashMap<Path, Entry> entries;
+	private final ReentrantLock lock;
+	private long heapUsed, mappedUsed;
+	private final AtomicLong hits, misses, evictions;
+	private final SingleFlight<Path, Entry> loads;
+	
+	public ContentCache(JHTTP server) throws NumberFormatException {
+		this.server = server;
+		this.log = server.getLog();
+		this.cfg = server.getServerConfig();
+		
+		/*
+		 * Files up to cacheheapfilesize bytes are kept on the heap, up to cacheheapsize bytes in total.
+		 * Larger files up to cachemappedfilesize bytes are memory-mapped, up to cachemappedsize bytes in total.
+		 * Anything larger is not cached and is sent straight from the file.
+		 */
+		heapFileSize = Long.parseLong(cfg.get("cacheheapfilesize"));
+		heapCapacity = Long.parseLong(cfg.get("cacheheapsize"));
+		mappedFileSize = Long.parseLong(cfg.get("cachemappedfilesize"));
+		mappedCapacity = Long.parseLong(cfg.get("cachemappedsize"));
+		
+		/* An access-ordered LinkedHashMap iterates from least to most recently used, which gives LRU eviction. */
+		entries = new LinkedHashMap<>(64, 0.75f, true);
+		lock = new ReentrantLock();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+		
+		/* Concurrent misses for the same file (e.g. a popular file after it changes) are loaded once and shared. */
+		loads = new SingleFlight<>(Long.parseLong(cfg.get("coalescetimeout")));
+	}
+	
+	public Document get(FileDocument file) throws IOException {
+		
+		/*
+		 * Look up a file by its real path.
+		 * A cached entry is only used if the file's size and modification time (already read by the FileDocument) still match, otherwise it is reloaded.
+		 */
+		Path path = file.getPath();
+		Entry entry;
+		lock.lock();
+		try {
+			entry = entries.get(path);
+		} finally {
+			lock.unlock();
+		}
+		
+		if (entry != null && entry.matches(file)) {
+			hits.incrementAndGet();
+			return new CachedDocument(server, path, entry.type, entry.modified, entry.etag, entry.data, entry.buffer);
+		}
+		misses.incrementAndGet();
+		
+		entry = loads.execute(path, () -> load(file));
+		if (entry == null) {
+			return file;
+		}
+		return new CachedDocument(server, path, entry.type, entry.modified, entry.etag, entry.data, entry.buffer);
+	}
+	
+	private Entry load(FileDocument file) throws IOException {
+		
+		/* Read (or map) a file and cache it. Returns null if the file is too large to cache. */
+		Path path = file.getPath();
+		Entry entry;
+		long size = file.getSize();
+		if (size <= heapFileSize && size <= heapCapacity) {
+			byte[] data = Files.readAllBytes(path);
+			entry = new Entry(file, getETag(file, ByteBuffer.wrap(data)), data, null);
+		} else if (size <= mappedFileSize && size <= mappedCapacity) {
+			
+			/* The mapping stays valid after the channel is closed and is shared read-only by all requests for the file. */
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				entry = new Entry(file, getETag(file, mapped.duplicate()), null, mapped);
+			}
+		} else {
+			remove(path);
+			return null;
+		}
+		
+		put(path, entry);
+		return entry;
+	}
+	
+	private String getETag(FileDocument file, ByteBuffer contents) {
+		
+		/* With hashed ETags the contents are hashed once when they are cached; otherwise the metadata-based ETag is used. */
+		if (!cfg.get("etag").equals("hash")) {
+			return file.getETag();
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(contents);
+			byte[] hash = digest.digest();
+			StringBuilder etag = new StringBuilder("\"");
+			for (int i = 0; i < 16; i++) {
+				etag.append(String.format("%02x", hash[i]));
+			}
+			return etag.append("\"").toString();
+		} catch (NoSuchAlgorithmException e) {
+			log.log(Level.WARNING, "Could not hash " + file.getPath(), e);
+			return file.getETag();
+		}
+	}
+	
+	public Document getVariant(CachedDocument document, String encoding) {
+		
+		/*
+		 * Return a compressed copy of a cached document, compressing it only on the first request for that encoding.
+		 * Variants are stored with the entry, so they are dropped along with it when the file changes.
+		 * Only heap-tier entries have cached variants; mapped files are compressed as they are sent.
+		 */
+		Path path = document.getPath();
+		Entry entry;
+		lock.lock();
+		try {
+			entry = entries.get(path);
+		} finally {
+			lock.unlock();
+		}
+		if (entry == null || entry.isMapped() || entry.data != document.getData()) {
+			return null;
+		}
+		
+		byte[] compressed = entry.variants.get(encoding);
+		if (compressed == null) {
+			try {
+				compressed = server.getCompressionPolicy().compress(entry.data, encoding);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not compress " + path, e);
+				return null;
+			}
+			
+			/* The variant counts towards the heap tier's capacity, so it is only stored if the entry and its variants still fit, and other entries are evicted to make room for it. */
+			lock.lock();
+			try {
+				if (entries.get(path) == entry && entry.size + entry.variantSize + compressed.length <= heapCapacity && entry.variants.putIfAbsent(encoding, compressed) == null) {
+					heapUsed += compressed.length;
+					entry.variantSize += compressed.length;
+					evict(entry);
+					log.log(Level.FINER, "Cached " + encoding + " variant of " + path);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		String etag = entry.etag.substring(0, entry.etag.length() - 1) + "-" + encoding + "\"";
+		return new CachedDocument(server, path, entry.type, entry.modified, etag, compressed, ByteBuffer.wrap(compressed).asReadOnlyBuffer(), encoding);
+	}
+	
+	private void put(Path path, Entry entry) {
+		lock.lock();
+		try {
+			Entry previous = entries.put(path, entry);
+			if (previous != null) {
+				release(previous);
+			}
+			if (entry.isMapped()) {
+				mappedUsed += entry.size;
+			} else {
+				heapUsed += entry.size;
+			}
+			evict(entry);
+		} finally {
+			lock.unlock();
+		}
+		log.log(Level.FINER, "Cached " + path);
+	}
+	
+	private void evict(Entry keep) {
+		/* Evict least recently used entries (other than the one just added to) of whichever tier is over capacity. Called with the lock held. */
+		Iterator<Entry> iterator = entries.values().iterator();
+		while ((heapUsed > heapCapacity || mappedUsed > mappedCapacity) && iterator.hasNext()) {
+			Entry eldest = iterator.next();
+			if (eldest != keep && (eldest.isMapped() ? mappedUsed > mappedCapacity : heapUsed > heapCapacity)) {
+				iterator.remove();
+				release(eldest);
+				evictions.incrementAndGet();
+			}
+		}
+	}
+	
+	public void remove(Path path) {
+		lock.lock();
+		try {
+			Entry entry = entries.remove(path);
+			if (entry != null) {
+				release(entry);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void changed(Path path) {
+		/* Drop the file (or everything under the directory) as soon as it changes, rather than when it is next requested. */
+		lock.lock();
+		try {
+			Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Path, Entry> entry = iterator.next();
+				if (entry.getKey().startsWith(path)) {
+					iterator.remove();
+					release(entry.getValue());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void reset(Path root) {
+		changed(root);
+	}
+	
+	private void release(Entry entry) {
+		if (entry.isMapped()) {
+			mappedUsed -= entry.size;
+		} else {
+			heapUsed -= entry.size;
+		}
+		heapUsed -= entry.variantSize;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public String toString() {
+		return hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+	}
+	
+	private static class Entry {
+		
+		private final long modified;
+		private final long size;
+		private final String type;
+		private final String etag;
+		private final byte[] data;
+		private final ByteBuffer buffer;
+		private final ConcurrentHashMap<String, byte[]> variants;
+		private long variantSize;
+		
+		public Entry(FileDocument file, String etag, byte[] data, MappedByteBuffer mapped) {
+			
+			/* Heap entries have data; mapped entries have only the mapping. */
+			this.modified = file.getLastModified();
+			this.type = file.getType();
+			this.etag = etag;
+			this.data = data;
+			if (data != null) {
+				this.size = data.length;
+				this.buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+			} else {
+				this.size = mapped.capacity();
+				this.buffer = mapped.asReadOnlyBuffer();
+			}
+			this.variants = new ConcurrentHashMap<>();
+		}
+		
+		public boolean isMapped() {
+			return data == null;
+		}
+		
+		public boolean matches(FileDocument file) {
+			return size == file.getSize() && modified == file.getLastModified();
+		}
+	}
+}
@@ -4,7 +4,7 @@ import java.io.*;
 import java.nio.file.*;
 
 public class DirectoryHandler extends RequestHandler {
-	public DirectoryHandler(JHTTP server, Path path, Request request, boolean isSymlink) {
+	public DirectoryHandler(JHTTP server, ResolvedPath resolved, Request request) {
 		super(server);
 		this.request = request;
 		Host host = request.getHost();
@@ -12,35 +12,20 @@ public class DirectoryHandler extends RequestHandler {
 		RequestHandler handler = null;
 		
 		try {
-			Path root = Paths.get(host.get("root")).toRealPath();
-			Path realPath = path.toRealPath();
-			
 			/* 
 			 * If the resource is accessed by following a symlink but the config forbids symlinks, issue a 403.
 			 * Alternatively, if the resource is not accessed via a symlink but is outside of the www root, issue a 403.
 			 */
-			if (isSymlink) {
-				if (!host.get("symlinks").equals("yes")) {
-					throw new AccessDeniedException("Cannot follow symlinks");
-				}
-			} else if (!realPath.startsWith(root)) {
-				throw new AccessDeniedException("Cannot access other parts of filesystem");
-			}
+			resolved.checkAccess();
 			
 			/*
-			 * Search for each index page in the config (e.g. index.html).
-			 * As soon as one of the pages is found, delegate to a FileHandler.
-			 * The isSymlink argument is set if either the directory or the index page has been accessed via a symlink.
+			 * The first of the index pages in the config (e.g. index.html) which exists was found when the path was resolved.
+			 * If there is one, delegate to a FileHandler.
 			 */
-			String[] indexPages = host.getIndexPages();
-			boolean indexPageFound = false;
-			for (String indexPage: indexPages) {
-				Path indexPath = realPath.resolve(Paths.get(indexPage));
-				if (Files.exists(indexPath)) {
-					handler = new FileHandler(server, indexPath, request, Files.isSymbolicLink(indexPath) || isSymlink);
-					indexPageFound = true;
-					break;
-				}
+			ResolvedPath index = resolved.getIndex();
+			boolean indexPageFound = index != null;
+			if (indexPageFound) {
+				handler = new FileHandler(server, index, request);
 			}
 			
 			/* 
@@ -51,9 +36,10 @@ public class DirectoryHandler extends RequestHandler {
 				status = new Status("200");
 				try {
 					if (host.get("directorylisting").equals("yes")) {
-						document = new DirectoryListingDocument(server, request, Paths.get(request.getPath()));
+						document = server.getListingCache().get(request, resolved.getRealPath());
 						headers = new Headers();
 						headers.setHeader("Content-Type", document.getType());
+						headers.setHeader("Content-Length", document.getLength());
 					} else {
 						throw new AccessDeniedException("Directory listing forbidden");
 					}
@@ -67,10 +53,6 @@ public class DirectoryHandler extends RequestHandler {
 			}
 		} catch (AccessDeniedException e) {
 			handler = new ErrorHandler(server, request, new Status("403"), e.getMessage());
-		} catch (NoSuchFileException | FileNotFoundException e) {
-			handler = new ErrorHandler(server, request, new Status("404"));
-		} catch (IOException e) {
-			handler = new ErrorHandler(server, request, new Status("500"), "Could not generate directory listing: " + e.getMessage());
 		} finally {
 			if (handler != null) {
 				status = handler.getStatus();
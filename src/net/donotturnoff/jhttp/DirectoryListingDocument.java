@@ -1,83 +1,161 @@
 package net.donotturnoff.jhttp;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.*;
+import java.util.function.Consumer;
 
 public class DirectoryListingDocument extends Document {
 	
-	public DirectoryListingDocument(JHTTP server, Request request, Path path) throws IOException {
+	private final static int rowsPerWrite = 256;
+	
+	private final String[] names;
+	private final String[] types;
+	private final int page;
+	private final int pages;
+	private final int limit;
+	private final int pageSize;
+	private ByteArrayOutputStream copy;
+	private long copyLimit;
+	private Consumer<byte[]> recorder;
+	
+	public DirectoryListingDocument(JHTTP server, Path path, String[] names, String[] types, int page, int pages, int limit, int pageSize) {
 		super(server);
-		Host host = request.getHost();
 		
-		File dir = new File(host.get("root") + "/" + path.toString());
-		if (!dir.exists() || !dir.isDirectory()) {
-			throw new FileNotFoundException("No such directory");
-		}
-		if (!dir.canRead()) {
-			throw new AccessDeniedException("No read privilege on " + path);
+		/*
+		 * One page of a directory's (sorted) listing. The limit is only given if the client asked for one, so that it can be kept in the page links.
+		 * The HTML is produced as it is sent, a few hundred rows at a time, so a large listing is never held in memory as a whole.
+		 */
+		this.path = path;
+		this.names = names;
+		this.types = types;
+		this.page = page;
+		this.pages = pages;
+		this.limit = limit;
+		this.pageSize = pageSize;
+		type = "text/html";
+		data = null;
+	}
+	
+	public void record(long limit, Consumer<byte[]> recorder) {
+		/* Keep a copy of the page as it is sent, and pass it to the recorder once it has been sent in full if it is no longer than the limit. */
+		this.copy = new ByteArrayOutputStream();
+		this.copyLimit = limit;
+		this.recorder = recorder;
+	}
+	
+	public String getLength() {
+		/* The length isn't known until the page has been rendered. */
+		return "";
+	}
+	
+	public long getSize() {
+		return -1;
+	}
+	
+	public byte[] getData() {
+		if (data == null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				write(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			data = out.toByteArray();
 		}
-		File[] dirList = dir.listFiles();
-		if (dirList == null) {
-			throw new IOException("Failed to list files for " + path);
-		} else {
-			Arrays.sort(dirList);
-
-			/* Build directory listing table in alphabetical order containing type (file/dir) and filename. */
-			StringBuilder docBuilder = new StringBuilder();
-			docBuilder.append("<!DOCTYPE html>\n");
-			docBuilder.append("<html>\n");
-			docBuilder.append(" <head>\n");
-			docBuilder.append("  <meta charset=\"UTF-8\" />\n");
-			docBuilder.append("  <style>\n");
-			docBuilder.append("table {border-collapse: collapse; border: 1px solid black} th, td {border: 1px solid black; padding: 5px}\n");
-			docBuilder.append("  </style>\n");
-			docBuilder.append("  <title>");
-			docBuilder.append(path);
-			docBuilder.append("</title>\n");
-			docBuilder.append(" </head>\n");
-			docBuilder.append(" <body>\n");
-			docBuilder.append("  <h1>Directory listing for ");
-			docBuilder.append(path);
-			docBuilder.append("</h1>\n");
-			docBuilder.append("  <table>\n");
-			docBuilder.append("   <thead>\n");
+		return data;
+	}
+	
+	public void send(Connection conn) throws IOException {
+		write(conn.getOutputStream());
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		
+		/* Build directory listing table in alphabetical order containing type (file/dir) and filename, with links to the other pages if there are any. */
+		StringBuilder docBuilder = new StringBuilder();
+		docBuilder.append("<!DOCTYPE html>\n");
+		docBuilder.append("<html>\n");
+		docBuilder.append(" <head>\n");
+		docBuilder.append("  <meta charset=\"UTF-8\" />\n");
+		docBuilder.append("  <style>\n");
+		docBuilder.append("table {border-collapse: collapse; border: 1px solid black} th, td {border: 1px solid black; padding: 5px}\n");
+		docBuilder.append("  </style>\n");
+		docBuilder.append("  <title>");
+		docBuilder.append(escape(path.toString()));
+		docBuilder.append("</title>\n");
+		docBuilder.append(" </head>\n");
+		docBuilder.append(" <body>\n");
+		docBuilder.append("  <h1>Directory listing for ");
+		docBuilder.append(escape(path.toString()));
+		docBuilder.append("</h1>\n");
+		docBuilder.append("  <table>\n");
+		docBuilder.append("   <thead>\n");
+		docBuilder.append("    <tr>\n");
+		docBuilder.append("     <th>Type</th>\n");
+		docBuilder.append("     <th>Filename</th>\n");
+		docBuilder.append("    </tr>\n");
+		docBuilder.append("   </thead>\n");
+		docBuilder.append("   <tbody>\n");
+		
+		int start = (page - 1) * pageSize;
+		int end = Math.min(names.length, start + pageSize);
+		for (int i = start; i < end; i++) {
 			docBuilder.append("    <tr>\n");
-			docBuilder.append("     <th>Type</th>\n");
-			docBuilder.append("     <th>Filename</th>\n");
+			docBuilder.append("     <td>");
+			docBuilder.append(types[i]);
+			docBuilder.append("</td>\n");
+			docBuilder.append("     <td>\n");
+			docBuilder.append("      <a href=\"");
+			docBuilder.append(escape(path.resolve(names[i]).toString()));
+			docBuilder.append("\">");
+			docBuilder.append(escape(names[i]));
+			docBuilder.append("</a>\n");
+			docBuilder.append("     </td>\n");
 			docBuilder.append("    </tr>\n");
-			docBuilder.append("   </thead>\n");
-			docBuilder.append("   <tbody>\n");
-
-			for (File file : dirList) {
-				String type = "";
-				if (file.isFile()) {
-					type = "file";
-				} else if (file.isDirectory()) {
-					type = "dir";
-				}
-				docBuilder.append("    <tr>\n");
-				docBuilder.append("     <td>");
-				docBuilder.append(type);
-				docBuilder.append("</td>\n");
-				docBuilder.append("     <td>\n");
-				docBuilder.append("      <a href=\"");
-				docBuilder.append(path.resolve(file.getName()));
-				docBuilder.append("\">");
-				docBuilder.append(file.getName());
-				docBuilder.append("</a>\n");
-				docBuilder.append("     </td>\n");
-				docBuilder.append("    </tr>\n");
+			if ((i - start) % rowsPerWrite == rowsPerWrite - 1) {
+				flush(out, docBuilder);
 			}
-
-			docBuilder.append("   </tbody>\n");
-			docBuilder.append("  </table>\n");
-			docBuilder.append(" </body>\n");
-			docBuilder.append("</html>\n");
-			data = docBuilder.toString().getBytes();
 		}
 		
-		type = "text/html";
-		this.path = path;
+		docBuilder.append("   </tbody>\n");
+		docBuilder.append("  </table>\n");
+		if (pages > 1) {
+			docBuilder.append("  <p>\n");
+			if (page > 1) {
+				docBuilder.append("   <a href=\"").append(getPageLink(page - 1)).append("\">Previous</a>\n");
+			}
+			docBuilder.append("   Page ").append(page).append(" of ").append(pages).append("\n");
+			if (page < pages) {
+				docBuilder.append("   <a href=\"").append(getPageLink(page + 1)).append("\">Next</a>\n");
+			}
+			docBuilder.append("  </p>\n");
+		}
+		docBuilder.append(" </body>\n");
+		docBuilder.append("</html>\n");
+		flush(out, docBuilder);
+		
+		if (copy != null) {
+			recorder.accept(copy.toByteArray());
+		}
+	}
+	
+	private void flush(OutputStream out, StringBuilder docBuilder) throws IOException {
+		byte[] bytes = docBuilder.toString().getBytes(StandardCharsets.UTF_8);
+		docBuilder.setLength(0);
+		out.write(bytes);
+		if (copy != null && copy.size() + bytes.length <= copyLimit) {
+			copy.write(bytes, 0, bytes.length);
+		} else {
+			copy = null;
+		}
+	}
+	
+	private String getPageLink(int target) {
+		return "?page=" + target + (limit > 0 ? "&amp;limit=" + limit : "");
+	}
+	
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
 	}
 }
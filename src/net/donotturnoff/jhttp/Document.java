@@ -12,27 +12,37 @@ public class Document {
 	protected Path path;
 	protected String type;
 	protected byte[] data;
+	protected String encoding;
+	protected long lastModified;
+	protected String etag;
 	
-	public Document() {}
+	public Document() {
+		data = new byte[0];
+		encoding = "identity";
+		etag = "";
+	}
 	
 	public Document(JHTTP server) {
+		this(server.getLog(), server.getServerConfig());
 		this.server = server;
-		this.log = server.getLog();
-		this.cfg = server.getServerConfig();
+	}
+	
+	public Document(Logger log, Config cfg) {
+		this.log = log;
+		this.cfg = cfg;
 		
 		path = Paths.get("");
 		type = cfg.get("defaultmime");
 		data = new byte[0];
+		encoding = "identity";
+		etag = "";
 	}
 	
 	public Document(JHTTP server, Path path) throws IOException {
 		this(server);
 		
 		this.path = path;
-		type = Files.probeContentType(path);
-		if (type == null) {
-			type = cfg.get("defaultmime");
-		}
+		type = server.getMimeTypes().getType(path);
 		data = Files.readAllBytes(path);
 	}
 	
@@ -48,6 +58,53 @@ public class Document {
 		return Integer.toString(data.length);
 	}
 	
+	public long getSize() {
+		return data.length;
+	}
+	
+	public long getLastModified() {
+		/* Modification time in milliseconds, or 0 if the document doesn't come from a file. */
+		return lastModified;
+	}
+	
+	public String getETag() {
+		/* Entity tag (including quotes), or an empty string if the document doesn't have one. */
+		return etag;
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		writeRange(out, 0, getSize());
+	}
+	
+	public void writeRange(OutputStream out, long start, long length) throws IOException {
+		out.write(getData(), (int) start, (int) length);
+	}
+	
+	public void send(Connection conn) throws IOException {
+		sendRange(conn, 0, getSize());
+	}
+	
+	public void sendRange(Connection conn, long start, long length) throws IOException {
+		/* Send part of the uncompressed body. Subclasses may bypass the output stream to avoid copying. */
+		conn.getOutputStream().write(getData(), (int) start, (int) length);
+	}
+	
+	public void close() {
+		/* Release anything the document holds open (such as a script's output) once the response is finished with it. */
+	}
+	
+	public String getEncoding() {
+		return encoding;
+	}
+	
+	public Document getVariant(String encoding) {
+		/* Return a copy of this document already compressed with the given encoding, or null if there isn't one. */
+		if (encoding.equals(this.encoding)) {
+			return this;
+		}
+		return null;
+	}
+	
 	public String getType() {
 		return type;
 	}
@@ -10,8 +10,13 @@ public class ErrorDocument extends Document {
 	}
 	
 	public ErrorDocument(JHTTP server, Status status, ArrayList<String> messages) throws IllegalArgumentException {
-		super(server);
-
+		this(server.getLog(), server.getServerConfig(), status, messages);
+		this.server = server;
+	}
+	
+	public ErrorDocument(Logger log, Config cfg, Status status, ArrayList<String> messages) throws IllegalArgumentException {
+		super(log, cfg);
+		
 		/* Produce error document if the given status code is 4xx or 5xx and is a valid code. */
 		if (status.isError()) {
 			StringBuilder docBuilder = new StringBuilder();
@@ -31,13 +36,13 @@ public class ErrorDocument extends Document {
 			docBuilder.append(status.getMessage());
 			docBuilder.append("</p>\n");
 			
-			/* If there are extra messages, list them. */
+			/* If there are extra messages, list them. They can contain request paths and exception messages, so they are escaped. */
 			if (messages.size() > 0) {
 				docBuilder.append("  <h2>Additional information</h2>\n");
 				docBuilder.append("  <ul>\n");
 				for (String message: messages) {
 					docBuilder.append("   <li>");
-					docBuilder.append(message);
+					docBuilder.append(escape(message));
 					docBuilder.append("</li>\n");
 				}
 				docBuilder.append("  </ul>\n");
@@ -52,4 +57,8 @@ public class ErrorDocument extends Document {
 			throw new IllegalArgumentException("Cannot create error document for non-error code " + status.getCode());
 		}
 	}
+	
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
 }
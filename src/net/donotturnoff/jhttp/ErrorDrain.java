@@ -0,0 +1,117 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.*;
+
+public class ErrorDrain extends Thread {
+	
+	private final static int interval = 50;
+	
+	private final Logger log;
+	private final Set<Output> outputs;
+	
+	public ErrorDrain(JHTTP server) {
+		super("PHP error drain");
+		setDaemon(true);
+		this.log = server.getLog();
+		
+		/*
+		 * One thread which keeps the error output pipes of all running php-cgi processes drained, so a script which writes a lot of errors isn't stalled by a full pipe.
+		 * Only what is already in each pipe is read, so the thread never blocks on one script. The first bytes of each output (up to a limit) are kept to be logged
+		 * once the script has exited, and the rest is thrown away, so a noisy script can use neither the disk nor more than a bounded amount of memory.
+		 */
+		this.outputs = ConcurrentHashMap.newKeySet();
+	}
+	
+	public InputStream drain(InputStream in, int limit) {
+		/* Start draining a script's error output. The returned stream gives what was kept, once the script has exited. */
+		Output output = new Output(in, limit);
+		outputs.add(output);
+		return output;
+	}
+	
+	public void run() {
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (Output output: outputs) {
+				output.poll();
+			}
+		}
+	}
+	
+	private class Output extends InputStream {
+		
+		private final InputStream in;
+		private final int limit;
+		private final byte[] buffer;
+		private final ByteArrayOutputStream kept;
+		private byte[] data;
+		private int position;
+		private boolean closed;
+		
+		public Output(InputStream in, int limit) {
+			this.in = in;
+			this.limit = limit;
+			this.buffer = new byte[8192];
+			this.kept = new ByteArrayOutputStream();
+		}
+		
+		public synchronized void poll() {
+			/* Read whatever is in the pipe without blocking, keeping it only while there is room. */
+			try {
+				int available;
+				while (!closed && (available = in.available()) > 0) {
+					int count = in.read(buffer, 0, Math.min(buffer.length, available));
+					if (count < 0) {
+						break;
+					}
+					kept.write(buffer, 0, Math.min(count, limit - kept.size()));
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Could not read PHP error output", e);
+				close();
+			}
+		}
+		
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		public synchronized int read(byte[] b, int off, int len) {
+			
+			/* The first read takes whatever the script wrote since the last poll, and then stops draining. */
+			if (data == null) {
+				poll();
+				data = kept.toByteArray();
+				close();
+			}
+			if (position == data.length) {
+				return -1;
+			}
+			int count = Math.min(len, data.length - position);
+			System.arraycopy(data, position, b, off, count);
+			position += count;
+			return count;
+		}
+		
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				outputs.remove(this);
+				try {
+					in.close();
+				} catch (IOException e) {
+					log.log(Level.FINE, "Could not close PHP error output", e);
+				}
+			}
+		}
+	}
+}
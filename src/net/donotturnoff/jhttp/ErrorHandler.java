@@ -1,7 +1,6 @@
 package net.donotturnoff.jhttp;
 
 import java.io.*;
-import java.nio.file.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -16,69 +15,44 @@ public class ErrorHandler extends RequestHandler {
 		this.request = request;
 		Host host = request.getHost();
 		
-		String code = status.getCode();
-		String siteroot = host.get("root");
-		String errorDocPath = host.get(code);
-		
 		/* Add custom message to list of messages. */
 		ArrayList<String> messages = new ArrayList<>();
 		if (message.trim().length() > 0) {
 			messages.add(message);
 		}
 		
+		/*
+		 * Error responses (including custom error documents) are rendered once and then sent from memory.
+		 * An error document run by PHP is the exception: it is handled like a normal resource every time.
+		 */
+		ErrorPages.Page page = server.getErrorPages().get(host, status, messages);
+		if (page != null) {
+			this.status = page.getStatus();
+			headers = page.getHeaders();
+			document = page.getDocument(server);
+			addGeneralHeaders();
+			return;
+		}
+		
 		this.status = status;
+		String code = status.getCode();
 		try {
-			/* 
-			 * If an error document is defined for the given code, handle it like a normal resource.
-			 * To do: use ResourceHandler?
-			 */
-			if (!errorDocPath.equals("")) {
-				if (status.isError()) {
-					Path path = Paths.get(siteroot + errorDocPath);
-					RequestHandler handler;
-					if (!Files.exists(path)) {
-						throw new IOException();
-					}
-					if (Files.isDirectory(path)) {
-						handler = new DirectoryHandler(server, path, request, Files.isSymbolicLink(path));
-					} else {
-						handler = new FileHandler(server, path, request, Files.isSymbolicLink(path));
-					}
-					headers = handler.getHeaders();
-					document = handler.getDocument();
-					log.log(Level.FINER, "Read error document for " + code + " from " + siteroot + errorDocPath);
-				} else {
-					throw new IllegalArgumentException("Cannot send error document for non-error code " + code);
-				}
+			ResolvedPath resolved = host.getPathCache().resolve(host.get(code));
+			RequestHandler handler;
+			if (resolved.isDirectory()) {
+				handler = new DirectoryHandler(server, resolved, request);
 			} else {
-				throw new IOException();
+				handler = new FileHandler(server, resolved, request);
 			}
-		} catch (Exception e) {
+			headers = handler.getHeaders();
+			document = handler.getDocument();
+		} catch (IOException e) {
 			log.log(Level.FINER, "Could not read error document for " + code, e);
-			try {
-				
-				/* If the defined error document cannot be read, add a new error message to the message list. */
-				if (!errorDocPath.equals("")) {
-					String newMessage = "Could not read " + errorDocPath + ": " + e.toString();
-					messages.add(newMessage);
-				}
-			} catch (IllegalArgumentException e2) {
-				log.log(Level.FINEST, "Could not create error document for non-error code " + code, e2);
-				String newMessage2 = "Could not create error document: " + e2.toString();
-				messages.add(newMessage2);
-				status = new Status("500");
-			} finally {
-				
-				/* 
-				 * Produce a default ErrorDocument to send in place of a custom one.
-				 * This will display the status and any additional messages.
-				 */
-				document = new ErrorDocument(server, status, messages);
-				headers = new Headers();
-				headers.setHeader("Content-Type", document.getType());
-				headers.setHeader("Content-Length", document.getLength());
-				addGeneralHeaders();
-			}
+			document = new ErrorDocument(server, status, messages);
+			headers = new Headers();
+			headers.setHeader("Content-Type", document.getType());
+			headers.setHeader("Content-Length", document.getLength());
+			addGeneralHeaders();
 		}
 	}
 }
@@ -0,0 +1,192 @@
+package net.donotturnoff.jhttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+
+public class ErrorPages implements FileWatcher.Listener {
+	
+	private final static int maxPages = 256;
+	
+	private final Logger log;
+	private final Config cfg;
+	private final MimeTypes mimeTypes;
+	private final long ttl;
+	private final LinkedHashMap<String, Page> pages;
+	private final ReentrantLock lock;
+	private final AtomicLong hits, misses;
+	
+	public ErrorPages(JHTTP server) throws NumberFormatException {
+		this(server.getLog(), server.getServerConfig(), server.getMimeTypes());
+	}
+	
+	public ErrorPages(Logger log, Config cfg, MimeTypes mimeTypes) throws NumberFormatException {
+		this.log = log;
+		this.cfg = cfg;
+		this.mimeTypes = mimeTypes;
+		
+		/*
+		 * Error responses are rendered to bytes the first time each one is needed, then sent from memory: the body for each host and status is kept,
+		 * up to a fixed number of them, with the least recently used dropped first.
+		 * Messages about the particular request are only shown on the built-in pages, which are rendered afresh whenever there are any.
+		 * Pages made from a host's custom error document are re-read when the watcher reports a change under a root, or after pathcachettl otherwise.
+		 * The built-in pages never change.
+		 */
+		ttl = Long.parseLong(cfg.get("pathcachettl"));
+		pages = new LinkedHashMap<>(64, 0.75f, true);
+		lock = new ReentrantLock();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+	
+	public Page get(Host host, Status status, List<String> messages) {
+		
+		/* Returns null if the host's error document for the status is run by PHP, as its output can't be kept. */
+		Page page = get(host, status);
+		if (page == null || page.notes == null || messages.isEmpty()) {
+			return page;
+		}
+		List<String> allMessages = new ArrayList<>(messages);
+		allMessages.addAll(page.notes);
+		ErrorDocument document = new ErrorDocument(log, cfg, page.status, new ArrayList<>(allMessages));
+		return new Page(page.status, page.path, page.type, document.getData(), page.custom, page.expires, page.notes);
+	}
+	
+	private Page get(Host host, Status status) {
+		String key = host.getHostname() + "\n" + status.getCode();
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			Page page = pages.get(key);
+			if (page != null && now < page.expires) {
+				hits.incrementAndGet();
+				return page;
+			}
+		} finally {
+			lock.unlock();
+		}
+		misses.incrementAndGet();
+		
+		Page page = render(host, status, now);
+		if (page != null) {
+			lock.lock();
+			try {
+				pages.put(key, page);
+				Iterator<Page> iterator = pages.values().iterator();
+				while (pages.size() > maxPages && iterator.hasNext()) {
+					iterator.next();
+					iterator.remove();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return page;
+	}
+	
+	private Page render(Host host, Status status, long now) {
+		
+		/*
+		 * If an error document is defined for the status, it is resolved like a normal resource (a directory gives its index page) and read.
+		 * If it can't be read, the built-in page is used instead, with a message saying why.
+		 * Only error statuses have pages, so anything else becomes a 500.
+		 */
+		String code = status.getCode();
+		String errorDocPath = host.get(code);
+		List<String> notes = new ArrayList<>();
+		if (!status.isError()) {
+			log.log(Level.FINEST, "Could not create error document for non-error code " + code);
+			notes.add("Could not create error document for non-error code " + code);
+			status = new Status("500");
+		} else if (!errorDocPath.equals("")) {
+			try {
+				ResolvedPath resolved = host.getPathCache().resolve(errorDocPath);
+				resolved.checkAccess();
+				ResolvedPath file = resolved.isDirectory() ? resolved.getIndex() : resolved;
+				if (file == null) {
+					throw new NoSuchFileException(errorDocPath, null, "No index page");
+				}
+				file.checkAccess();
+				Path realPath = file.getRealPath();
+				if (mimeTypes.isPHP(realPath)) {
+					return null;
+				}
+				byte[] data = Files.readAllBytes(realPath);
+				log.log(Level.FINER, "Read error document for " + code + " from " + host.get("root") + errorDocPath);
+				return new Page(status, realPath, mimeTypes.getType(realPath), data, true, now + ttl, null);
+			} catch (IOException e) {
+				log.log(Level.FINER, "Could not read error document for " + code, e);
+				notes.add("Could not read " + errorDocPath + ": " + e.toString());
+			}
+		}
+		
+		/* Produce a default ErrorDocument to send in place of a custom one. This will display the status and any additional messages. */
+		ErrorDocument document = new ErrorDocument(log, cfg, status, new ArrayList<>(notes));
+		return new Page(status, Paths.get(""), document.getType(), document.getData(), !errorDocPath.equals(""), errorDocPath.equals("") ? Long.MAX_VALUE : now + ttl, notes);
+	}
+	
+	public void changed(Path path) {
+		/* Any change might affect an error document (or create a missing one), and there are few of them, so all those pages are dropped. */
+		lock.lock();
+		try {
+			pages.values().removeIf(page -> page.custom);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void reset(Path root) {
+		changed(root);
+	}
+	
+	public String toString() {
+		return hits.get() + " hits, " + misses.get() + " misses";
+	}
+	
+	public class Page {
+		
+		private final Status status;
+		private final Path path;
+		private final String type;
+		private final byte[] data;
+		private final boolean custom;
+		private final long expires;
+		private final List<String> notes;
+		
+		public Page(Status status, Path path, String type, byte[] data, boolean custom, long expires, List<String> notes) {
+			
+			/* The notes are the messages from rendering a built-in page, or null for a page read from an error document. */
+			this.status = status;
+			this.path = path;
+			this.type = type;
+			this.data = data;
+			this.custom = custom;
+			this.expires = expires;
+			this.notes = notes;
+		}
+		
+		public Status getStatus() {
+			return status;
+		}
+		
+		public Headers getHeaders() {
+			/* Each response gets its own headers, as handlers add to them. */
+			Headers headers = new Headers();
+			headers.setHeader("Content-Type", type);
+			headers.setHeader("Content-Length", Integer.toString(data.length));
+			return headers;
+		}
+		
+		public byte[] getData() {
+			return data;
+		}
+		
+		public Document getDocument(JHTTP server) {
+			return new CachedDocument(server, path, type, 0, "", data, ByteBuffer.wrap(data).asReadOnlyBuffer());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.*;
+
+public class EventLoop extends Thread {
+	
+	private final JHTTP server;
+	private final Logger log;
+	private final Selector selector;
+	private final WorkerPool workers;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	
+	public EventLoop(JHTTP server, WorkerPool workers) throws IOException {
+		this.server = server;
+		this.log = server.getLog();
+		this.workers = workers;
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<>();
+	}
+	
+	public WorkerPool getWorkers() {
+		return workers;
+	}
+	
+	public void register(ChannelConnection c) {
+		execute(() -> {
+			try {
+				c.register(selector);
+			} catch (ClosedChannelException e) {
+				server.close(c);
+			}
+		});
+	}
+	
+	public void execute(Runnable task) {
+		/* Selector state may only be changed from the loop's own thread, so other threads queue tasks and wake it up. */
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	public void run() {
+		
+		/*
+		 * Main loop of each event loop:
+		 * 1. Wait for sockets to become readable or writable
+		 * 2. Run tasks queued by the acceptor and the workers
+		 * 3. Read requests and write responses without blocking
+		 * 4. Close connections which have been idle for too long
+		 */
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			try {
+				selector.select(1000);
+				
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ChannelConnection c = (ChannelConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							c.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							c.write();
+						}
+					} catch (IOException | CancelledKeyException e) {
+						log.log(Level.FINE, "Connection failed", e);
+						server.close(c);
+					}
+				}
+				
+				long now = System.currentTimeMillis();
+				for (SelectionKey key: selector.keys()) {
+					ChannelConnection c = (ChannelConnection) key.attachment();
+					if (key.isValid() && c.isExpired(now)) {
+						log.log(Level.FINE, "Connection timed out");
+						server.close(c);
+					}
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Event loop failed to select", e);
+			}
+		}
+	}
+}
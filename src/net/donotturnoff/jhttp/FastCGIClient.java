@@ -0,0 +1,176 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+import java.util.logging.*;
+
+public class FastCGIClient {
+	
+	protected final Logger log;
+	protected final int timeout;
+	protected final int bufferSize;
+	protected final ArrayList<FastCGIConnection> connections;
+	protected final ReentrantLock lock;
+	protected int connecting;
+	private final SocketAddress address;
+	private final int maxConnections;
+	private final Condition released;
+	
+	public FastCGIClient(JHTTP server) throws IllegalArgumentException {
+		
+		/*
+		 * A pool of persistent connections to a FastCGI backend such as php-fpm, so PHP scripts are run without starting an interpreter per request.
+		 * The address is either host:port or unix:/path/to/socket.
+		 * Connections are opened as they are needed, up to the configured number, and kept open between requests.
+		 */
+		this(server.getLog(), server.getServerConfig(), parseAddress(server.getServerConfig().get("fastcgiaddress")), Integer.parseInt(server.getServerConfig().get("fastcgiconnections")));
+	}
+	
+	public FastCGIClient(Logger log, Config cfg, SocketAddress address, int maxConnections) throws IllegalArgumentException {
+		
+		/* Up to fastcgibuffersize bytes of each response's output and error output are queued in memory until they are read. */
+		this.log = log;
+		this.address = address;
+		this.maxConnections = maxConnections;
+		this.timeout = Integer.parseInt(cfg.get("fastcgitimeout"));
+		this.bufferSize = Integer.parseInt(cfg.get("fastcgibuffersize"));
+		if (maxConnections < 1 || timeout < 1 || bufferSize < 1) {
+			throw new IllegalArgumentException("FastCGI connections, timeout and buffer size must be positive");
+		}
+		this.connections = new ArrayList<>();
+		this.lock = new ReentrantLock();
+		this.released = lock.newCondition();
+	}
+	
+	private static SocketAddress parseAddress(String address) throws IllegalArgumentException {
+		if (address.startsWith("unix:")) {
+			return UnixDomainSocketAddress.of(address.substring(5));
+		}
+		int colon = address.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("FastCGI address must be host:port or unix:path");
+		}
+		return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+	
+	public Logger getLog() {
+		return log;
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	public FastCGIExchange execute(Map<String, String> environment, RequestBody body) throws IOException {
+		/* Send a request on a connection with room for it and return the exchange from which its response is read. */
+		FastCGIConnection connection = acquire();
+		return connection.begin(environment, body);
+	}
+	
+	protected FastCGIConnection acquire() throws IOException {
+		
+		/*
+		 * Reserve a place on an open connection, opening a new connection if all are full and the limit hasn't been reached.
+		 * Otherwise wait (up to the timeout) for a request to finish.
+		 */
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try {
+			while (true) {
+				connections.removeIf(connection -> !connection.isOpen() && connection.isIdle());
+				for (FastCGIConnection connection: connections) {
+					if (connection.tryReserve()) {
+						return connection;
+					}
+				}
+				if (connections.size() + connecting < maxConnections) {
+					connecting++;
+					break;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("No FastCGI connection available");
+				}
+				try {
+					released.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted while waiting for a FastCGI connection");
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		/* Connect without holding the lock, so other requests can use the existing connections meanwhile. */
+		return open(true);
+	}
+	
+	protected FastCGIConnection open(boolean reserve) throws IOException {
+		
+		/* Open a connection which the caller has already counted in connecting, and add it to the pool. */
+		FastCGIConnection connection = null;
+		try {
+			connection = connect();
+			return connection;
+		} finally {
+			lock.lock();
+			try {
+				connecting--;
+				if (connection != null) {
+					if (reserve) {
+						connection.tryReserve();
+					}
+					connections.add(connection);
+				}
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	protected FastCGIConnection connect() throws IOException {
+		FastCGIConnection connection = new FastCGIConnection(this, address, timeout);
+		log.log(Level.FINE, "Opened FastCGI connection to " + address);
+		return connection;
+	}
+	
+	public void release(FastCGIConnection connection) {
+		/* Called when a request ends. Connections which have closed are dropped from the pool once nothing else is using them. */
+		lock.lock();
+		try {
+			connection.unreserve();
+			if (!connection.isOpen()) {
+				connections.remove(connection);
+			}
+			released.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void wake() {
+		/* Called when a connection turns out to multiplex, so requests waiting for room can use it. */
+		lock.lock();
+		try {
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void close() {
+		lock.lock();
+		try {
+			for (FastCGIConnection connection: new ArrayList<>(connections)) {
+				connection.close(new IOException("FastCGI client closed"));
+			}
+			connections.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
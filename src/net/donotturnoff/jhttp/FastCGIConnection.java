@@ -0,0 +1,352 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+
+public class FastCGIConnection {
+	
+	/* Record types, roles, flags and statuses from the FastCGI specification. */
+	public final static int version = 1;
+	public final static int beginRequest = 1;
+	public final static int abortRequest = 2;
+	public final static int endRequest = 3;
+	public final static int params = 4;
+	public final static int stdin = 5;
+	public final static int stdout = 6;
+	public final static int stderr = 7;
+	public final static int getValues = 9;
+	public final static int getValuesResult = 10;
+	public final static int responder = 1;
+	public final static int keepConnection = 1;
+	public final static int requestComplete = 0;
+	
+	private final static int maxRecordSize = 65535;
+	private final static int maxMultiplexed = 64;
+	
+	private final FastCGIClient client;
+	private final Logger log;
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final ReentrantLock writeLock;
+	private final int timeout;
+	private volatile int maxRequests;
+	private final ConcurrentHashMap<Integer, FastCGIExchange> exchanges;
+	private int reserved;
+	private final AtomicInteger nextId;
+	private volatile boolean open;
+	
+	public FastCGIConnection(FastCGIClient client, SocketAddress address, int timeout) throws IOException {
+		
+		/*
+		 * A persistent connection to a FastCGI backend (over TCP or a Unix domain socket).
+		 * The backend is asked whether it can multiplex requests on one connection; if it can, several requests share the connection, otherwise it carries one at a time.
+		 * Requests are written by the threads making them, and a reader thread hands each record to the request it belongs to.
+		 * Each request buffers a bounded amount of its output; how the reader deals with a request whose output isn't being read is up to the FastCGIExchange.
+		 * Writes are guarded by a ReentrantLock rather than a monitor, so a virtual thread blocked writing to the socket doesn't pin its carrier thread.
+		 */
+		this.client = client;
+		this.log = client.getLog();
+		this.timeout = timeout;
+		this.channel = SocketChannel.open(address);
+		
+		/* The streams from Channels would share one lock between reading and writing, so the channel is wrapped directly. */
+		this.in = new DataInputStream(new BufferedInputStream(new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+			
+			public int read(byte[] b, int off, int len) throws IOException {
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		}));
+		this.out = new BufferedOutputStream(new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+			
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		}, maxRecordSize + 8);
+		this.writeLock = new ReentrantLock();
+		this.exchanges = new ConcurrentHashMap<>();
+		this.nextId = new AtomicInteger(1);
+		this.open = true;
+		this.maxRequests = 1;
+		queryMultiplexing();
+		
+		Thread reader = new Thread(this::readRecords, "FastCGI reader " + address);
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	private void queryMultiplexing() throws IOException {
+		
+		/*
+		 * Ask the backend whether it multiplexes (FCGI_MPXS_CONNS). Until it answers, or if it never does, the connection carries one request at a time.
+		 * The answer is read by the reader thread along with the other records.
+		 */
+		ByteArrayOutputStream query = new ByteArrayOutputStream();
+		writeNameValue(query, "FCGI_MPXS_CONNS", "");
+		writeLock.lock();
+		try {
+			writeRecord(getValues, 0, query.toByteArray(), 0, query.size());
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	public Logger getLog() {
+		return log;
+	}
+	
+	public boolean isMultiplexed() {
+		return maxRequests > 1;
+	}
+	
+	public boolean isOpen() {
+		return open;
+	}
+	
+	public boolean tryReserve() {
+		/* Reserve room for one more request, if the connection has any. Guarded by the client's lock. */
+		if (open && reserved < maxRequests) {
+			reserved++;
+			return true;
+		}
+		return false;
+	}
+	
+	public boolean isIdle() {
+		return reserved == 0;
+	}
+	
+	public void unreserve() {
+		reserved--;
+	}
+	
+	public FastCGIExchange begin(Map<String, String> environment, RequestBody body) throws IOException {
+		
+		/*
+		 * Send a request: BEGIN_REQUEST (asking the backend to keep the connection open), the environment as PARAMS and the body as STDIN.
+		 * Each stream is ended by an empty record. Records of different requests may be interleaved, but each record is written whole.
+		 */
+		FastCGIExchange exchange;
+		int id;
+		do {
+			id = nextId.getAndUpdate(n -> n % 65535 + 1);
+			exchange = new FastCGIExchange(this, id, timeout, client.getBufferSize());
+		} while (exchanges.putIfAbsent(id, exchange) != null);
+		try {
+			byte[] begin = {0, responder, keepConnection, 0, 0, 0, 0, 0};
+			ByteArrayOutputStream environmentBytes = new ByteArrayOutputStream();
+			for (Map.Entry<String, String> entry: environment.entrySet()) {
+				writeNameValue(environmentBytes, entry.getKey(), entry.getValue());
+			}
+			writeLock.lock();
+			try {
+				writeRecord(beginRequest, id, begin, 0, begin.length);
+				writeStream(params, id, environmentBytes.toByteArray(), environmentBytes.size());
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+			
+			byte[] buffer = new byte[32768];
+			try (InputStream bodyIn = body.getInputStream()) {
+				int count;
+				while ((count = bodyIn.read(buffer)) > 0) {
+					writeLock.lock();
+					try {
+						writeRecord(stdin, id, buffer, 0, count);
+					} finally {
+						writeLock.unlock();
+					}
+				}
+			}
+			writeLock.lock();
+			try {
+				writeRecord(stdin, id, buffer, 0, 0);
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (IOException e) {
+			
+			/* If the connection had already been closed, the exchange wasn't failed by close(), so its place is released here. */
+			close(e);
+			if (exchanges.remove(id) != null) {
+				client.release(this);
+			}
+			throw e;
+		}
+		return exchange;
+	}
+	
+	private void writeStream(int type, int id, byte[] data, int length) throws IOException {
+		for (int offset = 0; offset < length; offset += maxRecordSize) {
+			writeRecord(type, id, data, offset, Math.min(maxRecordSize, length - offset));
+		}
+		writeRecord(type, id, data, 0, 0);
+	}
+	
+	private void writeRecord(int type, int id, byte[] data, int offset, int length) throws IOException {
+		
+		/* Record header: version, type, request ID, content length, padding length and a reserved byte. Content is padded to a multiple of 8 bytes. */
+		int padding = (8 - length % 8) % 8;
+		out.write(new byte[] {version, (byte) type, (byte) (id >> 8), (byte) id, (byte) (length >> 8), (byte) length, (byte) padding, 0});
+		out.write(data, offset, length);
+		out.write(new byte[padding]);
+	}
+	
+	private static void writeNameValue(OutputStream pairs, String name, String value) throws IOException {
+		byte[] nameBytes = name.getBytes();
+		byte[] valueBytes = value.getBytes();
+		writeLength(pairs, nameBytes.length);
+		writeLength(pairs, valueBytes.length);
+		pairs.write(nameBytes);
+		pairs.write(valueBytes);
+	}
+	
+	private static void writeLength(OutputStream pairs, int length) throws IOException {
+		/* Lengths under 128 take one byte; longer ones take four, with the top bit set. */
+		if (length < 128) {
+			pairs.write(length);
+		} else {
+			pairs.write(new byte[] {(byte) ((length >> 24) | 0x80), (byte) (length >> 16), (byte) (length >> 8), (byte) length});
+		}
+	}
+	
+	private static Map<String, String> readNameValues(byte[] content) {
+		Map<String, String> values = new HashMap<>();
+		int i = 0;
+		while (i < content.length) {
+			int[] lengths = new int[2];
+			for (int j = 0; j < 2; j++) {
+				int length = content[i] & 0xff;
+				if (length >= 128) {
+					length = ((length & 0x7f) << 24) | ((content[i + 1] & 0xff) << 16) | ((content[i + 2] & 0xff) << 8) | (content[i + 3] & 0xff);
+					i += 4;
+				} else {
+					i++;
+				}
+				lengths[j] = length;
+			}
+			String name = new String(content, i, lengths[0]);
+			String value = new String(content, i + lengths[0], lengths[1]);
+			values.put(name, value);
+			i += lengths[0] + lengths[1];
+		}
+		return values;
+	}
+	
+	private byte[] readContent() throws IOException {
+		/* Read the rest of a record after its type and request ID: the content and its padding. */
+		int length = in.readUnsignedShort();
+		int padding = in.readUnsignedByte();
+		in.readUnsignedByte();
+		byte[] content = new byte[length];
+		in.readFully(content);
+		in.skipNBytes(padding);
+		return content;
+	}
+	
+	private void readRecords() {
+		
+		/* Run by the reader thread: read records until the connection fails or is closed, passing each one to its request. */
+		try {
+			while (open) {
+				in.readUnsignedByte();
+				int type = in.readUnsignedByte();
+				int id = in.readUnsignedShort();
+				byte[] content = readContent();
+				if (type == getValuesResult) {
+					if ("1".equals(readNameValues(content).get("FCGI_MPXS_CONNS"))) {
+						maxRequests = maxMultiplexed;
+						client.wake();
+					}
+					continue;
+				}
+				FastCGIExchange exchange = exchanges.get(id);
+				if (exchange == null) {
+					continue;
+				}
+				if (type == stdout) {
+					exchange.addOutput(content);
+				} else if (type == stderr) {
+					exchange.addErrors(content);
+				} else if (type == endRequest) {
+					int appStatus = ((content[0] & 0xff) << 24) | ((content[1] & 0xff) << 16) | ((content[2] & 0xff) << 8) | (content[3] & 0xff);
+					if (exchanges.remove(id, exchange)) {
+						exchange.finish(appStatus, content[4] & 0xff);
+						client.release(this);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (open) {
+				log.log(Level.FINE, "FastCGI connection closed", e);
+			}
+			close(e);
+		}
+	}
+	
+	public void abort(FastCGIExchange exchange) {
+		
+		/*
+		 * Give up on a request which has timed out.
+		 * On a multiplexed connection the backend is asked to abort it (and it is released when the backend ends it); otherwise the connection is closed.
+		 */
+		if (isMultiplexed()) {
+			try {
+				writeLock.lock();
+				try {
+					writeRecord(abortRequest, exchange.getId(), new byte[0], 0, 0);
+					out.flush();
+				} finally {
+					writeLock.unlock();
+				}
+				return;
+			} catch (IOException e) {
+				log.log(Level.FINE, "Could not abort FastCGI request", e);
+			}
+		}
+		close(new SocketTimeoutException("FastCGI request timed out"));
+	}
+	
+	public void close(IOException reason) {
+		
+		/* Close the connection and fail any requests still waiting on it. */
+		if (!open) {
+			return;
+		}
+		open = false;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not close FastCGI connection", e);
+		}
+		
+		/* Each exchange is failed by whichever removes it from the map first, here or in begin(). */
+		for (Integer id: exchanges.keySet()) {
+			FastCGIExchange exchange = exchanges.remove(id);
+			if (exchange != null) {
+				exchange.fail(reason);
+				client.release(this);
+			}
+		}
+	}
+}
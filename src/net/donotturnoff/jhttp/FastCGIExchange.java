@@ -0,0 +1,320 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.logging.Level;
+
+public class FastCGIExchange {
+	
+	private final FastCGIConnection connection;
+	private final int id;
+	private final int timeout;
+	private final int bufferSize;
+	private final RecordStream output;
+	private final RecordStream errors;
+	private final CountDownLatch ended;
+	private volatile IOException failure;
+	private int appStatus;
+	private int protocolStatus;
+	
+	public FastCGIExchange(FastCGIConnection connection, int id, int timeout, int bufferSize) {
+		
+		/*
+		 * One request to a FastCGI backend, identified by its request ID on the connection.
+		 * Records for it are read by the connection's reader and queued here, so several requests can share a connection.
+		 * Its stdout and stderr are exposed as streams which block (up to the timeout) until the backend sends more.
+		 * The error output is only read once the request has ended, so the reader must never wait for it to be read;
+		 * only the first part of it is kept, and the rest is dropped.
+		 */
+		this.connection = connection;
+		this.id = id;
+		this.timeout = timeout;
+		this.bufferSize = bufferSize;
+		this.output = new RecordStream(false);
+		this.errors = new RecordStream(true);
+		this.ended = new CountDownLatch(1);
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public InputStream getOutput() {
+		return output;
+	}
+	
+	public InputStream getErrors() {
+		return errors;
+	}
+	
+	public int getAppStatus() throws IOException {
+		
+		/* Wait for the end of the request and return the script's exit status. */
+		try {
+			if (!ended.await(timeout, TimeUnit.MILLISECONDS)) {
+				timeOut();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for FastCGI request");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		if (protocolStatus != FastCGIConnection.requestComplete) {
+			throw new IOException("FastCGI request refused with protocol status " + protocolStatus);
+		}
+		return appStatus;
+	}
+	
+	private void timeOut() {
+		/* A request which has timed out counts as failed even if the backend finishes it later. */
+		failure = new SocketTimeoutException("FastCGI request timed out");
+		connection.abort(this);
+	}
+	
+	public void addOutput(byte[] data) {
+		if (data.length == 0) {
+			output.end();
+		} else {
+			output.add(data);
+		}
+	}
+	
+	public void addErrors(byte[] data) {
+		if (data.length == 0) {
+			errors.end();
+		} else {
+			errors.add(data);
+		}
+	}
+	
+	public void finish(int appStatus, int protocolStatus) {
+		this.appStatus = appStatus;
+		this.protocolStatus = protocolStatus;
+		output.end();
+		errors.end();
+		ended.countDown();
+	}
+	
+	public void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		output.end();
+		errors.end();
+		ended.countDown();
+	}
+	
+	private class RecordStream extends InputStream {
+		
+		private final boolean errorsOnly;
+		private final ReentrantLock lock;
+		private final Condition added;
+		private final Condition drained;
+		private final ArrayDeque<byte[]> records;
+		private int queued;
+		private long received;
+		private FileChannel spill;
+		private long spillWritten;
+		private long spillRead;
+		private boolean ended;
+		private boolean closed;
+		private byte[] current;
+		private int position;
+		
+		public RecordStream(boolean errorsOnly) {
+			
+			/*
+			 * Records are queued in memory up to the buffer size. Past that, what the connection's reader does depends on whether others share the connection:
+			 * if the connection only carries this request, the reader waits (up to the timeout) for the records to be read, so a slow client slows the backend down;
+			 * if it is multiplexed, the excess goes to a temporary file, so the other requests aren't held up.
+			 * Once anything is in the file, later records go there too, so they are read in the order they arrived.
+			 * The error stream is only read once the request has ended, so it keeps the first part of the errors in memory and drops the rest.
+			 */
+			this.errorsOnly = errorsOnly;
+			this.lock = new ReentrantLock();
+			this.added = lock.newCondition();
+			this.drained = lock.newCondition();
+			this.records = new ArrayDeque<>();
+			this.current = new byte[0];
+		}
+		
+		public void add(byte[] data) {
+			boolean timedOut = false;
+			lock.lock();
+			try {
+				if (errorsOnly) {
+					long kept = Math.min(data.length, Math.max(0, PHPDocument.maxErrorSize - received));
+					received += data.length;
+					if (kept < data.length) {
+						data = Arrays.copyOf(data, (int) kept);
+					}
+					if (data.length == 0) {
+						return;
+					}
+				} else if (!connection.isMultiplexed()) {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+					while (!closed && !ended && queued > 0 && queued + data.length > bufferSize) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							timedOut = true;
+							break;
+						}
+						drained.awaitNanos(remaining);
+					}
+				}
+				if (closed || ended || timedOut) {
+					return;
+				}
+				if (!errorsOnly && (spillWritten > spillRead || queued + data.length > bufferSize)) {
+					writeSpill(data);
+				} else {
+					records.add(data);
+					queued += data.length;
+				}
+				added.signal();
+			} catch (InterruptedException e) {
+				timedOut = true;
+			} finally {
+				lock.unlock();
+				if (timedOut) {
+					timeOut();
+				}
+			}
+		}
+		
+		private void writeSpill(byte[] data) {
+			/* Called with the lock held. If the file can't be written, the request fails rather than losing part of its output. */
+			try {
+				if (spill == null) {
+					Path file = Files.createTempFile("jhttp-", ".fastcgi");
+					spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining()) {
+					spillWritten += spill.write(buffer, spillWritten + buffer.position());
+				}
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				}
+				ended = true;
+				closeSpill();
+			}
+		}
+		
+		public void end() {
+			lock.lock();
+			try {
+				ended = true;
+				added.signalAll();
+				drained.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public int available() {
+			/* What is left of the current record and the records already queued (in memory or in the file) can be read without waiting for the backend. */
+			lock.lock();
+			try {
+				return (int) Math.min(Integer.MAX_VALUE, current.length - position + queued + spillWritten - spillRead);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+		
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (position == current.length) {
+					if (!records.isEmpty()) {
+						current = records.poll();
+						position = 0;
+						queued -= current.length;
+						drained.signal();
+					} else if (spillRead < spillWritten) {
+						int count = spill.read(ByteBuffer.wrap(b, off, (int) Math.min(len, spillWritten - spillRead)), spillRead);
+						spillRead += count;
+						if (spillRead == spillWritten) {
+							
+							/* The file has been read to the end, so it is emptied and records go back to memory. */
+							spill.truncate(0);
+							spillRead = 0;
+							spillWritten = 0;
+						}
+						return count;
+					} else if (ended || closed) {
+						closeSpill();
+						if (failure != null) {
+							throw failure;
+						}
+						return -1;
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							break;
+						}
+						added.awaitNanos(remaining);
+					}
+				}
+				if (position < current.length) {
+					int count = Math.min(len, current.length - position);
+					System.arraycopy(current, position, b, off, count);
+					position += count;
+					return count;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading FastCGI response");
+			} finally {
+				lock.unlock();
+			}
+			timeOut();
+			throw failure;
+		}
+		
+		public void close() {
+			/* Anything not yet read is thrown away, and later records for this stream are dropped. */
+			lock.lock();
+			try {
+				closed = true;
+				records.clear();
+				queued = 0;
+				current = new byte[0];
+				position = 0;
+				closeSpill();
+				drained.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		private void closeSpill() {
+			if (spill != null) {
+				try {
+					spill.close();
+				} catch (IOException e) {
+					connection.getLog().log(Level.FINE, "Could not close FastCGI spill file", e);
+				}
+				spill = null;
+				spillRead = 0;
+				spillWritten = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public class FileDocument extends Document {
+	
+	private final static int bufferSize = 8192;
+	
+	private final long size;
+	
+	public FileDocument(JHTTP server, Path path) throws IOException {
+		super(server);
+		
+		/* Only the file's metadata is read here; the contents are sent straight from the file when the response is written. */
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		this.path = path;
+		size = attributes.size();
+		lastModified = attributes.lastModifiedTime().toMillis();
+		
+		/* The default entity tag is derived from the modification time and size, so it can be produced without reading the file. */
+		etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+		type = server.getMimeTypes().getType(path);
+		data = null;
+	}
+	
+	public byte[] getData() {
+		/* Only needed by callers which can't stream, so the file is read into memory on demand. */
+		if (data == null) {
+			try {
+				data = Files.readAllBytes(path);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return data;
+	}
+	
+	public int getLengthInt() {
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	public String getLength() {
+		return Long.toString(size);
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public void sendRange(Connection conn, long start, long length) throws IOException {
+		conn.sendFile(path, start, length);
+	}
+	
+	public void writeRange(OutputStream out, long start, long length) throws IOException {
+		
+		/* Stream the file through a small buffer, never sending more than the length which was asked for. */
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			InputStream in = Channels.newInputStream(file.position(start));
+			byte[] buffer = new byte[bufferSize];
+			long remaining = length;
+			int count;
+			while (remaining > 0 && (count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+				out.write(buffer, 0, count);
+				remaining -= count;
+			}
+		}
+	}
+}
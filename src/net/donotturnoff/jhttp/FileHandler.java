@@ -2,9 +2,10 @@ package net.donotturnoff.jhttp;
 
 import java.io.*;
 import java.nio.file.*;
+import java.util.*;
 
 public class FileHandler extends RequestHandler {
-	public FileHandler(JHTTP server, Path path, Request request, boolean isSymlink) {
+	public FileHandler(JHTTP server, ResolvedPath resolved, Request request) {
 		super(server);
 		this.request = request;
 		Host host = request.getHost();
@@ -12,48 +13,56 @@ public class FileHandler extends RequestHandler {
 		RequestHandler handler = null;
 		
 		try {
-			File file = new File(path.toString());
-			
-			/* If the file exists but cannot be read, issue a 403. */
-			boolean exists = file.exists();
-			boolean readable = file.canRead();
-			if (exists && !readable) {
-				throw new AccessDeniedException("No read privilege");
-			}
-			
-			Path root = Paths.get(host.get("root")).toRealPath();
-			Path realPath = path.toRealPath();
-			
 			/* 
-			 * If the resource is accessed by following a symlink but the config forbids symlinks, issue a 403.
-			 * Alternatively, if the resource is not accessed via a symlink but is outside of the www root, issue a 403.
+			 * If the file cannot be read, is accessed by following a symlink but the config forbids symlinks, or is not accessed via a symlink but
+			 * is outside of the www root, issue a 403.
 			 */
-			if (isSymlink) {
-				if (!host.get("symlinks").equals("yes")) {
-					throw new AccessDeniedException("Cannot follow symlinks");
-				}
-			} else if (!path.startsWith(root)) {
-				throw new AccessDeniedException("Cannot access other parts of filesystem");
-			}
+			resolved.checkAccess();
+			Path realPath = resolved.getRealPath();
 			
 			/*
 			 * If the resource is a PHP document, delegate to a PHP handler.
 			 * Otherwise, produce the status, document and some headers.
 			 */
-			if (PHPHandler.isPHP(realPath)) {
-				handler = new PHPHandler(server, request);
+			if (server.getMimeTypes().isPHP(realPath)) {
+				handler = new PHPHandler(server, request, realPath);
 				status = handler.getStatus();
 				headers = handler.getHeaders();
 				document = handler.getDocument();
 			} else {
-				status = new Status("200");
-				document = new Document(server, realPath);
+				
+				/*
+				 * The file's attributes are read first so that conditional requests can be answered without reading its contents.
+				 * Hashed ETags come from the cache, so in that case the document is fetched from the cache before the conditions are checked.
+				 */
+				boolean cache = host.get("cache").equals("yes");
+				FileDocument fileDocument = new FileDocument(server, realPath);
+				document = fileDocument;
+				if (cache && cfg.get("etag").equals("hash")) {
+					document = server.getContentCache().get(fileDocument);
+				}
 				headers = new Headers();
-				headers.setHeader("Content-Type", document.getType());
-				headers.setHeader("Content-Length", document.getLength());
+				headers.setHeader("ETag", document.getETag());
+				headers.setHeader("Last-Modified", formatDate(document.getLastModified()));
+				if (isNotModified()) {
+					status = new Status("304");
+					document = new Document(server);
+				} else {
+					status = new Status("200");
+					if (cache && document == fileDocument) {
+						document = server.getContentCache().get(fileDocument);
+					}
+					headers.setHeader("Content-Type", document.getType());
+					headers.setHeader("Content-Length", document.getLength());
+					headers.setHeader("Accept-Ranges", "bytes");
+					handler = handleRange();
+				}
 			}
 		} catch (NoSuchFileException | FileNotFoundException e) {
-			handler = new ErrorHandler(server, request, new Status("404"), e.getMessage());
+			
+			/* The file was removed after its path was resolved, so the resolution is dropped from the cache. */
+			host.getPathCache().invalidate(request.getPath());
+			handler = new ErrorHandler(server, request, new Status("404"));
 		} catch (AccessDeniedException e) {
 			handler = new ErrorHandler(server, request, new Status("403"), e.getMessage());
 		} catch (IOException e) {
@@ -66,4 +75,93 @@ public class FileHandler extends RequestHandler {
 			}
 		}
 	}
+	
+	private boolean isNotModified() {
+		
+		/*
+		 * Check the conditional headers of a GET or HEAD request against the document.
+		 * If-None-Match takes precedence over If-Modified-Since and uses weak comparison, so a compressed variant's ETag still matches.
+		 * HTTP dates only have a precision of one second, so modification times are compared in whole seconds.
+		 */
+		String verb = request.getVerb();
+		if (!(verb.equals("GET") || verb.equals("HEAD"))) {
+			return false;
+		}
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (!ifNoneMatch.equals("")) {
+			String etag = getOpaqueTag(document.getETag());
+			for (String tag: ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || getOpaqueTag(tag).equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = request.getHeader("If-Modified-Since");
+		if (!ifModifiedSince.equals("")) {
+			long date = parseDate(ifModifiedSince);
+			return date >= 0 && document.getLastModified() / 1000 <= date / 1000;
+		}
+		return false;
+	}
+	
+	private static String getOpaqueTag(String etag) {
+		/* Strip the weakness indicator and any content coding suffix added to the ETags of compressed responses. */
+		if (etag.startsWith("W/")) {
+			etag = etag.substring(2);
+		}
+		for (String suffix: new String[] {"-gzip\"", "-deflate\""}) {
+			if (etag.endsWith(suffix)) {
+				etag = etag.substring(0, etag.length() - suffix.length()) + "\"";
+			}
+		}
+		return etag;
+	}
+	
+	private RequestHandler handleRange() {
+		
+		/*
+		 * If the client asked for part of the document, send only those ranges with a 206.
+		 * If-Range (a date or an ETag) makes this conditional on the document being unchanged; if it has changed, the whole document is sent.
+		 * If none of the ranges lie within the document, issue a 416.
+		 */
+		String range = request.getHeader("Range");
+		String verb = request.getVerb();
+		if (range.equals("") || !(verb.equals("GET") || verb.equals("HEAD"))) {
+			return null;
+		}
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange.startsWith("\"")) {
+			
+			/* An entity tag in If-Range must match strongly. */
+			if (!ifRange.trim().equals(document.getETag())) {
+				return null;
+			}
+		} else if (!ifRange.equals("")) {
+			long date = parseDate(ifRange);
+			if (date < 0 || date / 1000 != document.getLastModified() / 1000) {
+				return null;
+			}
+		}
+		
+		List<long[]> ranges = RangeDocument.parseRanges(range, document.getSize());
+		if (ranges == null) {
+			return null;
+		} else if (ranges.isEmpty()) {
+			RequestHandler handler = new ErrorHandler(server, request, new Status("416"));
+			handler.getHeaders().setHeader("Content-Range", "bytes */" + document.getSize());
+			return handler;
+		}
+		
+		RangeDocument rangeDocument = new RangeDocument(document, ranges);
+		status = new Status("206");
+		document = rangeDocument;
+		headers.setHeader("Content-Type", document.getType());
+		headers.setHeader("Content-Length", document.getLength());
+		if (ranges.size() == 1) {
+			headers.setHeader("Content-Range", rangeDocument.getContentRange());
+		}
+		return null;
+	}
 }
@@ -0,0 +1,172 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.*;
+
+public class FileWatcher extends Thread {
+	
+	private final static int maxDelays = 10;
+	
+	private final Logger log;
+	private final WatchService watcher;
+	private final HashMap<WatchKey, Path> directories;
+	private final LinkedHashMap<Path, List<Listener>> listeners;
+	private final long delay;
+	
+	public FileWatcher(JHTTP server) throws IOException, NumberFormatException {
+		super("File watcher");
+		setDaemon(true);
+		this.log = server.getLog();
+		
+		/*
+		 * Watches every directory under the hosts' roots, including directories created later, and tells the caches which paths have changed.
+		 * Changes usually come in bursts (e.g. a deploy), so they are collected until there have been none for watchdelay milliseconds
+		 * (or for at most ten times that), and each changed path is then published once.
+		 * If the operating system drops events, every directory is registered again and the caches are told to forget everything under the roots.
+		 */
+		watcher = FileSystems.getDefault().newWatchService();
+		directories = new HashMap<>();
+		listeners = new LinkedHashMap<>();
+		delay = Long.parseLong(server.getServerConfig().get("watchdelay"));
+	}
+	
+	public synchronized void watch(Path root, Listener listener) throws IOException {
+		/* Tell the listener about changes to files under the root, which is registered (with its subdirectories) if it isn't already. */
+		if (!listeners.containsKey(root)) {
+			listeners.put(root, new ArrayList<>());
+			register(root);
+		}
+		listeners.get(root).add(listener);
+	}
+	
+	private synchronized void register(Path start) throws IOException {
+		
+		/* Symlinked directories aren't followed: anything reached through a symlink outside the roots is only revalidated by the caches' TTLs. */
+		Files.walkFileTree(start, new SimpleFileVisitor<>() {
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+				directories.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				log.log(Level.FINE, "Could not watch " + file, e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	public void run() {
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			try {
+				Set<Path> changed = new LinkedHashSet<>();
+				boolean overflowed = false;
+				WatchKey key = watcher.take();
+				for (int delays = 0; key != null; delays++) {
+					overflowed |= collect(key, changed);
+					key = delays < maxDelays ? watcher.poll(delay, TimeUnit.MILLISECONDS) : null;
+				}
+				if (overflowed) {
+					log.log(Level.WARNING, "File watcher overflowed, revalidating all caches");
+					reset();
+				} else {
+					publish(changed);
+				}
+			} catch (InterruptedException e) {
+				log.log(Level.WARNING, "File watcher interrupted", e);
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+		}
+	}
+	
+	private boolean collect(WatchKey key, Set<Path> changed) {
+		
+		/* Add the paths changed in a directory to the set, registering any new subdirectories. Returns true if events were lost. */
+		boolean overflowed = false;
+		Path dir;
+		synchronized (this) {
+			dir = directories.get(key);
+		}
+		for (WatchEvent<?> event: key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflowed = true;
+			} else if (dir != null) {
+				Path path = dir.resolve((Path) event.context());
+				changed.add(path);
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						register(path);
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Could not watch new directory " + path, e);
+					}
+				}
+			}
+		}
+		
+		/* A key which can't be reset belongs to a directory which has been deleted. */
+		if (!key.reset()) {
+			synchronized (this) {
+				directories.remove(key);
+			}
+		}
+		return overflowed;
+	}
+	
+	private void publish(Set<Path> changed) {
+		for (Path path: changed) {
+			log.log(Level.FINER, "Changed: " + path);
+			for (Listener listener: getListeners(path)) {
+				listener.changed(path);
+			}
+		}
+	}
+	
+	private void reset() {
+		Set<Path> roots;
+		synchronized (this) {
+			roots = new LinkedHashSet<>(listeners.keySet());
+		}
+		for (Path root: roots) {
+			try {
+				register(root);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not watch " + root, e);
+			}
+			for (Listener listener: getListeners(root)) {
+				listener.reset(root);
+			}
+		}
+	}
+	
+	private synchronized List<Listener> getListeners(Path path) {
+		List<Listener> found = new ArrayList<>();
+		listeners.forEach((root, rootListeners) -> {
+			if (path.startsWith(root)) {
+				found.addAll(rootListeners);
+			}
+		});
+		return found;
+	}
+	
+	public void close() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not close file watcher", e);
+		}
+	}
+	
+	public interface Listener {
+		
+		/* Called with the path of a file or directory under a watched root which has been created, deleted or modified. */
+		void changed(Path path);
+		
+		/* Called when changes under the root may have been missed, so that anything cached from it must be revalidated. */
+		void reset(Path root);
+	}
+}
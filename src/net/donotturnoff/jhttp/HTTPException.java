@@ -0,0 +1,20 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+
+public class HTTPException extends IOException {
+	
+	/* An error in a request which should be answered with a particular status, e.g. 400 or 431. */
+	private final static long serialVersionUID = 1L;
+	
+	private final Status status;
+	
+	public HTTPException(Status status, String message) {
+		super(message);
+		this.status = status;
+	}
+	
+	public Status getStatus() {
+		return status;
+	}
+}
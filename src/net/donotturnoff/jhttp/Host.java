@@ -6,6 +6,7 @@ public class Host {
 	private final String hostname;
 	private final Config hostConfig;
 	private final HashMap<String, Config> documentConfigs;
+	private PathCache paths;
 	
 	public Host(String hostname, Config hostConfig, HashMap<String, Config> documentConfigs) {
 		this.hostname = hostname;
@@ -21,6 +22,23 @@ public class Host {
 		return hostConfig.get(key);
 	}
 	
+	public String get(String path, String key) {
+		/* A setting for a document, falling back to the host's setting (or the default) if the document doesn't have one. */
+		Config config = documentConfigs.get(path);
+		if (config != null && config.getConfig().containsKey(key)) {
+			return config.get(key);
+		}
+		return hostConfig.get(key);
+	}
+	
+	public PathCache getPathCache() {
+		return paths;
+	}
+	
+	public void setPathCache(PathCache paths) {
+		this.paths = paths;
+	}
+	
 	public String[] getIndexPages() {
 		/* Parse index page list (CSV-like). */
 		return hostConfig.get("index").split(",");
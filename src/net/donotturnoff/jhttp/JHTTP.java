@@ -2,7 +2,9 @@ package net.donotturnoff.jhttp;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import javax.naming.ConfigurationException;
 
@@ -21,7 +23,18 @@ public class JHTTP {
 	private final Logger log;
 	private Config serverConfig;
 	private HashMap<String, Host> hosts;
-	private final ArrayList<Connection> connections;
+	private MimeTypes mimeTypes;
+	private ContentCache contentCache;
+	private PHPCache phpCache;
+	private ListingCache listingCache;
+	private ErrorPages errorPages;
+	private CompressionPolicy compressionPolicy;
+	private FastCGIClient fastCGIClient;
+	private ErrorDrain errorDrain;
+	private FileWatcher fileWatcher;
+	private WorkerPool workers;
+	private final Set<Connection> connections;
+	private byte[] overloadResponse;
 	
 	public JHTTP() {
 		log = Logger.getLogger(JHTTP.class.getName());
@@ -37,7 +50,10 @@ public class JHTTP {
 			log.log(Level.INFO, "Resorting to console logging only");
 		}
 		
-		/* Check that the root directory of every virtual host defined in the config file exists and is readable. */
+		/*
+		 * Check that the root directory of every virtual host defined in the config file exists and is readable.
+		 * Each host then gets a cache of resolved paths, which also resolves its root once for all requests.
+		 */
 		for (Host host: hosts.values()) {
 			String root = host.get("root");
 			File rootDir = new File(root);
@@ -45,9 +61,90 @@ public class JHTTP {
 				log.log(Level.SEVERE, "Could not read www directory for " + host.getHostname());
 				exit(3);
 			}
+			try {
+				host.setPathCache(new PathCache(this, host));
+			} catch (IOException | NumberFormatException e) {
+				log.log(Level.SEVERE, "Could not resolve www directory for " + host.getHostname(), e);
+				exit(3);
+			}
+		}
+		
+		mimeTypes = new MimeTypes(this);
+		
+		/* Connections are added by the accepting thread and removed by the connections' own threads, so the registry must be concurrent. */
+		connections = ConcurrentHashMap.newKeySet();
+		overloadResponse = createOverloadResponse();
+		
+		try {
+			contentCache = new ContentCache(this);
+			phpCache = new PHPCache(this);
+			listingCache = new ListingCache(this);
+			errorPages = new ErrorPages(this);
+		} catch (NumberFormatException e) {
+			log.log(Level.SEVERE, "Invalid content cache size", e);
+			exit(1);
+		}
+		
+		try {
+			compressionPolicy = new CompressionPolicy(serverConfig);
+		} catch (IllegalArgumentException e) {
+			log.log(Level.SEVERE, "Invalid compression settings", e);
+			exit(1);
+		}
+		
+		/*
+		 * With watching turned on, the caches hear about changes to files under the hosts' roots as they happen, rather than only noticing them
+		 * when their entries expire or are next validated.
+		 */
+		if (serverConfig.get("watch").equals("yes")) {
+			try {
+				fileWatcher = new FileWatcher(this);
+				for (Host host: hosts.values()) {
+					PathCache paths = host.getPathCache();
+					fileWatcher.watch(paths.getRoot(), paths);
+					fileWatcher.watch(paths.getRoot(), contentCache);
+					fileWatcher.watch(paths.getRoot(), listingCache);
+					fileWatcher.watch(paths.getRoot(), errorPages);
+				}
+				fileWatcher.start();
+			} catch (IOException | NumberFormatException e) {
+				log.log(Level.WARNING, "Could not watch www directories, relying on cache expiry instead", e);
+				if (fileWatcher != null) {
+					fileWatcher.close();
+					fileWatcher = null;
+				}
+			}
 		}
 		
-		connections = new ArrayList<>(20);
+		/* PHP is run by php-cgi by default, or by a FastCGI backend (such as php-fpm) or a pool of php-cgi workers if one is configured. */
+		try {
+			if (serverConfig.get("php").equals("fastcgi")) {
+				fastCGIClient = new FastCGIClient(this);
+			} else if (serverConfig.get("php").equals("pool")) {
+				fastCGIClient = new PHPWorkerPool(this);
+			} else {
+				errorDrain = new ErrorDrain(this);
+				errorDrain.start();
+			}
+		} catch (IllegalArgumentException | IOException e) {
+			log.log(Level.SEVERE, "Invalid FastCGI settings", e);
+			exit(1);
+		}
+	}
+	
+	private byte[] createOverloadResponse() {
+		/* The 503 sent when the server is overloaded is rendered once, as it must be sent without reading or handling the request. */
+		Document document = new ErrorDocument(this, new Status("503"));
+		String head = serverConfig.get("defaultprotocol") + " " + new Status("503").getStatus() + "\r\n"
+				+ "Server: " + server + "\r\n"
+				+ "Content-Type: " + document.getType() + "\r\n"
+				+ "Content-Length: " + document.getLength() + "\r\n"
+				+ "Retry-After: 1\r\n"
+				+ "Connection: close\r\n\r\n";
+		byte[] headBytes = head.getBytes();
+		byte[] response = Arrays.copyOf(headBytes, headBytes.length + document.getLengthInt());
+		System.arraycopy(document.getData(), 0, response, headBytes.length, document.getLengthInt());
+		return response;
 	}
 	
 	private void loadConfig() {
@@ -78,6 +175,50 @@ public class JHTTP {
 		return hosts;
 	}
 	
+	public byte[] getOverloadResponse() {
+		return overloadResponse;
+	}
+	
+	public MimeTypes getMimeTypes() {
+		return mimeTypes;
+	}
+	
+	public ContentCache getContentCache() {
+		return contentCache;
+	}
+	
+	public ListingCache getListingCache() {
+		return listingCache;
+	}
+	
+	public ErrorPages getErrorPages() {
+		return errorPages;
+	}
+	
+	public PHPCache getPHPCache() {
+		return phpCache;
+	}
+	
+	public CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+	
+	public WorkerPool getWorkers() {
+		return workers;
+	}
+	
+	public FastCGIClient getFastCGIClient() {
+		return fastCGIClient;
+	}
+	
+	public ErrorDrain getErrorDrain() {
+		return errorDrain;
+	}
+	
+	public int getConnectionCount() {
+		return connections.size();
+	}
+	
 	public Host getHost(String hostname) {
 		Host host = hosts.get(hostname);
 		if (host == null) {
@@ -94,11 +235,51 @@ public class JHTTP {
 	}
 	
 	public void start() {
+		/* 
+		 * Handle connections either with one thread per connection or with a set of non-blocking event loops, as configured.
+		 * Connections are either given their own platform or virtual threads without limit, or run by a bounded pool of worker threads.
+		 */
+		String mode = serverConfig.get("mode");
+		try {
+			if (mode.equals("nio") || mode.equals("pool")) {
+				workers = new WorkerPool(this);
+			} else if (mode.equals("virtual")) {
+				workers = new WorkerPool(this, createVirtualThreadExecutor());
+			} else {
+				workers = new WorkerPool(this, task -> new Thread(task).start());
+			}
+			if (mode.equals("nio")) {
+				startEventLoops(workers);
+			} else {
+				startThreads(workers);
+			}
+		} catch (IllegalArgumentException e) {
+			log.log(Level.SEVERE, "Could not create worker pool", e);
+			exit(2);
+		}
+	}
+	
+	private ExecutorService createVirtualThreadExecutor() {
+		/* Virtual threads only exist from Java 21, so the executor is looked up reflectively and platform threads are used otherwise. */
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.log(Level.WARNING, "Virtual threads are not supported by this JVM", e);
+			log.log(Level.INFO, "Resorting to platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	private void startThreads(WorkerPool pool) {
 		/* Determine port to start server on and handle any errors which may arise. */
 		int port = 0;
 		try {
 			port = Integer.parseInt(serverConfig.get("port"));
-			s = new ServerSocket(port);
+			
+			/* The server socket is opened through a channel so that accepted sockets have channels to send files on. */
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			s = serverChannel.socket();
 			log.log(Level.INFO, "Server started on port " + port + " as " + System.getProperty("user.name"));
 		} catch (IOException | NumberFormatException e) {
 			log.log(Level.SEVERE, "Could not start server on port " + port, e);
@@ -108,8 +289,9 @@ public class JHTTP {
 		/*
 		 * Main loop of server:
 		 * 1. Accept new connection
-		 * 2. Create new threaded Connection object to handle it
-		 * 3. Start connection handling
+		 * 2. Create new Connection object to handle it
+		 * 3. Start connection handling in its own thread, or reject it if the worker pool is full
+		 * If the overload policy is to block, step 3 waits for a free worker so no new connections are accepted until then.
 		 */
 		//noinspection InfiniteLoopStatement
 		while (true) {
@@ -117,7 +299,54 @@ public class JHTTP {
 				Socket client = s.accept();
 				Connection c = new Connection(this, client);
 				connections.add(c);
-				c.start();
+				if (!pool.execute(c)) {
+					c.reject();
+				}
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not accept connection", e);
+			}
+		}
+	}
+	
+	private void startEventLoops(WorkerPool workers) {
+		/* Open the server channel, the worker pool which runs the handlers and the event loops which do all socket I/O. */
+		int port = 0;
+		ServerSocketChannel serverChannel = null;
+		EventLoop[] loops = new EventLoop[0];
+		try {
+			port = Integer.parseInt(serverConfig.get("port"));
+			loops = new EventLoop[Integer.parseInt(serverConfig.get("eventloops"))];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(this, workers);
+				loops[i].start();
+			}
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			s = serverChannel.socket();
+			log.log(Level.INFO, "Server started on port " + port + " with " + loops.length + " event loops as " + System.getProperty("user.name"));
+		} catch (IOException | IllegalArgumentException e) {
+			log.log(Level.SEVERE, "Could not start server on port " + port, e);
+			exit(2);
+		}
+		
+		/*
+		 * Main loop of server in non-blocking mode:
+		 * 1. Accept new connection
+		 * 2. Assign it to the next event loop in turn
+		 * 3. The event loop reads requests and passes them to the worker pool
+		 * If the overload policy is to block, no new connections are accepted while the worker pool is full.
+		 */
+		int next = 0;
+		//noinspection InfiniteLoopStatement
+		while (true) {
+			try {
+				workers.awaitCapacity();
+				SocketChannel client = serverChannel.accept();
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+				ChannelConnection c = new ChannelConnection(this, loop, client);
+				connections.add(c);
+				loop.register(c);
 			} catch (IOException e) {
 				log.log(Level.WARNING, "Could not accept connection", e);
 			}
@@ -130,16 +359,45 @@ public class JHTTP {
 	}
 	
 	private void clear() {
+		
+		/*
+		 * Iterating over the concurrent registry is safe while connections remove themselves from it.
+		 * Each connection's streams and buffers belong to its own thread (or event loop), so they are only shut down from here; that thread then closes the connection as usual.
+		 */
 		for (Connection c: connections) {
-			close(c);
+			c.shutdown();
+			connections.remove(c);
 		}
 	}
 	
 	private void exit(int returnValue) {
 		try {
 			clear();
+			if (fastCGIClient != null) {
+				fastCGIClient.close();
+			}
+			if (fileWatcher != null) {
+				fileWatcher.close();
+			}
 			s.close();
 			log.log(Level.INFO, "Server shut down successfully");
+			if (contentCache != null) {
+				log.log(Level.INFO, "Content cache: " + contentCache);
+			}
+			if (phpCache != null) {
+				log.log(Level.INFO, "PHP cache: " + phpCache);
+			}
+			if (listingCache != null) {
+				log.log(Level.INFO, "Listing cache: " + listingCache);
+			}
+			if (errorPages != null) {
+				log.log(Level.INFO, "Error pages: " + errorPages);
+			}
+			for (Host host: hosts.values()) {
+				if (host.getPathCache() != null) {
+					log.log(Level.INFO, "Path cache for " + host.getHostname() + ": " + host.getPathCache());
+				}
+			}
 		} catch (IOException e) {
 			log.log(Level.WARNING, "Could not shut server down", e);
 			returnValue = 5;
@@ -0,0 +1,261 @@
+package net.donotturnoff.jhttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.*;
+
+public class ListingCache implements FileWatcher.Listener {
+	
+	private final JHTTP server;
+	private final Logger log;
+	private final long capacity;
+	private final int pageSize;
+	private final LinkedHashMap<Path, Listing> entries;
+	private final ReentrantLock lock;
+	private long used;
+	private final AtomicLong hits, misses;
+	
+	public ListingCache(JHTTP server) throws NumberFormatException {
+		this.server = server;
+		this.log = server.getLog();
+		Config cfg = server.getServerConfig();
+		
+		/*
+		 * Directory listings are read once and kept, sorted, until the directory's modification time changes (or the file watcher reports a change).
+		 * Listings are split into pages of at most listingpagesize entries (0 for no limit), chosen with the page and limit query parameters.
+		 * Each page is rendered as it is sent; pages with the default limit no larger than a sixteenth of the cache are then kept and sent as they are, up to a quarter of the cache per listing.
+		 * The names and rendered pages of all listings are limited to listingcachesize bytes, with the least recently used listings evicted first.
+		 */
+		capacity = Long.parseLong(cfg.get("listingcachesize"));
+		pageSize = Integer.parseInt(cfg.get("listingpagesize"));
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+		lock = new ReentrantLock();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+	
+	public Document get(Request request, Path dir) throws IOException {
+		long modified = Files.getLastModifiedTime(dir).toMillis();
+		Listing listing;
+		lock.lock();
+		try {
+			listing = entries.get(dir);
+		} finally {
+			lock.unlock();
+		}
+		if (listing == null || listing.modified != modified) {
+			listing = read(dir, modified);
+			put(dir, listing);
+		}
+		
+		/* Work out which entries the requested page holds. Pages are numbered from 1, and a page past the end gives the last page. */
+		Map<String, String> query = parseQuery(request.getQueryString());
+		int limit = parseInt(query.get("limit"));
+		boolean explicitLimit = limit > 0 && (pageSize <= 0 || limit < pageSize);
+		if (!explicitLimit) {
+			limit = pageSize > 0 ? pageSize : Math.max(1, listing.names.length);
+		}
+		int pages = Math.max(1, (listing.names.length + limit - 1) / limit);
+		int page = Math.min(Math.max(1, parseInt(query.get("page"))), pages);
+		
+		/*
+		 * Only pages with the default limit are kept, numbered within the listing of the resolved directory, so the number of them is bounded by the size of the directory.
+		 * The links on a page are built from the request path, so pages are only kept for the first (normalised) path that the directory is listed under.
+		 */
+		Path requestPath = Paths.get(request.getPath()).normalize();
+		boolean keep = false;
+		byte[] rendered = null;
+		if (!explicitLimit) {
+			lock.lock();
+			try {
+				if (listing.path == null) {
+					listing.path = requestPath.toString();
+				}
+				keep = listing.path.equals(requestPath.toString());
+				if (keep) {
+					rendered = listing.pages.get(page);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (rendered != null) {
+			hits.incrementAndGet();
+			return new CachedDocument(server, dir, "text/html", 0, "", rendered, ByteBuffer.wrap(rendered).asReadOnlyBuffer());
+		}
+		misses.incrementAndGet();
+		
+		Listing rendering = listing;
+		DirectoryListingDocument document = new DirectoryListingDocument(server, requestPath, listing.names, listing.types, page, pages, explicitLimit ? limit : 0, limit);
+		if (keep) {
+			document.record(capacity / 16, body -> {
+				lock.lock();
+				try {
+					if (entries.get(dir) == rendering && !rendering.pages.containsKey(page)) {
+						rendering.pages.put(page, body);
+						rendering.renderedSize += body.length;
+						used += body.length;
+						evict(rendering);
+					}
+				} finally {
+					lock.unlock();
+				}
+			});
+		}
+		return document;
+	}
+	
+	private Listing read(Path dir, long modified) throws IOException {
+		
+		/*
+		 * Read the directory's entries and the type of each in a single pass, then sort them by name.
+		 * Entries whose attributes can't be read (e.g. broken symlinks) are listed without a type.
+		 */
+		List<String[]> items = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path entry: stream) {
+				String type = "";
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+					if (attributes.isRegularFile()) {
+						type = "file";
+					} else if (attributes.isDirectory()) {
+						type = "dir";
+					}
+				} catch (IOException e) {
+					log.log(Level.FINEST, "Could not read attributes of " + entry, e);
+				}
+				items.add(new String[] {entry.getFileName().toString(), type});
+			}
+		}
+		items.sort(Comparator.comparing(item -> item[0]));
+		
+		String[] names = new String[items.size()];
+		String[] types = new String[items.size()];
+		long size = 0;
+		for (int i = 0; i < names.length; i++) {
+			names[i] = items.get(i)[0];
+			types[i] = items.get(i)[1];
+			size += 2L * names[i].length() + 64;
+		}
+		log.log(Level.FINER, "Read listing of " + dir + " (" + names.length + " entries)");
+		return new Listing(modified, names, types, size);
+	}
+	
+	private void put(Path dir, Listing listing) {
+		if (listing.size > capacity) {
+			return;
+		}
+		lock.lock();
+		try {
+			Listing previous = entries.put(dir, listing);
+			if (previous != null) {
+				used -= previous.size + previous.renderedSize;
+			}
+			used += listing.size;
+			evict(listing);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void evict(Listing keep) {
+		
+		/*
+		 * Drop the least recently used pages of the listing just added to while its pages take up more than a quarter of the cache, so that one large directory can't push every other listing out.
+		 * Then evict least recently used listings (other than that one) until the cache is back under capacity, and finally its own pages if it is still over. Called with the lock held.
+		 */
+		Iterator<byte[]> pages = keep.pages.values().iterator();
+		while (keep.renderedSize > capacity / 4 && pages.hasNext()) {
+			byte[] eldest = pages.next();
+			pages.remove();
+			keep.renderedSize -= eldest.length;
+			used -= eldest.length;
+		}
+		Iterator<Listing> iterator = entries.values().iterator();
+		while (used > capacity && iterator.hasNext()) {
+			Listing eldest = iterator.next();
+			if (eldest != keep) {
+				iterator.remove();
+				used -= eldest.size + eldest.renderedSize;
+			}
+		}
+		while (used > capacity && pages.hasNext()) {
+			byte[] eldest = pages.next();
+			pages.remove();
+			keep.renderedSize -= eldest.length;
+			used -= eldest.length;
+		}
+	}
+	
+	public void changed(Path path) {
+		
+		/* A change to a path changes the listing of its directory, and of itself and everything under it if it is a directory. */
+		Path parent = path.getParent();
+		lock.lock();
+		try {
+			Iterator<Map.Entry<Path, Listing>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Path, Listing> entry = iterator.next();
+				if (entry.getKey().startsWith(path) || entry.getKey().equals(parent)) {
+					iterator.remove();
+					used -= entry.getValue().size + entry.getValue().renderedSize;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void reset(Path root) {
+		changed(root);
+	}
+	
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> parameters = new HashMap<>();
+		for (String parameter: query.split("&")) {
+			String[] parts = parameter.split("=", 2);
+			if (parts.length == 2) {
+				parameters.put(parts[0], parts[1]);
+			}
+		}
+		return parameters;
+	}
+	
+	private static int parseInt(String value) {
+		try {
+			return value == null ? 0 : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	public String toString() {
+		return hits.get() + " hits, " + misses.get() + " misses";
+	}
+	
+	private static class Listing {
+		
+		private final long modified;
+		private final String[] names;
+		private final String[] types;
+		private final long size;
+		private final LinkedHashMap<Integer, byte[]> pages;
+		private long renderedSize;
+		private String path;
+		
+		public Listing(long modified, String[] names, String[] types, long size) {
+			this.modified = modified;
+			this.names = names;
+			this.types = types;
+			this.size = size;
+			this.pages = new LinkedHashMap<>(16, 0.75f, true);
+		}
+
+	}
+}
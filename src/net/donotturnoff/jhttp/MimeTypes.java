@@ -0,0 +1,109 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+public class MimeTypes {
+	
+	private final static String[][] builtIn = {
+			{"html", "text/html"}, {"htm", "text/html"}, {"css", "text/css"}, {"js", "application/javascript"}, {"mjs", "application/javascript"},
+			{"json", "application/json"}, {"xml", "application/xml"}, {"xhtml", "application/xhtml+xml"}, {"txt", "text/plain"}, {"csv", "text/csv"},
+			{"md", "text/markdown"}, {"png", "image/png"}, {"jpg", "image/jpeg"}, {"jpeg", "image/jpeg"}, {"gif", "image/gif"}, {"svg", "image/svg+xml"},
+			{"ico", "image/vnd.microsoft.icon"}, {"webp", "image/webp"}, {"avif", "image/avif"}, {"bmp", "image/bmp"}, {"pdf", "application/pdf"},
+			{"zip", "application/zip"}, {"gz", "application/gzip"}, {"tar", "application/x-tar"}, {"wasm", "application/wasm"}, {"woff", "font/woff"},
+			{"woff2", "font/woff2"}, {"ttf", "font/ttf"}, {"otf", "font/otf"}, {"mp3", "audio/mpeg"}, {"ogg", "audio/ogg"}, {"wav", "audio/wav"},
+			{"mp4", "video/mp4"}, {"webm", "video/webm"}, {"php", "application/x-httpd-php"}
+	};
+	
+	private final Logger log;
+	private final String defaultType;
+	private final HashMap<String, String> types;
+	private final Set<String> phpExtensions;
+	
+	public MimeTypes(JHTTP server) {
+		this(server.getLog(), server.getServerConfig());
+	}
+	
+	public MimeTypes(Logger log, Config cfg) {
+		this.log = log;
+		
+		/*
+		 * Types are looked up by file extension in a map built once at startup, so no file is opened or sniffed to find a document's type.
+		 * The map starts with the common web types, then adds the system's mime.types file (or the one configured), then the types given in the
+		 * mimeextensions setting as a list of extension=type pairs. Later sources override earlier ones.
+		 */
+		defaultType = cfg.get("defaultmime");
+		types = new HashMap<>();
+		for (String[] pair: builtIn) {
+			types.put(pair[0], pair[1]);
+		}
+		String file = cfg.get("mimetypes");
+		if (!file.equals("")) {
+			try {
+				load(Paths.get(file));
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not read MIME types file " + file, e);
+			}
+		}
+		for (String pair: cfg.get("mimeextensions").split(",")) {
+			String[] parts = pair.split("=", 2);
+			if (parts.length == 2 && parts[0].trim().length() > 0) {
+				types.put(parts[0].trim().toLowerCase(), parts[1].trim());
+			}
+		}
+		
+		/* Files are handled by PHP if their extension is listed in phpextensions or maps to one of the PHP types. */
+		phpExtensions = new HashSet<>();
+		for (String extension: cfg.get("phpextensions").split(",")) {
+			if (extension.trim().length() > 0) {
+				phpExtensions.add(extension.trim().toLowerCase());
+			}
+		}
+		List<String> phpTypes = Arrays.asList(PHPHandler.mimes);
+		types.forEach((extension, type) -> {
+			if (phpTypes.contains(type)) {
+				phpExtensions.add(extension);
+			}
+		});
+		log.log(Level.FINE, "Loaded " + types.size() + " MIME types");
+	}
+	
+	private void load(Path file) throws IOException {
+		
+		/* Each line of a mime.types file is a type followed by its extensions, separated by whitespace. Lines starting with # are comments. */
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				for (int i = 1; i < fields.length; i++) {
+					types.put(fields[i].toLowerCase(), fields[0]);
+				}
+			}
+		}
+	}
+	
+	private static String getExtension(Path path) {
+		Path name = path.getFileName();
+		if (name == null) {
+			return "";
+		}
+		String fileName = name.toString();
+		int i = fileName.lastIndexOf('.');
+		return i >= 0 && i < fileName.length() - 1 ? fileName.substring(i + 1).toLowerCase() : "";
+	}
+	
+	public String getType(Path path) {
+		/* The type for a file's extension, or the default type if the extension is unknown. */
+		return types.getOrDefault(getExtension(path), defaultType);
+	}
+	
+	public boolean isPHP(Path path) {
+		return phpExtensions.contains(getExtension(path));
+	}
+}
@@ -0,0 +1,286 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.*;
+
+public class PHPCache {
+	
+	private final static String[] cacheableCodes = {"200", "203", "301", "404", "410"};
+	
+	private final Logger log;
+	private final Supplier<WorkerPool> workers;
+	private final long capacity;
+	private final long maxEntrySize;
+	private final LinkedHashMap<String, Entry> entries;
+	private final ReentrantLock lock;
+	private long used;
+	private final AtomicLong hits, staleHits, misses, evictions;
+	private final SingleFlight<String, Entry> flights;
+	private final Set<String> refreshing;
+	
+	public PHPCache(JHTTP server) throws NumberFormatException {
+		this(server.getLog(), server.getServerConfig(), server::getWorkers);
+	}
+	
+	public PHPCache(Logger log, Config cfg, Supplier<WorkerPool> workers) throws NumberFormatException {
+		this.log = log;
+		this.workers = workers;
+		
+		/*
+		 * A short-lived cache of the output of PHP scripts, for hosts or documents which turn it on.
+		 * Responses are kept for phpcachettl milliseconds (or as long as the script's Cache-Control allows), then served stale for up to phpcachestale
+		 * milliseconds more while one request runs the script again in the background.
+		 * The total size of the cached bodies is limited to phpcachesize bytes, with the least recently used responses evicted first.
+		 */
+		capacity = Long.parseLong(cfg.get("phpcachesize"));
+		maxEntrySize = Long.parseLong(cfg.get("phpcacheentrysize"));
+		entries = new LinkedHashMap<>(64, 0.75f, true);
+		lock = new ReentrantLock();
+		hits = new AtomicLong();
+		staleHits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+		
+		/* Concurrent misses for the same key run the script once, and the other requests share its response if it can be cached. */
+		flights = new SingleFlight<>(Long.parseLong(cfg.get("coalescetimeout")));
+		refreshing = ConcurrentHashMap.newKeySet();
+	}
+	
+	public long getMaxEntrySize() {
+		return Math.min(maxEntrySize, capacity);
+	}
+	
+	public String getKey(Request request) {
+		
+		/*
+		 * Return the key under which the response to a request is cached, or null if it mustn't be cached.
+		 * Only GET and HEAD requests without credentials are cached. The key is made of the host, path and query string, and the values of the
+		 * request headers which the configuration says responses vary by.
+		 */
+		Host host = request.getHost();
+		String path = request.getPath();
+		String verb = request.getVerb();
+		if (!host.get(path, "phpcache").equals("yes") || !(verb.equals("GET") || verb.equals("HEAD")) || request.getHeader("Authorization").length() > 0) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(host.getHostname()).append('\n').append(path).append('?').append(request.getQueryString());
+		for (String name: getVary(host, path)) {
+			key.append('\n').append(name).append(':').append(request.getHeader(name));
+		}
+		return key.toString();
+	}
+	
+	private static List<String> getVary(Host host, String path) {
+		List<String> vary = new ArrayList<>();
+		for (String name: host.get(path, "phpcachevary").split(",")) {
+			if (name.trim().length() > 0) {
+				vary.add(name.trim());
+			}
+		}
+		return vary;
+	}
+	
+	public Entry get(String key, Runnable refresh) {
+		
+		/*
+		 * Look up a response. Fresh responses are returned as they are.
+		 * Stale responses are returned too, but the first request to find one also starts the given refresh in the background on the server's worker pool;
+		 * later requests keep getting the stale response until the refresh has replaced it (or it expires completely).
+		 * Only one refresh runs for each key at a time, and if the pool is full the refresh is left to a later request.
+		 */
+		long now = System.currentTimeMillis();
+		Entry entry;
+		lock.lock();
+		try {
+			entry = entries.get(key);
+			if (entry != null && now >= entry.staleUntil) {
+				entries.remove(key);
+				used -= entry.body.length;
+				entry = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (now < entry.expires) {
+			hits.incrementAndGet();
+		} else {
+			staleHits.incrementAndGet();
+			if (refreshing.add(key)) {
+				boolean started = workers.get().tryExecute(() -> {
+					try {
+						refresh.run();
+					} finally {
+						refreshing.remove(key);
+					}
+				});
+				if (!started) {
+					refreshing.remove(key);
+				}
+			}
+		}
+		return entry;
+	}
+	
+	public CompletableFuture<Entry> join(String key) {
+		/* Return the run of the script already in progress for a key, or null if there isn't one, in which case the caller must finish or fail it. */
+		return flights.join(key);
+	}
+	
+	public Entry await(CompletableFuture<Entry> flight) throws IOException, TimeoutException {
+		/* Wait for another request's run of the script. Returns null if its response couldn't be cached, and throws if the script failed. */
+		return flights.await(flight);
+	}
+	
+	public void finish(String key, Entry entry) {
+		flights.finish(key, entry);
+	}
+	
+	public void fail(String key, IOException e) {
+		flights.fail(key, e);
+	}
+	
+	public Entry put(String key, Host host, String path, String code, HashMap<String, String> headers, String type, byte[] body) {
+		
+		/*
+		 * Store a response if it may be cached: it must have a cacheable status and mustn't set cookies, and its Cache-Control mustn't forbid storing it.
+		 * max-age and s-maxage override the configured lifetime and stale-while-revalidate overrides the stale period.
+		 * A response which varies by a request header that isn't part of the key can't be stored.
+		 * Returns the new entry, or null if the response wasn't stored.
+		 */
+		if (!Arrays.asList(cacheableCodes).contains(code) || headers.containsKey("Set-Cookie") || body.length > getMaxEntrySize()) {
+			return null;
+		}
+		long ttl = Long.parseLong(host.get(path, "phpcachettl"));
+		long stale = Long.parseLong(host.get(path, "phpcachestale"));
+		String cacheControl = headers.getOrDefault("Cache-Control", "").toLowerCase();
+		boolean shared = false;
+		for (String directive: cacheControl.split(",")) {
+			String[] parts = directive.trim().split("=", 2);
+			try {
+				switch (parts[0]) {
+					case "no-store":
+					case "no-cache":
+					case "private":
+						return null;
+					case "s-maxage":
+						ttl = Long.parseLong(parts[1].replace("\"", "")) * 1000;
+						shared = true;
+						break;
+					case "max-age":
+						if (!shared) {
+							ttl = Long.parseLong(parts[1].replace("\"", "")) * 1000;
+						}
+						break;
+					case "stale-while-revalidate":
+						stale = Long.parseLong(parts[1].replace("\"", "")) * 1000;
+						break;
+				}
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				return null;
+			}
+		}
+		List<String> vary = getVary(host, path);
+		for (String name: headers.getOrDefault("Vary", "").split(",")) {
+			name = name.trim();
+			if (name.equals("*") || (name.length() > 0 && vary.stream().noneMatch(name::equalsIgnoreCase))) {
+				return null;
+			}
+		}
+		if (ttl <= 0) {
+			return null;
+		}
+		
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(code, headers, type, body, now + ttl, now + ttl + Math.max(0, stale));
+		lock.lock();
+		try {
+			Entry previous = entries.put(key, entry);
+			if (previous != null) {
+				used -= previous.body.length;
+			}
+			used += body.length;
+			
+			/* Evict least recently used responses until the cache is back under capacity. */
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (used > capacity && iterator.hasNext()) {
+				Entry eldest = iterator.next();
+				if (eldest != entry) {
+					iterator.remove();
+					used -= eldest.body.length;
+					evictions.incrementAndGet();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		log.log(Level.FINER, "Cached PHP response for " + path);
+		return entry;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getStaleHits() {
+		return staleHits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public String toString() {
+		return hits.get() + " hits, " + staleHits.get() + " stale hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+	}
+	
+	public class Entry {
+		
+		private final String code;
+		private final HashMap<String, String> headers;
+		private final String type;
+		private final byte[] body;
+		private final long expires;
+		private final long staleUntil;
+		
+		public Entry(String code, HashMap<String, String> headers, String type, byte[] body, long expires, long staleUntil) {
+			this.code = code;
+			this.headers = headers;
+			this.type = type;
+			this.body = body;
+			this.expires = expires;
+			this.staleUntil = staleUntil;
+		}
+		
+		public Status getStatus() {
+			return new Status(code);
+		}
+		
+		public Headers getHeaders() {
+			/* Each response gets its own copy, as handlers add to the headers. */
+			Headers copy = new Headers(new HashMap<>(headers));
+			copy.setHeader("Content-Length", Integer.toString(body.length));
+			return copy;
+		}
+		
+		public Document getDocument(JHTTP server, Path path) {
+			return new CachedDocument(server, path, type, 0, "", body, ByteBuffer.wrap(body).asReadOnlyBuffer());
+		}
+	}
+}
@@ -1,57 +1,278 @@
 package net.donotturnoff.jhttp;
 
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.logging.*;
 
 public class PHPDocument extends Document {
 	
+	private final static int maxHeaderSize = 65536;
+	final static int maxErrorSize = 65536;
+	
 	private final Headers phpHeaders;
+	private final InputStream in;
+	private final Callable<Integer> exitStatus;
+	private final InputStream errors;
+	private byte[] head;
+	private int headLength;
+	private int bodyStart;
+	private String code;
+	private boolean complete;
+	private boolean finished;
+	private ByteArrayOutputStream copy;
+	private long copyLimit;
+	private Consumer<byte[]> recorder;
+	private boolean recorded;
 	
-	public PHPDocument(JHTTP server, InputStream in, InputStream err) {
+	public PHPDocument(JHTTP server, InputStream in, InputStream err, Callable<Integer> exitStatus) throws IOException {
 		super(server);
+		this.in = in;
+		this.exitStatus = exitStatus;
+		this.phpHeaders = new Headers();
+		this.code = "200";
 		
-		BufferedReader bin = new BufferedReader(new InputStreamReader(in));
-		BufferedReader berr = new BufferedReader(new InputStreamReader(err));
-		StringBuilder sb = new StringBuilder();
-		String inLine, errLine;
+		/*
+		 * The script's error output must not be able to fill up a pipe and stall the script, so it is either written to a file or queued by the FastCGI connection.
+		 * Either way it is only read once the script has exited.
+		 * The output starts with CGI headers, which are read here. The body after them is only read as it is sent, so the client receives it as it is produced.
+		 */
+		this.errors = err;
+		readHeaders();
+	}
+	
+	private void readHeaders() throws IOException {
 		
-		phpHeaders = new Headers();
+		/*
+		 * Read until the blank line which ends the headers, which may arrive in any number of pieces.
+		 * Headers are separated from the body by a blank line; lines may end with CRLF or LF.
+		 * Anything read past the blank line is the start of the body.
+		 */
+		head = new byte[4096];
+		int lineStart = 0;
+		int scanned = 0;
+		while (true) {
+			while (scanned < headLength) {
+				if (head[scanned++] != '\n') {
+					continue;
+				}
+				int lineEnd = scanned - 1;
+				if (lineEnd > lineStart && head[lineEnd - 1] == '\r') {
+					lineEnd--;
+				}
+				if (lineEnd == lineStart) {
+					bodyStart = scanned;
+					complete = true;
+					return;
+				}
+				parseHeader(new String(head, lineStart, lineEnd - lineStart));
+				lineStart = scanned;
+			}
+			if (headLength == head.length) {
+				if (head.length >= maxHeaderSize) {
+					throw new IOException("PHP headers too long");
+				}
+				byte[] bigger = new byte[head.length * 2];
+				System.arraycopy(head, 0, bigger, 0, headLength);
+				head = bigger;
+			}
+			int count = in.read(head, headLength, head.length - headLength);
+			if (count < 0) {
+				
+				/* The output ended before the headers did (e.g. the script failed), so there is no body. */
+				bodyStart = headLength;
+				return;
+			}
+			headLength += count;
+		}
+	}
+	
+	private void parseHeader(String line) throws IOException {
 		
-		/* 
-		 * Parse headers output by php-cgi.
-		 * Headers are separated from body by a blank line.
-		 * Split key from value at first colon.
+		/*
+		 * Split key from value at the first colon.
+		 * Status sets the response status rather than being sent, and Location without a Status is a redirect.
+		 * Content-Length is left out, since the body is streamed as the script produces it.
 		 */
+		int colon = line.indexOf(':');
+		if (colon <= 0) {
+			throw new IOException("Malformed PHP header: " + line);
+		}
+		String key = canonicalise(line.substring(0, colon).trim());
+		String value = line.substring(colon + 1).trim();
+		if (key.equals("Status")) {
+			code = value.split(" ")[0];
+			if (!Status.isCode(code)) {
+				throw new IOException("Invalid PHP status: " + value);
+			}
+		} else if (key.equals("Location") && code.equals("200")) {
+			code = "302";
+			phpHeaders.setHeader(key, value);
+		} else if (key.equals("Content-Type")) {
+			type = value;
+			phpHeaders.setHeader(key, value);
+		} else if (!key.equals("Content-Length")) {
+			phpHeaders.setHeader(key, value);
+		}
+	}
+	
+	private static String canonicalise(String key) {
+		/* Scripts may send e.g. Content-type, so header names are given the usual capitalisation. */
+		StringBuilder sb = new StringBuilder(key.length());
+		boolean start = true;
+		for (char c: key.toCharArray()) {
+			sb.append(start ? Character.toUpperCase(c) : Character.toLowerCase(c));
+			start = c == '-';
+		}
+		return sb.toString();
+	}
+	
+	public Headers getPHPHeaders() {
+		return phpHeaders;
+	}
+	
+	public Status getStatus() {
+		return new Status(code);
+	}
+	
+	public boolean hasHeaders() {
+		return complete;
+	}
+	
+	public void record(long limit, Consumer<byte[]> recorder) {
+		/*
+		 * Keep a copy of the body as it is sent. The recorder is called exactly once: with the body if the script succeeds and the body is no longer than
+		 * the limit, otherwise with null.
+		 */
+		this.copy = new ByteArrayOutputStream();
+		this.copyLimit = limit;
+		this.recorder = recorder;
+	}
+	
+	private void copy(byte[] b, int off, int len) {
+		if (copy != null && copy.size() + len <= copyLimit) {
+			copy.write(b, off, len);
+		} else {
+			copy = null;
+		}
+	}
+	
+	public String getLength() {
+		/* The length isn't known until the script has finished. */
+		return "";
+	}
+	
+	public long getSize() {
+		return -1;
+	}
+	
+	public byte[] getData() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		try {
-			while (!(inLine = bin.readLine()).equals("")) {
-				String[] parts = inLine.split(":");
-				String key = parts[0].trim();
-				String[] tail = Arrays.copyOfRange(parts, 1, parts.length);
-				String value = String.join(":", tail).trim(); 
-				phpHeaders.setHeader(key, value);
-			}
-		} catch (IOException ignored) {}
+			write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	public void write(OutputStream out) throws IOException {
 		
-		/* Read all incoming data from php-cgi's output stream. */
-		try {
-			while ((inLine = bin.readLine()) != null) {
-				sb.append(inLine).append("\n");
+		/*
+		 * Copy the body to the client as the script produces it.
+		 * Whenever the script has nothing more ready, what has been written so far is flushed, so the client isn't kept waiting for the rest.
+		 * If the script fails, an exception is thrown so that the response is cut off rather than appearing complete.
+		 */
+		if (finished) {
+			return;
+		}
+		out.write(head, bodyStart, headLength - bodyStart);
+		copy(head, bodyStart, headLength - bodyStart);
+		if (complete) {
+			byte[] buffer = new byte[8192];
+			int count = 0;
+			while (count >= 0) {
+				if (in.available() == 0) {
+					out.flush();
+				}
+				count = in.read(buffer);
+				if (count > 0) {
+					out.write(buffer, 0, count);
+					copy(buffer, 0, count);
+				}
 			}
-		} catch (IOException ignored) {}
+		}
+		finish();
+		deliver(copy == null ? null : copy.toByteArray());
+	}
+	
+	private void deliver(byte[] body) {
+		if (recorder != null && !recorded) {
+			recorded = true;
+			recorder.accept(body);
+		}
+	}
+	
+	public void send(Connection conn) throws IOException {
+		write(conn.getOutputStream());
+	}
+	
+	public void finish() throws IOException {
 		
-		/* Read all incoming data from php-cgi's error stream. */
+		/*
+		 * Wait for the script to exit and log anything it wrote to its error output. A script which failed causes an exception.
+		 * Both outputs are closed afterwards, which releases anything still buffered for them.
+		 */
+		finished = true;
+		int status;
 		try {
-			while ((errLine = berr.readLine()) != null) {
-				sb.append(errLine).append("\n");
+			status = exitStatus.call();
+			logErrors();
+		} catch (IOException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("PHP interpretation interrupted");
+		} catch (Exception e) {
+			throw new IOException("Could not get PHP exit status", e);
+		} finally {
+			try {
+				in.close();
+				errors.close();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Could not close PHP output", e);
 			}
-		} catch (IOException ignored) {}
-		
-		data = sb.toString().getBytes();
+		}
+		if (status != 0) {
+			throw new IOException("PHP exited with status " + status);
+		}
+	}
+	
+	private void logErrors() {
 		
-		type = "text/html";
+		/* Only the first part of the error output is logged, so a script can't flood the log. */
+		try {
+			byte[] output = errors.readNBytes(maxErrorSize);
+			if (output.length > 0) {
+				String truncated = output.length == maxErrorSize ? " (truncated)" : "";
+				log.log(Level.WARNING, "PHP error output" + truncated + ": " + new String(output).trim());
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not read PHP error output", e);
+		}
 	}
 	
-	public Headers getPHPHeaders() {
-		return phpHeaders;
+	public void close() {
+		
+		/* If the body wasn't sent (e.g. for HEAD requests), the rest of the output is discarded so that the script can finish. */
+		try {
+			if (!finished) {
+				in.transferTo(OutputStream.nullOutputStream());
+				finish();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "PHP script failed", e);
+		} finally {
+			deliver(null);
+		}
 	}
 }
@@ -1,52 +1,23 @@
 package net.donotturnoff.jhttp;
 
-import java.net.*;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
 
 public class PHPHandler extends RequestHandler {
 	
 	public final static String[] mimes = {"text/php", "text/x-php", "application/php", "application/x-php", "application/x-httpd-php", "application/x-httpd-php-source"};
 	
-	private static String extractExtension(Path path) {
-		String fileName = path.toString();
-		String extension = "";
-		int i = fileName.lastIndexOf('.');
-		int p = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
-		if (i > p && i < (fileName.length()-1)) {
-			extension = fileName.substring(i+1);
-		}
-		return extension;
-	}
-	
-	public static boolean isPHP(Path path) throws IOException {
-		File file = new File(path.toString());
-		String type = Files.probeContentType(path);
-		if (type == null) {
-			type = URLConnection.guessContentTypeFromName(file.getName());
-		}
-		if (type == null) {
-			InputStream is = new BufferedInputStream(new FileInputStream(file));
-			type = URLConnection.guessContentTypeFromStream(is);
-		}
-		String extension = extractExtension(path);
-		return Arrays.asList(mimes).contains(type) || extension.equals("php");
-	}
-	
-	public PHPHandler(JHTTP server, Request request) {
+	public PHPHandler(JHTTP server, Request request, Path path) {
 		super(server);
 		this.request = request;
-		Host host = request.getHost();
 		
 		try {
-			String pathString = host.get("root") + request.getPath();
-			Path path = Paths.get(pathString).toRealPath();
-			ProcessBuilder builder = new ProcessBuilder();
-			builder.directory(new File(System.getProperty("user.home")));
-			Map<String, String> env = builder.environment();
+			Map<String, String> env = new HashMap<>();
 			
-			/* Build the php-cgi environment. */
+			/* Build the CGI environment, which is passed to php-cgi or sent to the FastCGI backend. */
 			env.put("REDIRECT_STATUS", "200");
 			env.put("REQUEST_METHOD", request.getVerb());
 			env.put("SCRIPT_NAME", request.getPath());
@@ -55,43 +26,167 @@ public class PHPHandler extends RequestHandler {
 			env.put("SERVER_SOFTWARE", JHTTP.server);
 			env.put("SERVER_PORT", cfg.get("port"));
 			env.put("GATEWAY_INTERFACE", "CGI/1.1");
-			env.put("CONTENT_LENGTH", Integer.toString(request.getBody().length()));
+			env.put("CONTENT_LENGTH", Long.toString(request.getBody().getSize()));
 			env.put("CONTENT_TYPE", request.getHeader("Content-Type"));
 			env.put("SERVER_PROTOCOL", request.getProtocol());
 			env.put("HOST_NAME", request.getHeader("Host"));
 			env.put("REMOTE_ADDR", request.getConnection().getHost());
 			
-			builder.command("php-cgi", path.toString());
-			Process process = builder.start();
-			
-			/* Output the request body to php-cgi. */
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-			out.write(request.getBody(), 0, request.getBody().length());
-			out.flush();
-			
-			/* Handle the output of php-cgi using a PHPDocument. */
-			document = new PHPDocument(server, process.getInputStream(), process.getErrorStream());
+			/* Cached responses are served without running the script. A stale one is refreshed in the background by running the script again. */
+			PHPCache cache = server.getPHPCache();
+			String cacheKey = cache.getKey(request);
+			boolean leader = false;
+			if (cacheKey != null) {
+				PHPCache.Entry entry = cache.get(cacheKey, () -> refresh(cacheKey, env, path));
+				
+				/*
+				 * On a miss, only the first request for the key runs the script, and identical requests which arrive meanwhile wait to share its response.
+				 * If that response can't be cached (or the wait times out), they run the script themselves; if the script fails, so do they.
+				 */
+				if (entry == null) {
+					CompletableFuture<PHPCache.Entry> flight = cache.join(cacheKey);
+					if (flight == null) {
+						leader = true;
+					} else {
+						try {
+							entry = cache.await(flight);
+						} catch (TimeoutException e) {
+							log.log(Level.FINE, "Timed out waiting for another request for " + path);
+						}
+					}
+				}
+				if (entry != null) {
+					status = entry.getStatus();
+					headers = entry.getHeaders();
+					document = entry.getDocument(server, path);
+					return;
+				}
+			}
 			
-			/* If exit code isn't 0, the process failed.
-			 * Details of the error will be handled by the PHPDocument. */
-			int exitCode = process.waitFor();
-			if (exitCode == 0) {
-				status = new Status("200");
-			} else {
-				throw new IOException("Execution failed");
+			/*
+			 * The status and headers come from the script's CGI headers, and its body is streamed as it is sent.
+			 * If the script produced no headers, it is waited for here so that a failure can still be reported as a 500.
+			 * Whatever goes wrong before the response is handed to the cache, the requests waiting for it are failed rather than left waiting.
+			 */
+			try {
+				PHPDocument phpDocument = execute(env, path, request.getBody());
+				if (!phpDocument.hasHeaders()) {
+					phpDocument.finish();
+				}
+				document = phpDocument;
+				status = phpDocument.getStatus();
+				headers = phpDocument.getPHPHeaders();
+				if (cacheKey != null) {
+					record(cacheKey, phpDocument, leader);
+				}
+			} catch (Throwable e) {
+				if (leader) {
+					cache.fail(cacheKey, e instanceof IOException ? (IOException) e : new IOException(e));
+				}
+				throw e;
 			}
-			headers = ((PHPDocument) document).getPHPHeaders();
-			headers.setHeader("Content-Length", document.getLength());
 		} catch (IOException e) {
 			ErrorHandler handler = new ErrorHandler(server, request, new Status("500"), "Could not read PHP file: " + e.toString());
 			status = handler.getStatus();
 			headers = handler.getHeaders();
 			document = handler.getDocument();
-		} catch (InterruptedException e) {
-			ErrorHandler handler = new ErrorHandler(server, request, new Status("500"), "PHP interpretation interrupted");
-			status = handler.getStatus();
-			headers = handler.getHeaders();
-			document = handler.getDocument();
+		}
+	}
+	
+	private PHPDocument execute(Map<String, String> env, Path path, RequestBody body) throws IOException {
+		
+		/* Run the script with php-cgi or the FastCGI backend. The returned document has read the script's headers but not its body. */
+		FastCGIClient fastCGIClient = server.getFastCGIClient();
+		PHPDocument phpDocument;
+		if (fastCGIClient != null) {
+			
+			/* The backend reads the body from the request's STDIN stream and returns the output and errors as its own streams. */
+			FastCGIExchange exchange = fastCGIClient.execute(env, body);
+			phpDocument = new PHPDocument(server, exchange.getOutput(), exchange.getErrors(), exchange::getAppStatus);
+		} else {
+			ProcessBuilder builder = new ProcessBuilder();
+			builder.directory(new File(System.getProperty("user.home")));
+			builder.environment().putAll(env);
+			builder.command("php-cgi", path.toString());
+			
+			/* The error output is drained as the script runs, keeping only its first part, so a script writing a lot of errors neither stalls nor fills the disk. */
+			Process process = builder.start();
+			InputStream errors = server.getErrorDrain().drain(process.getErrorStream(), PHPDocument.maxErrorSize);
+			
+			/* Kill the script if it runs for longer than the time limit, so that a hung script can't hold the connection forever. */
+			int timeLimit = Integer.parseInt(cfg.get("phptimeout"));
+			if (timeLimit > 0) {
+				CompletableFuture.delayedExecutor(timeLimit, TimeUnit.MILLISECONDS).execute(() -> {
+					if (process.isAlive()) {
+						log.log(Level.WARNING, "PHP script exceeded the time limit: " + path);
+						
+						/* Anything the script started could keep its output open, so that is killed too. */
+						process.descendants().forEach(ProcessHandle::destroyForcibly);
+						process.destroyForcibly();
+					}
+				});
+			}
+			
+			/*
+			 * Stream the request body (from memory or its temporary file) to php-cgi, then close its input so it sees the end of the body.
+			 * Then handle the output of php-cgi using a PHPDocument.
+			 */
+			try {
+				try (OutputStream out = process.getOutputStream()) {
+					body.transferTo(out);
+				}
+				phpDocument = new PHPDocument(server, process.getInputStream(), errors, process::waitFor);
+			} catch (IOException e) {
+				process.destroyForcibly();
+				errors.close();
+				throw e;
+			}
+		}
+		
+		return phpDocument;
+	}
+	
+	private void record(String cacheKey, PHPDocument phpDocument, boolean leader) {
+		
+		/*
+		 * The headers are copied now, before the response adds its own; the body is stored once it has been sent in full.
+		 * The first request for the key then hands the stored response (or null) to the requests waiting for it.
+		 */
+		Host host = request.getHost();
+		String path = request.getPath();
+		String code = phpDocument.getStatus().getCode();
+		HashMap<String, String> phpHeaders = new HashMap<>(phpDocument.getPHPHeaders().getHeaders());
+		String type = phpDocument.getType();
+		PHPCache cache = server.getPHPCache();
+		phpDocument.record(cache.getMaxEntrySize(), body -> {
+			PHPCache.Entry entry = null;
+			try {
+				if (body != null) {
+					entry = cache.put(cacheKey, host, path, code, phpHeaders, type, body);
+				}
+			} finally {
+				if (leader) {
+					cache.finish(cacheKey, entry);
+				}
+			}
+		});
+	}
+	
+	private void refresh(String cacheKey, Map<String, String> env, Path path) {
+		
+		/* Run by a worker in the background: run the script again as a GET (a HEAD would produce no body) and store the new response. */
+		Map<String, String> refreshEnv = new HashMap<>(env);
+		refreshEnv.put("REQUEST_METHOD", "GET");
+		refreshEnv.put("CONTENT_LENGTH", "0");
+		try {
+			PHPDocument phpDocument = execute(refreshEnv, path, new RequestBody(server));
+			if (!phpDocument.hasHeaders()) {
+				phpDocument.finish();
+			}
+			record(cacheKey, phpDocument, false);
+			phpDocument.write(OutputStream.nullOutputStream());
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not refresh cached PHP response for " + path, e);
 		}
 	}
 }
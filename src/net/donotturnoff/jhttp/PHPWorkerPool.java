@@ -0,0 +1,241 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+
+public class PHPWorkerPool extends FastCGIClient {
+	
+	private final static int startTimeout = 5000;
+	private final static int idleTimeout = 10000;
+	private final static int checkInterval = 1000;
+	
+	private final Path socketDirectory;
+	private final int minWorkers;
+	private final int maxRequests;
+	private final int timeLimit;
+	private final HashMap<FastCGIConnection, Worker> workers;
+	private int nextWorker;
+	private volatile boolean closed;
+	
+	public PHPWorkerPool(JHTTP server) throws IllegalArgumentException, IOException {
+		
+		/*
+		 * A pool of php-cgi processes started by the server in FastCGI mode (php-cgi -b), each listening on its own Unix domain socket.
+		 * Requests go to an idle worker, a new worker is started if all are busy and the maximum hasn't been reached, and otherwise requests wait for a worker to finish.
+		 * Workers are replaced after a number of requests, killed if a script runs for too long, and stopped after being idle while there are more than the minimum.
+		 */
+		super(server.getLog(), server.getServerConfig(), null, Integer.parseInt(server.getServerConfig().get("phpworkersmax")));
+		Config cfg = server.getServerConfig();
+		minWorkers = Integer.parseInt(cfg.get("phpworkersmin"));
+		maxRequests = Integer.parseInt(cfg.get("phpworkerrequests"));
+		timeLimit = Integer.parseInt(cfg.get("phptimeout"));
+		if (minWorkers < 0 || maxRequests < 0 || timeLimit < 0) {
+			throw new IllegalArgumentException("PHP worker settings must not be negative");
+		}
+		if (minWorkers > Integer.parseInt(cfg.get("phpworkersmax"))) {
+			throw new IllegalArgumentException("Minimum number of PHP workers must not be more than the maximum");
+		}
+		socketDirectory = Files.createTempDirectory("jhttp-php");
+		workers = new HashMap<>();
+		
+		ensureMinimum();
+		Thread monitor = new Thread(this::monitor, "PHP worker monitor");
+		monitor.setDaemon(true);
+		monitor.start();
+		
+		/* The workers are separate processes, so they have to be stopped explicitly when the server exits. */
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+	}
+	
+	protected FastCGIConnection connect() throws IOException {
+		
+		/*
+		 * Start a worker and connect to it once it is listening.
+		 * php-cgi is told not to fork children of its own or to exit after a number of requests, as the pool does both itself.
+		 */
+		Path socket;
+		lock.lock();
+		try {
+			socket = socketDirectory.resolve("php-" + nextWorker++ + ".sock");
+		} finally {
+			lock.unlock();
+		}
+		ProcessBuilder builder = new ProcessBuilder("php-cgi", "-b", socket.toString());
+		builder.directory(new File(System.getProperty("user.home")));
+		builder.environment().put("PHP_FCGI_CHILDREN", "0");
+		builder.environment().put("PHP_FCGI_MAX_REQUESTS", "0");
+		builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+		Process process = builder.start();
+		
+		long deadline = System.currentTimeMillis() + startTimeout;
+		while (true) {
+			try {
+				FastCGIConnection connection = new FastCGIConnection(this, UnixDomainSocketAddress.of(socket), timeout);
+				lock.lock();
+				try {
+					workers.put(connection, new Worker(process, socket));
+				} finally {
+					lock.unlock();
+				}
+				log.log(Level.FINE, "Started PHP worker " + process.pid());
+				return connection;
+			} catch (IOException e) {
+				if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+					process.destroyForcibly();
+					Files.deleteIfExists(socket);
+					throw new IOException("Could not start PHP worker", e);
+				}
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+				throw new InterruptedIOException("Interrupted while starting PHP worker");
+			}
+		}
+	}
+	
+	protected FastCGIConnection acquire() throws IOException {
+		
+		/* Note when the worker starts the request, so that it can be killed if the script runs for too long. */
+		FastCGIConnection connection = super.acquire();
+		lock.lock();
+		try {
+			Worker worker = workers.get(connection);
+			if (worker != null) {
+				worker.started = System.currentTimeMillis();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return connection;
+	}
+	
+	public void release(FastCGIConnection connection) {
+		
+		/* A worker whose connection has failed, or which has handled its share of requests, is stopped before its place is given up. */
+		lock.lock();
+		try {
+			Worker worker = workers.get(connection);
+			if (worker != null) {
+				worker.started = 0;
+				worker.lastUsed = System.currentTimeMillis();
+				worker.requests++;
+				if (!connection.isOpen() || (maxRequests > 0 && worker.requests >= maxRequests)) {
+					stop(connection, worker);
+				}
+			}
+			super.release(connection);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void stop(FastCGIConnection connection, Worker worker) {
+		/* Called with the lock held. Closing the connection fails any request still using the worker. */
+		workers.remove(connection);
+		connection.close(new IOException("PHP worker stopped"));
+		worker.process.destroyForcibly();
+		try {
+			Files.deleteIfExists(worker.socket);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not delete PHP worker socket", e);
+		}
+		log.log(Level.FINE, "Stopped PHP worker " + worker.process.pid() + " after " + worker.requests + " requests");
+	}
+	
+	private void ensureMinimum() {
+		int missing;
+		lock.lock();
+		try {
+			missing = minWorkers - connections.size() - connecting;
+			connecting += Math.max(0, missing);
+		} finally {
+			lock.unlock();
+		}
+		for (int i = 0; i < missing; i++) {
+			try {
+				open(false);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not start PHP worker", e);
+			}
+		}
+	}
+	
+	private void monitor() {
+		
+		/*
+		 * Run by the monitor thread:
+		 * 1. Kill workers whose current script has run for longer than the time limit (which fails its request)
+		 * 2. Stop workers which have exited, and idle workers above the minimum
+		 * 3. Start workers to bring the pool back up to the minimum
+		 */
+		while (!closed) {
+			try {
+				Thread.sleep(checkInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			lock.lock();
+			try {
+				for (Map.Entry<FastCGIConnection, Worker> entry: new ArrayList<>(workers.entrySet())) {
+					FastCGIConnection connection = entry.getKey();
+					Worker worker = entry.getValue();
+					if (worker.started > 0 && timeLimit > 0 && now - worker.started > timeLimit) {
+						log.log(Level.WARNING, "PHP worker " + worker.process.pid() + " exceeded the time limit");
+						stop(connection, worker);
+					} else if (!worker.process.isAlive() || !connection.isOpen()) {
+						stop(connection, worker);
+					} else if (worker.started == 0 && connection.isIdle() && now - worker.lastUsed > idleTimeout && workers.size() > minWorkers) {
+						stop(connection, worker);
+					}
+				}
+				connections.removeIf(connection -> !connection.isOpen() && connection.isIdle());
+			} finally {
+				lock.unlock();
+			}
+			ensureMinimum();
+		}
+	}
+	
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		super.close();
+		lock.lock();
+		try {
+			for (Map.Entry<FastCGIConnection, Worker> entry: new ArrayList<>(workers.entrySet())) {
+				stop(entry.getKey(), entry.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			Files.deleteIfExists(socketDirectory);
+		} catch (IOException e) {
+			log.log(Level.FINE, "Could not delete PHP socket directory", e);
+		}
+	}
+	
+	private static class Worker {
+		
+		private final Process process;
+		private final Path socket;
+		private int requests;
+		private long started;
+		private long lastUsed;
+		
+		public Worker(Process process, Path socket) {
+			this.process = process;
+			this.socket = socket;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+}
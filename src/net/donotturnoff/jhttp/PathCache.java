@@ -0,0 +1,197 @@
+package net.donotturnoff.jhttp;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class PathCache implements FileWatcher.Listener {
+	
+	private final Host host;
+	private final Path root;
+	private final int capacity;
+	private final int missingCapacity;
+	private final long ttl;
+	private final LinkedHashMap<String, ResolvedPath> entries;
+	private final LinkedHashMap<String, Long> missing;
+	private final ReentrantLock lock;
+	private final AtomicLong hits, misses, missingHits;
+	
+	public PathCache(JHTTP server, Host host) throws IOException, NumberFormatException {
+		this(server.getServerConfig(), host);
+	}
+	
+	public PathCache(Config cfg, Host host) throws IOException, NumberFormatException {
+		this.host = host;
+		
+		/*
+		 * Caches what each request path on a host resolves to, so that a request for a file or directory seen recently makes no filesystem calls
+		 * before its handler runs. The host's root is resolved once here rather than for every request.
+		 * Entries are kept for pathcachettl milliseconds, so changes to the filesystem are seen within that time, and at most pathcachesize entries
+		 * are kept, with the least recently used evicted first.
+		 * Paths which don't exist are remembered separately (up to pathcachemissing of them, for as long), so that repeated requests for them (e.g.
+		 * from scanners) can be answered with a 404 without going to the filesystem or throwing an exception.
+		 */
+		root = Paths.get(host.get("root")).toRealPath();
+		capacity = Integer.parseInt(cfg.get("pathcachesize"));
+		missingCapacity = Integer.parseInt(cfg.get("pathcachemissing"));
+		ttl = Long.parseLong(cfg.get("pathcachettl"));
+		entries = new LinkedHashMap<>(64, 0.75f, true);
+		missing = new LinkedHashMap<>(64, 0.75f, true);
+		lock = new ReentrantLock();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		missingHits = new AtomicLong();
+	}
+	
+	public Path getRoot() {
+		return root;
+	}
+	
+	public boolean isMissing(String requestPath) {
+		/* Whether the path was found not to exist recently. */
+		if (missingCapacity <= 0 || ttl <= 0) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		lock.lock();
+		try {
+			Long expires = missing.get(requestPath);
+			if (expires == null) {
+				return false;
+			} else if (now >= expires) {
+				missing.remove(requestPath);
+				return false;
+			}
+		} finally {
+			lock.unlock();
+		}
+		missingHits.incrementAndGet();
+		return true;
+	}
+	
+	public ResolvedPath resolve(String requestPath) throws IOException {
+		long now = System.currentTimeMillis();
+		if (capacity > 0 && ttl > 0) {
+			lock.lock();
+			try {
+				ResolvedPath resolved = entries.get(requestPath);
+				if (resolved != null && !resolved.isExpired(now)) {
+					hits.incrementAndGet();
+					return resolved;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		misses.incrementAndGet();
+		
+		/* Symlinks aren't followed at first, because whether the path is a symlink is needed for the host's symlinks setting. */
+		ResolvedPath resolved;
+		try {
+			Path path = Paths.get(host.get("root") + requestPath).toRealPath(LinkOption.NOFOLLOW_LINKS);
+			resolved = resolve(path, Files.isSymbolicLink(path), true, now + ttl);
+		} catch (NoSuchFileException e) {
+			if (missingCapacity > 0 && ttl > 0) {
+				put(missing, missingCapacity, requestPath, now + ttl);
+			}
+			throw e;
+		}
+		if (capacity > 0 && ttl > 0) {
+			put(entries, capacity, requestPath, resolved);
+		}
+		return resolved;
+	}
+	
+	private <V> void put(LinkedHashMap<String, V> map, int limit, String requestPath, V value) {
+		lock.lock();
+		try {
+			map.put(requestPath, value);
+			Iterator<V> iterator = map.values().iterator();
+			while (map.size() > limit && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private ResolvedPath resolve(Path path, boolean symlink, boolean allowDirectory, long expires) throws IOException {
+		
+		/*
+		 * A path reached through a symlink is only allowed if the host allows symlinks. Otherwise it must lie inside the host's root: a file is
+		 * checked by its path and a directory by its real path.
+		 * For a directory, the index pages are tried in order, and the first one which exists is resolved too. The index page counts as
+		 * reached through a symlink if either it or the directory is a symlink.
+		 */
+		Path realPath = path.toRealPath();
+		boolean directory = allowDirectory && Files.isDirectory(realPath);
+		String denial = null;
+		if (symlink) {
+			if (!host.get("symlinks").equals("yes")) {
+				denial = "Cannot follow symlinks";
+			}
+		} else if (!(directory ? realPath : path).startsWith(root)) {
+			denial = "Cannot access other parts of filesystem";
+		}
+		
+		ResolvedPath index = null;
+		if (directory && denial == null) {
+			for (String indexPage: host.getIndexPages()) {
+				Path indexPath = realPath.resolve(Paths.get(indexPage));
+				if (Files.exists(indexPath)) {
+					index = resolve(indexPath, symlink || Files.isSymbolicLink(indexPath), false, expires);
+					break;
+				}
+			}
+		}
+		return new ResolvedPath(path, realPath, symlink, directory, directory || Files.isReadable(realPath), denial, index, expires);
+	}
+	
+	public void invalidate(String requestPath) {
+		lock.lock();
+		try {
+			entries.remove(requestPath);
+			missing.remove(requestPath);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void changed(Path path) {
+		
+		/*
+		 * Drop the resolutions of the changed path and anything under it, and of the directory containing it (whose index page may have changed).
+		 * Any path remembered as missing may have just been created, so those are all forgotten.
+		 */
+		Path parent = path.getParent();
+		lock.lock();
+		try {
+			entries.values().removeIf(resolved -> resolved.getRealPath().startsWith(path) || resolved.getPath().startsWith(path)
+					|| resolved.getRealPath().equals(parent) || (resolved.getIndex() != null && resolved.getIndex().getRealPath().startsWith(path)));
+			missing.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public void reset(Path root) {
+		clear();
+	}
+	
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			missing.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public String toString() {
+		return hits.get() + " hits, " + misses.get() + " misses, " + missingHits.get() + " known missing";
+	}
+}
@@ -0,0 +1,168 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.logging.*;
+
+public class PutHandler extends RequestHandler {
+	
+	public static RequestBody createBody(JHTTP server, RequestParser parser) throws IOException {
+		
+		/*
+		 * Create the body for an upload before it is read, so it can be checked early and written straight to disk.
+		 * The body goes to a temporary file in the target directory with no in-memory stage, so uploads of any size use a bounded buffer
+		 * and can be renamed into place without copying.
+		 * If the upload is going to be refused (uploads disabled, not authorised or an invalid target), the body is read and discarded;
+		 * the PutHandler then produces the error response. Uploads which would exceed a quota are refused without reading the body at all.
+		 */
+		Config cfg = server.getServerConfig();
+		Host host = server.getHost(parser.getHeaders().getHeader("Host"));
+		long maxSize = getMaxSize(cfg, host);
+		RequestBody discarded = new RequestBody(server, null, 0, maxSize);
+		discarded.setDiscarding();
+		
+		Path target = getTarget(server, host, parser.getPath());
+		if (target == null || !host.get("uploads").equals("yes") || !isAuthorised(host.getDocumentConfig(parser.getPath()), parser.getHeaders())) {
+			return discarded;
+		}
+		Path directory = target.getParent();
+		
+		long length = parser.getContentLength();
+		if (maxSize > 0 && length > maxSize) {
+			throw new HTTPException(new Status("413"), "Upload larger than " + maxSize + " bytes");
+		}
+		checkReserve(host, directory, length);
+		return new RequestBody(server, directory, 0, maxSize);
+	}
+	
+	private static long getMaxSize(Config cfg, Host host) throws HTTPException {
+		
+		/* The smaller of the server's body size limit and the host's upload size limit (where 0 means no limit). Invalid limits fail the upload rather than the connection. */
+		long maxBodySize;
+		long maxUploadSize;
+		try {
+			maxBodySize = Long.parseLong(cfg.get("maxbodysize"));
+			maxUploadSize = Long.parseLong(host.get("uploadmaxsize"));
+		} catch (NumberFormatException e) {
+			throw new HTTPException(new Status("500"), "Invalid upload size limit");
+		}
+		if (maxBodySize <= 0) {
+			return maxUploadSize;
+		} else if (maxUploadSize <= 0) {
+			return maxBodySize;
+		} else {
+			return Math.min(maxBodySize, maxUploadSize);
+		}
+	}
+	
+	private static void checkReserve(Host host, Path directory, long length) throws IOException {
+		/* Refuse uploads which would leave less than the reserved amount of space free on the disk. */
+		long reserve;
+		try {
+			reserve = Long.parseLong(host.get("uploadreserve"));
+		} catch (NumberFormatException e) {
+			throw new HTTPException(new Status("500"), "Invalid upload reserve");
+		}
+		if (reserve > 0 && Files.getFileStore(directory).getUsableSpace() - length < reserve) {
+			throw new HTTPException(new Status("507"), "Not enough space for upload");
+		}
+	}
+	
+	private static Path getTarget(JHTTP server, Host host, String requestPath) throws IOException {
+		
+		/*
+		 * Resolve the file an upload is written to, or return null if it isn't a valid target.
+		 * The parent directory must already exist and (after following any symlinks) lie inside the host's root.
+		 * PHP files can't be uploaded, as they would then be executed by later requests.
+		 */
+		if (requestPath.equals("")) {
+			return null;
+		}
+		Path root = host.getPathCache().getRoot();
+		Path path = Paths.get(host.get("root") + requestPath).normalize();
+		Path parent = path.getParent();
+		if (parent == null || !Files.isDirectory(parent)) {
+			return null;
+		}
+		Path target = parent.toRealPath().resolve(path.getFileName());
+		if (!target.startsWith(root) || target.equals(root) || Files.isDirectory(target)) {
+			return null;
+		}
+		if (server.getMimeTypes().isPHP(target)) {
+			return null;
+		}
+		return target;
+	}
+	
+	public PutHandler(JHTTP server, Request request) {
+		super(server);
+		this.request = request;
+		Host host = request.getHost();
+		Config docConfig = host.getDocumentConfig(request.getPath());
+		RequestBody body = request.getBody();
+		
+		RequestHandler handler = null;
+		boolean authNeeded = false;
+		try {
+			
+			/*
+			 * Store the request body at the requested path, replacing the file if it exists.
+			 * Uploads must be enabled for the host, and documents which need authorisation need it for uploads too.
+			 */
+			authNeeded = !isAuthorised(docConfig, request.getHeaders());
+			if (authNeeded) {
+				handler = new ErrorHandler(server, request, new Status("401"), "HTTP Basic challenge");
+			} else if (!host.get("uploads").equals("yes")) {
+				handler = new ErrorHandler(server, request, new Status("405"), "Uploads are not allowed");
+				handler.getHeaders().setHeader("Allow", "GET, HEAD, POST");
+			} else {
+				Path target = getTarget(server, host, request.getPath());
+				if (target == null || body.isDiscarded()) {
+					throw new AccessDeniedException("Cannot upload to " + request.getPath());
+				}
+				checkReserve(host, target.getParent(), 0);
+				boolean exists = Files.exists(target);
+				body.moveTo(target);
+				log.log(Level.INFO, "Uploaded " + body.getSize() + " bytes to " + target);
+				
+				/*
+				 * The new file may be one that was cached as missing, or its directory's new index page, so those two paths are resolved again.
+				 * The directory may have been requested with or without a trailing slash.
+				 */
+				PathCache pathCache = host.getPathCache();
+				String requestPath = request.getPath();
+				String directory = requestPath.substring(0, requestPath.lastIndexOf('/', requestPath.length() - 2) + 1);
+				pathCache.invalidate(requestPath);
+				if (!directory.isEmpty()) {
+					pathCache.invalidate(directory);
+					pathCache.invalidate(directory.substring(0, directory.length() - 1));
+				}
+				
+				/* A 204 response must not have a Content-Length header, but a 201 has an empty body. */
+				status = new Status(exists ? "204" : "201");
+				headers = new Headers();
+				if (!exists) {
+					headers.setHeader("Content-Length", "0");
+				}
+				document = new Document(server);
+			}
+		} catch (HTTPException e) {
+			handler = new ErrorHandler(server, request, e.getStatus(), e.getMessage());
+		} catch (NoSuchFileException | FileNotFoundException e) {
+			handler = new ErrorHandler(server, request, new Status("404"), e.getMessage());
+		} catch (AccessDeniedException e) {
+			handler = new ErrorHandler(server, request, new Status("403"), e.getMessage());
+		} catch (IOException e) {
+			handler = new ErrorHandler(server, request, new Status("500"), "An IO error occurred while writing " + request.getPath());
+		} finally {
+			if (handler != null) {
+				status = handler.getStatus();
+				headers = handler.getHeaders();
+				document = handler.getDocument();
+			}
+			if (authNeeded) {
+				headers.setHeader("WWW-Authenticate", docConfig.get("authType") + " realm=" + docConfig.get("authRealm"));
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.util.*;
+
+public class RangeDocument extends Document {
+	
+	private final static int maxRanges = 16;
+	
+	private final Document source;
+	private final List<long[]> ranges;
+	private final ArrayList<byte[]> partHeaders;
+	private final byte[] closing;
+	private final long size;
+	
+	public static List<long[]> parseRanges(String header, long size) {
+		
+		/*
+		 * Parse a Range header such as "bytes=0-499, 1000-, -500" into a list of {start, length} pairs for a body of the given size.
+		 * Returns null if the header is malformed or asks for too many ranges (in which case it is ignored and the whole body is sent).
+		 * Returns an empty list if none of the ranges can be satisfied.
+		 */
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > maxRanges) {
+			return null;
+		}
+		
+		List<long[]> ranges = new ArrayList<>(specs.length);
+		try {
+			for (String spec: specs) {
+				spec = spec.trim();
+				int dash = spec.indexOf('-');
+				if (dash < 0) {
+					return null;
+				}
+				String first = spec.substring(0, dash).trim();
+				String last = spec.substring(dash + 1).trim();
+				long start, end;
+				if (first.equals("")) {
+					
+					/* Suffix range: the last n bytes. */
+					long suffix = Long.parseLong(last);
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = last.equals("") ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+					if (start < 0 || (!last.equals("") && Long.parseLong(last) < start)) {
+						return null;
+					}
+				}
+				if (start < size) {
+					ranges.add(new long[] {start, end - start + 1});
+				}
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return ranges;
+	}
+	
+	public RangeDocument(Document source, List<long[]> ranges) {
+		super();
+		this.source = source;
+		this.ranges = ranges;
+		this.path = source.getPath();
+		this.lastModified = source.getLastModified();
+		this.etag = source.getETag();
+		this.partHeaders = new ArrayList<>(ranges.size());
+		
+		/*
+		 * A single range is sent as it is, with the source's type.
+		 * Multiple ranges are sent as multipart/byteranges, each part having its own Content-Type and Content-Range.
+		 * The part headers are built up front so the total length is known.
+		 */
+		if (ranges.size() == 1) {
+			type = source.getType();
+			size = ranges.get(0)[1];
+			closing = new byte[0];
+		} else {
+			String boundary = Long.toHexString(new Random().nextLong()) + Long.toHexString(System.nanoTime());
+			type = "multipart/byteranges; boundary=" + boundary;
+			long total = 0;
+			for (long[] range: ranges) {
+				String partHeader = "\r\n--" + boundary + "\r\n"
+						+ "Content-Type: " + source.getType() + "\r\n"
+						+ "Content-Range: " + getContentRange(range, source.getSize()) + "\r\n\r\n";
+				byte[] partHeaderBytes = partHeader.getBytes();
+				partHeaders.add(partHeaderBytes);
+				total += partHeaderBytes.length + range[1];
+			}
+			closing = ("\r\n--" + boundary + "--\r\n").getBytes();
+			size = total + closing.length;
+		}
+	}
+	
+	private static String getContentRange(long[] range, long size) {
+		return "bytes " + range[0] + "-" + (range[0] + range[1] - 1) + "/" + size;
+	}
+	
+	public String getContentRange() {
+		/* The Content-Range header for a single-range response. */
+		return getContentRange(ranges.get(0), source.getSize());
+	}
+	
+	public byte[] getData() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	public int getLengthInt() {
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	public String getLength() {
+		return Long.toString(size);
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		for (int i = 0; i < ranges.size(); i++) {
+			if (!partHeaders.isEmpty()) {
+				out.write(partHeaders.get(i));
+			}
+			source.writeRange(out, ranges.get(i)[0], ranges.get(i)[1]);
+		}
+		out.write(closing);
+	}
+	
+	public void send(Connection conn) throws IOException {
+		
+		/* Each range is sent straight from the source document (e.g. with sendfile for files), with the part headers in between. */
+		for (int i = 0; i < ranges.size(); i++) {
+			if (!partHeaders.isEmpty()) {
+				conn.getOutputStream().write(partHeaders.get(i));
+			}
+			source.sendRange(conn, ranges.get(i)[0], ranges.get(i)[1]);
+		}
+		conn.getOutputStream().write(closing);
+	}
+}
@@ -2,8 +2,6 @@ package net.donotturnoff.jhttp;
 
 import java.net.*;
 import java.io.*;
-import java.util.*;
-import java.util.regex.*;
 import java.util.logging.*;
 
 public class Request {
@@ -11,140 +9,111 @@ public class Request {
 	private final JHTTP server;
 	private final Connection conn;
 	private final Logger log;
-	private BufferedReader in;
-	private String request;
-	private final ArrayList<String> lines;
-	private String verb, path, queryString, protocol, body;
-	private final Headers headers;
+	private final RequestParser parser;
+	private String verb, path, queryString, protocol;
+	private RequestBody body;
+	private Headers headers;
 	private Host host;
+	private Response response;
+	private IOException error;
+	private boolean received;
 	
 	public Request(JHTTP server, Connection conn) {
 		this.server = server;
 		this.log = server.getLog();
-		Config cfg = server.getServerConfig();
 		this.conn = conn;
-		Socket s = conn.getSocket();
+		this.parser = conn.getParser();
 		
-		request = "";
-		lines = new ArrayList<>(20);
 		headers = new Headers();
 		
 		verb = "";
 		path = "";
+		queryString = "";
 		protocol = "";
+	}
+	
+	public boolean read() {
 		
+		/* 
+		 * Read and parse the request line and headers from the connection, then read the body (delimited by Content-Length or chunked transfer-coding).
+		 * Returns false if the client closes the connection or leaves a kept-alive connection idle before starting a new request, in which case no response is sent.
+		 * Errors in reading the request are kept and answered when it is handled.
+		 */
 		try {
-			in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-			log.log(Level.FINE, "Input stream opened");
+			boolean started;
+			try {
+				started = conn.readHead();
+			} catch (SocketTimeoutException e) {
+				if (conn.getRequestCount() > 0 && !parser.isStarted()) {
+					log.log(Level.FINE, "Kept-alive connection idle");
+					return false;
+				}
+				throw e;
+			}
+			if (!started) {
+				log.log(Level.FINE, "Connection closed by client");
+				return false;
+			}
+			parse();
+			receive(conn.readBody());
 		} catch (IOException e) {
-			log.log(Level.WARNING, "Could not open input stream", e);
+			fail(e);
 		}
+		return true;
+	}
+	
+	public void receive(RequestBody body) {
+		/* Called once the whole request has been read and parsed. */
+		this.body = body;
+		received = true;
+	}
+	
+	public void fail(IOException error) {
+		/* Called if the request couldn't be read or parsed. */
+		this.error = error;
 	}
 	
 	public void handle() {
-		RequestHandler handler = null;
+		RequestHandler handler;
 		try {
-			int length = 0;
-			String line;
-			StringBuilder requestBuilder = new StringBuilder();
-			
-			/* 
-			 * Read all request headers and use Content-Length header to determine amount of body to read.
-			 * To do: handle incoming requests without Content-Length header (i.e. read until end).
-			 */
-			try {
-				while (!(line = in.readLine()).equals("")) {
-					if (line.split(":")[0].equals("Content-Length")) {
-						try {
-							length = Integer.parseInt(line.split(":")[1].trim());
-							if (length < 0) {
-								throw new NumberFormatException();
-							}
-						} catch (NumberFormatException e) {
-							e.printStackTrace();
-							length = 0;
-						}
-					}
-					requestBuilder.append(line).append("\r\n");
-					lines.add(line);
-				}
-			} catch (NullPointerException e) {
-				requestBuilder.append("\r\n");
+			if (error != null) {
+				throw error;
 			}
-			
-			/* Read body into char buffer. */
-			char[] bodyText = new char[length];
-			in.read(bodyText, 0, length);
-			
-			body = new String(bodyText);
-			requestBuilder.append(bodyText);
-			
-			request = requestBuilder.toString();
-			log.log(Level.FINE, "Received request: " + request);
-			
-			/* Parse and handle request. */
-			parse();
 			handler = new RequestHandler(server, this);
+		} catch (HTTPException e) {
+			log.log(Level.INFO, "Bad request: " + e.getMessage());
+			handler = new ErrorHandler(server, this, e.getStatus(), e.getMessage());
 		} catch (SocketTimeoutException e) {
 			log.log(Level.INFO, "Connection timed out");
 			handler = new ErrorHandler(server, this, new Status("408"));
 		} catch (IOException e) {
 			log.log(Level.WARNING, "Could not receive request", e);
 			handler = new ErrorHandler(server, this, new Status("500"), "Could not receive request");
+		}
+		try {
+			response = new Response(server, conn, handler);
 		} finally {
-			if (handler == null) {
-				handler = new ErrorHandler(server, this, new Status("500"), "RequestHandler is null");
-			}
-			Response response = new Response(server, conn, handler);
+			discard();
 		}
 	}
 	
-	private void parse() {
-		final String requestLineRegex = "(GET|HEAD|POST|PUT|DELETE|CONNECT|OPTIONS|TRACE|PATCH)\\s+([^?\\s]+)((?:[?&][^&\\s]+)*)\\s+(HTTP/\\d(\\.\\d)?)"; // Matches valid request line
-		final String headerRegex = "([\\w-]+): (.*)"; // Matches valid header ("key: value" pair)
-		Pattern requestLinePattern = Pattern.compile(requestLineRegex);
-		Pattern headerPattern = Pattern.compile(headerRegex);
-		for (String line: lines) {
-			Matcher requestLineMatcher = requestLinePattern.matcher(line);
-			Matcher headerMatcher = headerPattern.matcher(line);
-			
-			if (headerMatcher.find()) {
-				String[] parts = line.split(":");
-				String key = parts[0].trim();
-				String[] tail = Arrays.copyOfRange(parts, 1, parts.length);
-				String value = String.join(":", tail).trim(); 
-				headers.setHeader(key, value);
-				log.log(Level.FINER, "Header encountered: " + line);
-			} else if (requestLineMatcher.find()) {
-				
-				/* Extract verb, path, parameters and protocol from request path. */
-				String[] parts = line.split(" ");
-				
-				verb = parts[0].trim();
-				
-				/* Convert path to URL so the actual path and the query string can be separated. */
-				String urlString = parts[1].trim().replaceAll("/+$", "");
-				urlString = "http://" + urlString; // Add http:// just to make it a valid URL
-				try {
-					URL url = new URL(urlString);
-					path = url.getPath();
-					queryString = url.getQuery();
-					if (queryString == null) {
-						queryString = "";
-					}
-				} catch (MalformedURLException e) {
-					path = "";
-					queryString = "";
-				}
-				
-				protocol = parts[2].trim();
-				
-				log.log(Level.FINER, "Request line encountered: " + line);
-			} else {
-				log.log(Level.FINER, "Unexpected header encountered: " + line);
-			}
+	public void discard() {
+		/* Delete the body's temporary file, if there is one. */
+		if (body != null) {
+			body.delete();
 		}
-		log.log(Level.FINE, "Parsed request");
+	}
+	
+	public void parse() {
+		
+		/* Take the request line and headers from the parser. */
+		verb = parser.getVerb();
+		path = parser.getPath();
+		queryString = parser.getQueryString();
+		protocol = parser.getProtocol();
+		headers = parser.getHeaders();
+		
+		log.log(Level.FINE, "Parsed request: " + verb + " " + parser.getTarget() + " " + protocol);
 		host = server.getHost(getHeader("Host"));
 	}
 	
@@ -153,6 +122,11 @@ public class Request {
 	}
 	
 	public Host getHost() {
+		
+		/* Requests which couldn't be parsed are answered by the default host. */
+		if (host == null) {
+			host = server.getHost(getHeader("Host"));
+		}
 		return host;
 	}
 	
@@ -180,16 +154,15 @@ public class Request {
 		return headers.getHeader(key);
 	}
 	
-	public String getBody() {
+	public RequestBody getBody() {
 		return body;
 	}
 	
-	public void close() {
-		try {
-			in.close();
-			log.log(Level.FINE, "Input stream closed");
-		} catch (IOException e) {
-			log.log(Level.WARNING, "Could not close input stream", e);
-		}
+	public boolean isReceived() {
+		return received;
+	}
+	
+	public boolean isKeepAlive() {
+		return response != null && response.isKeepAlive();
 	}
 }
@@ -0,0 +1,166 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.logging.*;
+
+public class RequestBody {
+	
+	private final Logger log;
+	private final int memorySize;
+	private final long maxSize;
+	private final Path directory;
+	private boolean discarding;
+	private byte[] data;
+	private long size;
+	private Path file;
+	private OutputStream fileOut;
+	
+	public RequestBody(JHTTP server) throws NumberFormatException {
+		this(server.getLog(), server.getServerConfig());
+	}
+	
+	public RequestBody(Logger log, Config cfg) throws NumberFormatException {
+		
+		/*
+		 * The body of a request, kept as bytes.
+		 * Small bodies are held in memory; once a body grows past the memory limit it is moved to a temporary file, so large uploads use a bounded amount of memory.
+		 * Bodies larger than the maximum size are refused with a 413.
+		 */
+		this(log, null, Integer.parseInt(cfg.get("bodymemorysize")), Long.parseLong(cfg.get("maxbodysize")));
+	}
+	
+	public RequestBody(JHTTP server, Path directory, int memorySize, long maxSize) {
+		this(server.getLog(), directory, memorySize, maxSize);
+	}
+	
+	public RequestBody(Logger log, Path directory, int memorySize, long maxSize) {
+		
+		/* A body whose temporary file is created in the given directory (or the system's temporary directory if it is null). */
+		this.log = log;
+		this.directory = directory;
+		this.memorySize = memorySize;
+		this.maxSize = maxSize;
+		this.data = new byte[0];
+	}
+	
+	public void setDiscarding() {
+		/* Read the body but throw its bytes away, e.g. for a request which is going to be refused anyway. */
+		discarding = true;
+	}
+	
+	public void checkSize(long size) throws HTTPException {
+		if (maxSize > 0 && size > maxSize) {
+			throw new HTTPException(new Status("413"), "Request body larger than " + maxSize + " bytes");
+		}
+	}
+	
+	public boolean fitsInMemory(long length) {
+		/* Whether writing this many more bytes would leave the body in memory, so that nothing has to be written to disk. */
+		return discarding || file == null && size + length <= memorySize;
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkSize(size + len);
+		if (discarding) {
+			size += len;
+			return;
+		}
+		if (file == null && size + len > memorySize) {
+			spill();
+		}
+		if (file != null) {
+			fileOut.write(b, off, len);
+		} else {
+			if (size + len > data.length) {
+				byte[] bigger = new byte[(int) Math.min(memorySize, Math.max(data.length * 2, size + len))];
+				System.arraycopy(data, 0, bigger, 0, (int) size);
+				data = bigger;
+			}
+			System.arraycopy(b, off, data, (int) size, len);
+		}
+		size += len;
+	}
+	
+	private void spill() throws IOException {
+		
+		/* Move the body to a temporary file. */
+		if (directory == null) {
+			file = Files.createTempFile("jhttp-", ".body");
+		} else {
+			file = Files.createTempFile(directory, ".jhttp-", ".upload");
+		}
+		fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+		fileOut.write(data, 0, (int) size);
+		data = null;
+		log.log(Level.FINE, "Request body spilled to " + file);
+	}
+	
+	public void finish() throws IOException {
+		if (fileOut != null) {
+			fileOut.close();
+			fileOut = null;
+		}
+	}
+	
+	public boolean isDiscarded() {
+		return discarding;
+	}
+	
+	public void moveTo(Path target) throws IOException {
+		
+		/*
+		 * Move the complete body to the given path, replacing any existing file.
+		 * The body is first written to a temporary file in the same directory (if it isn't in one already), so it can be renamed into place atomically:
+		 * other requests see either the old file or the whole of the new one.
+		 */
+		if (file == null) {
+			spill();
+		}
+		finish();
+		try {
+			Files.move(file, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		file = null;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public InputStream getInputStream() throws IOException {
+		if (file != null) {
+			return Files.newInputStream(file);
+		} else {
+			return new ByteArrayInputStream(data, 0, (int) size);
+		}
+	}
+	
+	public void transferTo(OutputStream out) throws IOException {
+		if (file != null) {
+			Files.copy(file, out);
+		} else {
+			out.write(data, 0, (int) size);
+		}
+	}
+	
+	public void delete() {
+		/* Remove the temporary file, if there is one. */
+		try {
+			if (fileOut != null) {
+				fileOut.close();
+				fileOut = null;
+			}
+			if (file != null) {
+				Files.deleteIfExists(file);
+				file = null;
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not delete request body " + file, e);
+		}
+		data = new byte[0];
+		size = 0;
+	}
+}
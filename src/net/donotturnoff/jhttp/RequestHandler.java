@@ -1,6 +1,9 @@
 package net.donotturnoff.jhttp;
 
+import java.io.*;
 import java.text.SimpleDateFormat;
+import java.time.ZonedDateTime;
+import java.time.format.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -35,8 +38,10 @@ public class RequestHandler {
 			 * If the method is valid but cannot be handled yet, issue a 501 Not Implemented error.
 			 * If the method is invalid, issue a 400.
 			 */
-			if (verb.equals("GET") || verb.equals("HEAD") || verb.equals("POST") || verb.equals("PUT")) {
+			if (verb.equals("GET") || verb.equals("HEAD") || verb.equals("POST")) {
 				handler = new ResourceHandler(server, request);
+			} else if (verb.equals("PUT")) {
+				handler = new PutHandler(server, request);
 			} else if (verb.equals("DELETE") || verb.equals("CONNECT") || verb.equals("OPTIONS") || verb.equals("TRACE") || verb.equals("PATCH")) {
 				handler = new ErrorHandler(server, request, new Status("501"));
 			} else {
@@ -49,13 +54,15 @@ public class RequestHandler {
 		headers = handler.getHeaders();
 		document = handler.getDocument();
 		
-		if (verb.equals("HEAD")) {
-			document = new Document();
-		}
-		
 		setSpecificStatus();
 		addSpecificHeaders();
 		addGeneralHeaders();
+		
+		/* HEAD responses carry the same headers as GET (including Content-Length) but no body. */
+		if (verb.equals("HEAD")) {
+			document.close();
+			document = new Document();
+		}
 	}
 	
 	private boolean validateSyntax() {
@@ -113,7 +120,7 @@ public class RequestHandler {
 		 * If specific headers are set for a host or a document in the config, apply them here.
 		 * This can override the headers produced by the Handler.
 		 */
-		 
+		
 		Host host = request.getHost();
 		Config hostConfig = host.getHostConfig();
 		String[] hostHeaderStrings = hostConfig.get("headers").split("\r\n");
@@ -139,27 +146,93 @@ public class RequestHandler {
 		
 		/* 
 		 * Set the header telling the client the compression method.
-		 * Also, if the data has been compressed, remove the Content-Length header (as it will be inaccurate).
-		 * To do: Somehow determine length of compressed data.
+		 * The compression policy decides whether the body is worth compressing at all (by type and size) and which encoding the client prefers.
+		 * If the document has a cached compressed variant, it replaces the document and Content-Length gives its real length.
+		 * Otherwise the data is compressed as it is sent, so the Content-Length header is removed (as it would be inaccurate).
 		 */
 		
-		String methods = request.getHeader("Accept-Encoding");
-		if (methods.contains("gzip")) {
-			headers.setHeader("Content-Length", "");
-			headers.setHeader("Content-Encoding", "gzip");
-		} else if (methods.contains("deflate")) {
-			headers.setHeader("Content-Length", "");
-			headers.setHeader("Content-Encoding", "deflate");
-		} else {
-			headers.setHeader("Content-Encoding", "identity");
+		CompressionPolicy policy = server.getCompressionPolicy();
+		String type = headers.getHeader("Content-Type");
+		if (type.equals("")) {
+			type = document.getType();
+		}
+		String encoding = "identity";
+		if (policy.isCompressible(status, type, document.getSize())) {
+			headers.setHeader("Vary", "Accept-Encoding");
+			encoding = policy.chooseEncoding(request.getHeader("Accept-Encoding"));
+		}
+		
+		if (!encoding.equals("identity")) {
+			Document variant = document.getVariant(encoding);
+			if (variant != null) {
+				document = variant;
+				headers.setHeader("Content-Length", document.getLength());
+				headers.setHeader("ETag", document.getETag());
+			} else {
+				headers.setHeader("Content-Length", "");
+				
+				/* Compressing on the fly isn't guaranteed to produce the same bytes each time, so the ETag can only be weak. */
+				String etag = headers.getHeader("ETag");
+				if (etag.startsWith("\"")) {
+					headers.setHeader("ETag", "W/" + etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
+				}
+			}
 		}
+		headers.setHeader("Content-Encoding", encoding);
+	}
+	
+	protected static boolean isAuthorised(Config docConfig, Headers requestHeaders) throws IOException {
+		
+		/* Check the request's credentials against the credentials file if the document requires HTTP Basic authentication. */
+		if (!docConfig.get("authType").equals("Basic")) {
+			return true;
+		}
+		String[] authorisation = requestHeaders.getHeader("Authorization").split(" ");
+		if (authorisation[0].equals("Basic") && authorisation.length == 2) {
+			try {
+				String credentials = new String(Base64.getDecoder().decode(authorisation[1]));
+				return authenticate(docConfig.get("authFile"), credentials);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	private static boolean authenticate(String path, String credentials) throws IOException {
+		/* Searches for given credentials in credentials file. */
+		try (BufferedReader authReader = new BufferedReader(new FileReader(new File(path)))) {
+			String line;
+			while ((line = authReader.readLine()) != null) {
+				if (line.equals(credentials)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	protected static long parseDate(String date) {
+		
+		/* Parse a date in the format used by HTTP into milliseconds, or return -1 if it isn't valid. */
+		try {
+			return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+	
+	protected static String formatDate(long millis) {
+		
+		/* Format milliseconds as a date in the format used by HTTP, which is always in GMT. */
+		SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return dateFormat.format(new Date(millis));
 	}
 	
 	protected String getDateString() {
 		
 		/* Produce date in format used by HTTP. */
-		SimpleDateFormat dateFormat = new SimpleDateFormat("EE, dd MMM yyyy HH:mm:ss 'GMT'");
-		Date date = new Date();
-		return dateFormat.format(date);
+		return formatDate(System.currentTimeMillis());
 	}
 }
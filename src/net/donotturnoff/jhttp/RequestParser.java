@@ -0,0 +1,323 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+public class RequestParser {
+	
+	/* Methods, protocols and header names which are common enough to be matched against constants rather than allocated for every request. */
+	private final static String[] methods = {"GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS", "TRACE", "PATCH"};
+	private final static String[] protocols = {"HTTP/1.1", "HTTP/1.0"};
+	private final static String[] headerNames = {"Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Accept-Charset",
+			"Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Cookie", "Referer", "Origin", "Authorization",
+			"Cache-Control", "Pragma", "If-None-Match", "If-Modified-Since", "If-Range", "Range", "Upgrade-Insecure-Requests", "DNT", "Expect"};
+	private final static byte[][] methodBytes = toBytes(methods);
+	private final static byte[][] protocolBytes = toBytes(protocols);
+	private final static byte[][] headerNameBytes = toBytes(headerNames);
+	
+	private final int maxHeaderSize;
+	private final int maxHeaders;
+	private byte[] line;
+	private int lineLength;
+	private int size;
+	private int headerCount;
+	private boolean started;
+	private boolean complete;
+	private String verb, target, path, queryString, protocol;
+	private Headers headers;
+	private long contentLength;
+	
+	public RequestParser(Config cfg) throws NumberFormatException {
+		
+		/*
+		 * An incremental parser for the request line and header section of a request.
+		 * Bytes can be fed in as they arrive, in pieces of any size; the current line is copied into a buffer which is reused for every line and request.
+		 * The size of the header section and the number of header fields are limited, so a client can't make the server buffer an unbounded amount.
+		 */
+		maxHeaderSize = Integer.parseInt(cfg.get("maxheadersize"));
+		maxHeaders = Integer.parseInt(cfg.get("maxheaders"));
+		line = new byte[256];
+		reset();
+	}
+	
+	private static byte[][] toBytes(String[] strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes(StandardCharsets.ISO_8859_1);
+		}
+		return bytes;
+	}
+	
+	public void reset() {
+		/* Prepare for the next request. The headers object is replaced rather than cleared because the previous request keeps it. */
+		lineLength = 0;
+		size = 0;
+		headerCount = 0;
+		started = false;
+		complete = false;
+		verb = "";
+		target = "";
+		path = "";
+		queryString = "";
+		protocol = "";
+		headers = new Headers();
+		contentLength = 0;
+	}
+	
+	public boolean parse(ByteBuffer buffer) throws HTTPException {
+		
+		/*
+		 * Consume bytes from a heap buffer until the end of the header section, returning true once it has been reached.
+		 * The buffer is left positioned at the first byte of the body (or of the next request), so any bytes after the header section are not consumed.
+		 * If the header section is incomplete, all of the buffer is consumed and false is returned; parsing resumes when it is called again with more bytes.
+		 */
+		byte[] array = buffer.array();
+		int offset = buffer.arrayOffset();
+		int start = offset + buffer.position();
+		int end = offset + buffer.limit();
+		while (!complete && start < end) {
+			int lf = start;
+			while (lf < end && array[lf] != '\n') {
+				lf++;
+			}
+			int count = lf - start;
+			size += count + (lf < end ? 1 : 0);
+			if (size > maxHeaderSize) {
+				throw new HTTPException(new Status("431"), "Request header section too large");
+			}
+			append(array, start, count);
+			start = lf;
+			if (lf < end) {
+				start++;
+				endLine();
+			}
+		}
+		buffer.position(start - offset);
+		return complete;
+	}
+	
+	private void append(byte[] bytes, int start, int count) {
+		if (lineLength + count > line.length) {
+			byte[] bigger = new byte[Math.max(line.length * 2, lineLength + count)];
+			System.arraycopy(line, 0, bigger, 0, lineLength);
+			line = bigger;
+		}
+		System.arraycopy(bytes, start, line, lineLength, count);
+		lineLength += count;
+	}
+	
+	private void endLine() throws HTTPException {
+		
+		/* Handle a complete line (without its line feed). Blank lines before the request line are ignored; a blank line after it ends the header section. */
+		int length = lineLength;
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		lineLength = 0;
+		if (!started) {
+			if (length > 0) {
+				started = true;
+				parseRequestLine(length);
+			}
+		} else if (length == 0) {
+			complete = true;
+		} else {
+			parseHeader(length);
+		}
+	}
+	
+	private void parseRequestLine(int length) throws HTTPException {
+		
+		/* Request line format: <method> SP <request-target> SP <protocol> */
+		int first = indexOf((byte) ' ', 0, length);
+		int last = lastIndexOf((byte) ' ', length);
+		if (first <= 0 || last <= first + 1 || last == length - 1) {
+			throw new HTTPException(new Status("400"), "Malformed request line");
+		}
+		verb = toString(0, first, methods, methodBytes);
+		target = toString(first + 1, last, null, null);
+		protocol = toString(last + 1, length, protocols, protocolBytes);
+		if (!protocol.startsWith("HTTP/") || target.indexOf(' ') >= 0) {
+			throw new HTTPException(new Status("400"), "Malformed request line");
+		}
+		splitTarget();
+	}
+	
+	private void splitTarget() {
+		
+		/* Split the request target into the path (without trailing slashes) and the query string. */
+		String path = target;
+		int fragment = path.indexOf('#');
+		if (fragment >= 0) {
+			path = path.substring(0, fragment);
+		}
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			queryString = path.substring(query + 1);
+			path = path.substring(0, query);
+		}
+		int end = path.length();
+		while (end > 0 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		this.path = path.substring(0, end);
+	}
+	
+	private void parseHeader(int length) throws HTTPException {
+		
+		/*
+		 * Header format: <name>: <value>
+		 * Whitespace around the value is removed. Whitespace in the name and folded (continuation) lines are rejected as the RFC requires.
+		 * Repeated fields are combined into a comma-separated list, except Content-Length, which must not be repeated with a different value.
+		 */
+		if (++headerCount > maxHeaders) {
+			throw new HTTPException(new Status("431"), "Too many header fields");
+		}
+		int colon = indexOf((byte) ':', 0, length);
+		if (colon <= 0) {
+			throw new HTTPException(new Status("400"), "Malformed header field");
+		}
+		for (int i = 0; i < colon; i++) {
+			if (line[i] <= ' ') {
+				throw new HTTPException(new Status("400"), "Malformed header field");
+			}
+		}
+		int start = colon + 1;
+		int end = length;
+		while (start < end && (line[start] == ' ' || line[start] == '\t')) {
+			start++;
+		}
+		while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+			end--;
+		}
+		
+		String name = toName(colon);
+		String value = toString(start, end, null, null);
+		String previous = headers.getHeader(name);
+		if (name.equals("Content-Length")) {
+			if (!previous.equals("") && !previous.equals(value)) {
+				throw new HTTPException(new Status("400"), "Conflicting Content-Length fields");
+			}
+			contentLength = parseContentLength(value);
+		} else if (!previous.equals("")) {
+			value = previous + ", " + value;
+		}
+		headers.setHeader(name, value);
+	}
+	
+	private static long parseContentLength(String value) throws HTTPException {
+		if (value.isEmpty() || value.length() > 18) {
+			throw new HTTPException(new Status("400"), "Invalid Content-Length");
+		}
+		long length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new HTTPException(new Status("400"), "Invalid Content-Length");
+			}
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+	
+	private String toName(int length) {
+		/* Header names are case-insensitive, so known names are matched regardless of case and given their usual capitalisation. */
+		for (int i = 0; i < headerNameBytes.length; i++) {
+			byte[] name = headerNameBytes[i];
+			if (name.length == length && equalsIgnoreCase(name, length)) {
+				return headerNames[i];
+			}
+		}
+		return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+	}
+	
+	private boolean equalsIgnoreCase(byte[] name, int length) {
+		for (int i = 0; i < length; i++) {
+			if (name[i] != line[i] && (name[i] | 0x20) != (line[i] | 0x20)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private String toString(int start, int end, String[] constants, byte[][] constantBytes) {
+		if (constants != null) {
+			for (int i = 0; i < constantBytes.length; i++) {
+				if (regionEquals(constantBytes[i], start, end)) {
+					return constants[i];
+				}
+			}
+		}
+		return new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+	
+	private boolean regionEquals(byte[] bytes, int start, int end) {
+		if (bytes.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != line[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int indexOf(byte b, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (line[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private int lastIndexOf(byte b, int end) {
+		for (int i = end - 1; i >= 0; i--) {
+			if (line[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	public boolean isStarted() {
+		return started;
+	}
+	
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	public String getVerb() {
+		return verb;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	
+	public String getPath() {
+		return path;
+	}
+	
+	public String getQueryString() {
+		return queryString;
+	}
+	
+	public String getProtocol() {
+		return protocol;
+	}
+	
+	public Headers getHeaders() {
+		return headers;
+	}
+	
+	public boolean isExpectingContinue() {
+		return protocol.equals("HTTP/1.1") && headers.getHeader("Expect").equalsIgnoreCase("100-continue");
+	}
+	
+	public long getContentLength() {
+		return contentLength;
+	}
+}
@@ -0,0 +1,65 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.file.*;
+
+public class ResolvedPath {
+	
+	private final Path path;
+	private final Path realPath;
+	private final boolean symlink;
+	private final boolean directory;
+	private final boolean readable;
+	private final String denial;
+	private final ResolvedPath index;
+	private final long expires;
+	
+	public ResolvedPath(Path path, Path realPath, boolean symlink, boolean directory, boolean readable, String denial, ResolvedPath index, long expires) {
+		
+		/*
+		 * What a request path resolved to: its absolute path (without following symlinks) and its real path, whether it was reached through a
+		 * symlink, whether it is a directory (and if so the index page found in it, if any), and the reason access to it is denied, if it is.
+		 */
+		this.path = path;
+		this.realPath = realPath;
+		this.symlink = symlink;
+		this.directory = directory;
+		this.readable = readable;
+		this.denial = denial;
+		this.index = index;
+		this.expires = expires;
+	}
+	
+	public Path getPath() {
+		return path;
+	}
+	
+	public Path getRealPath() {
+		return realPath;
+	}
+	
+	public boolean isSymlink() {
+		return symlink;
+	}
+	
+	public boolean isDirectory() {
+		return directory;
+	}
+	
+	public ResolvedPath getIndex() {
+		return index;
+	}
+	
+	public void checkAccess() throws AccessDeniedException {
+		/* Throw if the file can't be read, if it was reached through a symlink the host doesn't allow, or if it lies outside the host's root. */
+		if (!readable) {
+			throw new AccessDeniedException("No read privilege");
+		}
+		if (denial != null) {
+			throw new AccessDeniedException(denial);
+		}
+	}
+	
+	public boolean isExpired(long now) {
+		return now >= expires;
+	}
+}
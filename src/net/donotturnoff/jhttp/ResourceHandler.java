@@ -2,7 +2,6 @@ package net.donotturnoff.jhttp;
 
 import java.io.*;
 import java.nio.file.*;
-import java.util.*;
 
 public class ResourceHandler extends RequestHandler {
 	public ResourceHandler(JHTTP server, Request request) {
@@ -14,41 +13,30 @@ public class ResourceHandler extends RequestHandler {
 		RequestHandler handler = null;
 		boolean authNeeded = false;
 		try {
-			if (docConfig.get("authType").equals("Basic")) {
-				authNeeded = true;
-				String[] authorisation = request.getHeader("Authorization").split(" ");
-				if (authorisation[0].equals("Basic")) {
-					if (authorisation.length == 2) {
-						String credentials = new String(Base64.getDecoder().decode(authorisation[1])); // To do: handle error where no credentials are supplied
-						authNeeded = !authenticate(docConfig.get("authFile"), credentials);
-					}
-				}
-			}
+			authNeeded = !isAuthorised(docConfig, request.getHeaders());
 			
 			/* If authorisation is needed and hasn't been supplied yet, produce a 401 error page. */
 			if (authNeeded) {
 				handler = new ErrorHandler(server, request, new Status("401"), "HTTP Basic challenge");
+			} else if (host.getPathCache().isMissing(request.getPath())) {
+				handler = new ErrorHandler(server, request, new Status("404"));
 			} else {
 				
 				/* 
-				 * Produce the absolute path of the requested resource. 
-				 * Symlinks aren't followed because they are indicated by an explicit flag which needs the original file, not the linked-to file, in order to be set.
-				 */
-				Path path = Paths.get(host.get("root") + request.getPath()).toRealPath(LinkOption.NOFOLLOW_LINKS);
-				boolean isSymlink = Files.isSymbolicLink(path);
-				
-				/* 
-				 * Handle resource as either directory or file.
-				 * Symlinks are indicated by the isSymlink flag and are handled in the respective Handler.
+				 * Resolve the requested resource (usually from the host's path cache), then handle it as either directory or file.
+				 * Whether it was reached through a symlink is part of the resolution, and is checked by the respective Handler.
 				 */
-				if (Files.isDirectory(path.toRealPath())) { // To do: Remove toRealPath?
-					handler = new DirectoryHandler(server, path, request, isSymlink);
+				ResolvedPath resolved = host.getPathCache().resolve(request.getPath());
+				if (resolved.isDirectory()) {
+					handler = new DirectoryHandler(server, resolved, request);
 				} else {
-					handler = new FileHandler(server, path, request, isSymlink);
+					handler = new FileHandler(server, resolved, request);
 				}
 			}
 		} catch (NoSuchFileException | FileNotFoundException e) {
-			handler = new ErrorHandler(server, request, new Status("404"), e.getMessage());
+			
+			/* The page doesn't name the missing file, so that every 404 for a host is the same and can be sent from memory. */
+			handler = new ErrorHandler(server, request, new Status("404"));
 		} catch (AccessDeniedException e) {
 			handler = new ErrorHandler(server, request, new Status("403"), e.getMessage());
 		} catch (IOException e) {
@@ -66,16 +54,4 @@ public class ResourceHandler extends RequestHandler {
 			}
 		}
 	}
-	
-	private boolean authenticate(String path, String credentials) throws IOException {
-		/* Searches for given credentials in credentials file. */
-		BufferedReader authReader = new BufferedReader(new FileReader(new File(path)));
-		String line;
-		while ((line = authReader.readLine()) != null) {
-			if (line.equals(credentials)) {
-				return true;
-			}
-		}
-		return false;
-	}
 }
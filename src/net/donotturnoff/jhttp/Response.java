@@ -1,15 +1,15 @@
 package net.donotturnoff.jhttp;
 
-import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.util.zip.*;
 import java.util.logging.*;
 
 public class Response {
-
+	
+	private final JHTTP server;
 	private final Request request;
-	private final Socket s;
+	private final Connection conn;
 	private final Config cfg;
 	private final Logger log;
 	private DataOutputStream headerOut;
@@ -17,16 +17,19 @@ public class Response {
 	private final Status status;
 	private final Headers headers;
 	private final Document document;
+	private boolean keepAlive;
+	private boolean chunked;
 	
 	public Response(JHTTP server, Connection conn, RequestHandler handler) {
 		this(server, conn, handler.getStatus(), handler.getHeaders(), handler.getDocument());
 	}
 	
 	public Response(JHTTP server, Connection conn, Status status, Headers headers, Document document) {
+		this.server = server;
 		this.log = server.getLog();
 		this.cfg = server.getServerConfig();
 		this.request = conn.getRequest();
-		this.s = conn.getSocket();
+		this.conn = conn;
 		this.status = status;
 		this.headers = headers;
 		this.document = document;
@@ -37,19 +40,24 @@ public class Response {
 	private DataOutputStream createHeaderOutputStream() throws IOException {
 		
 		/* Header output stream is always a plain DataOutputStream because headers cannot be compressed. */
-		return new DataOutputStream(s.getOutputStream());
+		return new DataOutputStream(conn.getOutputStream());
 	}
 	
 	private OutputStream createBodyOutputStream() throws IOException {
 		
-		/* Create appropriate output stream for specified compression type. */
-		String methods = request.getHeader("Accept-Encoding");
-		if (methods.contains("gzip")) {
-			return new GZIPOutputStream(s.getOutputStream());
-		} else if (methods.contains("deflate")) {
-			return new DeflaterOutputStream(s.getOutputStream());
+		/* 
+		 * Create appropriate output stream for the compression type chosen by the handler.
+		 * Documents which are already compressed (cached variants) and responses which have no body are sent as they are.
+		 * The connection's stream is shielded from close() so that finishing the body doesn't close the socket.
+		 */
+		OutputStream out = chunked ? new ChunkedOutputStream(conn) : new UnclosableOutputStream(conn.getOutputStream());
+		String encoding = headers.getHeader("Content-Encoding");
+		if (encoding.equals(document.getEncoding()) || !hasBody()) {
+			return out;
+		} else if (encoding.equals("gzip") || encoding.equals("deflate")) {
+			return server.getCompressionPolicy().compress(out, encoding);
 		} else {
-			return new DataOutputStream(s.getOutputStream());
+			return out;
 		}
 	}
 	
@@ -71,6 +79,18 @@ public class Response {
 				protocol = cfg.get("defaultprotocol");
 			}
 			
+			/* 
+			 * The connection is only kept open if the client can tell where the body ends.
+			 * When the length is unknown (e.g. compressed or streamed bodies), HTTP/1.1 clients are sent the body in chunks;
+			 * for older clients the end of the body is marked by closing the connection.
+			 * Responses which never have a body (HEAD, 204 and 304) can always be kept open.
+			 */
+			boolean hasBody = hasBody();
+			chunked = hasBody && headers.getHeader("Content-Length").length() == 0 && request.getProtocol().equals("HTTP/1.1");
+			keepAlive = conn.canKeepAlive(request) && (!hasBody || chunked || headers.getHeader("Content-Length").length() > 0);
+			headers.setHeader("Connection", keepAlive ? "keep-alive" : "close");
+			headers.setHeader("Transfer-Encoding", chunked ? "chunked" : "");
+			
 			headerOut = createHeaderOutputStream();
 			log.log(Level.FINE, "Header output stream opened");
 			
@@ -78,7 +98,9 @@ public class Response {
 			for (Map.Entry<String, String> entry: headers.getHeaders().entrySet()) {
 				String key = entry.getKey();
 				String value = entry.getValue();
-				headerOut.writeBytes(key + ": " + value + "\r\n");
+				if (value.length() > 0) {
+					headerOut.writeBytes(key + ": " + value + "\r\n");
+				}
 			}
 			headerOut.writeBytes("\r\n");
 			log.log(Level.FINEST, "Headers written");
@@ -87,27 +109,133 @@ public class Response {
 			bodyOut = createBodyOutputStream();
 			log.log(Level.FINE, "Body output stream opened");
 			
-			bodyOut.write(document.getData());
+			/* 
+			 * Uncompressed bodies are sent by the document itself, so that files and cached buffers can go straight to the socket.
+			 * Compressed and chunked bodies are streamed through the body stream.
+			 */
+			if (!hasBody) {
+				log.log(Level.FINEST, "No body for " + status.getStatus() + " response to " + request.getVerb() + " request");
+			} else if (bodyOut instanceof DeflaterOutputStream || chunked) {
+				document.write(bodyOut);
+			} else {
+				document.send(conn);
+			}
 			log.log(Level.FINEST, "Body written");
 			
-			headerOut.flush();
-			bodyOut.flush();
-			
+			close();
 			log.log(Level.FINE, "Response sent");
 		} catch (IOException e) {
-			log.log(Level.WARNING, "Could not send response");
+			log.log(Level.WARNING, "Could not send response", e);
+			keepAlive = false;
 		} finally {
-			close();
+			
+			/* If the body wasn't finished, the compression stream is dropped without its trailer so that its Deflater isn't leaked. */
+			if (bodyOut != null) {
+				server.getCompressionPolicy().discard(bodyOut);
+			}
+			document.close();
 		}
 	}
 	
-	public void close() {
-		try {
-			bodyOut.close();
-			headerOut.close();
-			log.log(Level.FINE, "Output stream closed");
-		} catch (IOException e) {
-			log.log(Level.WARNING, "Could not send response");
+	private boolean hasBody() {
+		String code = status.getCode();
+		return !(request.getVerb().equals("HEAD") || code.equals("204") || code.equals("304"));
+	}
+	
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+	
+	public void close() throws IOException {
+		
+		/* Closing the body stream finishes any compression; the connection's stream stays open and the connection decides when to flush it. */
+		bodyOut.close();
+		conn.finishResponse();
+		log.log(Level.FINE, "Response finished");
+	}
+	
+	private static class ChunkedOutputStream extends OutputStream {
+		
+		/*
+		 * Frames the body in chunks (hexadecimal size, data, CRLF), ended by a zero-size chunk.
+		 * Small writes are collected into chunks of up to 8 KB; flushing sends the current chunk to the client straight away.
+		 */
+		private final static int chunkSize = 8192;
+		private final static byte[] crlf = {'\r', '\n'};
+		private final static byte[] lastChunk = {'0', '\r', '\n', '\r', '\n'};
+		
+		private final Connection conn;
+		private final byte[] buffer;
+		private int count;
+		private boolean closed;
+		
+		public ChunkedOutputStream(Connection conn) {
+			this.conn = conn;
+			this.buffer = new byte[chunkSize];
+		}
+		
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (count + len > chunkSize) {
+				writeBuffer();
+			}
+			if (len >= chunkSize) {
+				writeChunk(b, off, len);
+			} else {
+				System.arraycopy(b, off, buffer, count, len);
+				count += len;
+			}
+		}
+		
+		private void writeBuffer() throws IOException {
+			if (count > 0) {
+				writeChunk(buffer, 0, count);
+				count = 0;
+			}
+		}
+		
+		private void writeChunk(byte[] b, int off, int len) throws IOException {
+			OutputStream out = conn.getOutputStream();
+			out.write(Integer.toHexString(len).getBytes());
+			out.write(crlf);
+			out.write(b, off, len);
+			out.write(crlf);
+		}
+		
+		public void flush() throws IOException {
+			writeBuffer();
+			conn.flushResponse();
+		}
+		
+		public void close() throws IOException {
+			/* The connection's stream stays open; the connection decides when to flush it. */
+			if (closed) {
+				return;
+			}
+			closed = true;
+			writeBuffer();
+			conn.getOutputStream().write(lastChunk);
+		}
+	}
+	
+	private static class UnclosableOutputStream extends FilterOutputStream {
+		
+		public UnclosableOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		public void flush() {
+			/* Flushing is left to the connection, so that pipelined responses can be batched. */
+		}
+		
+		public void close() {
 		}
 	}
 }
@@ -0,0 +1,82 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+public class SingleFlight<K, V> {
+	
+	private final ConcurrentHashMap<K, CompletableFuture<V>> calls;
+	private final long timeout;
+	
+	public SingleFlight(long timeout) {
+		
+		/*
+		 * Coalesces concurrent work for the same key: the first caller does the work and the others wait for its result (or its exception) and share it.
+		 * A caller which has waited for longer than the timeout gives up waiting and does the work itself.
+		 */
+		this.calls = new ConcurrentHashMap<>();
+		this.timeout = timeout;
+	}
+	
+	public V execute(K key, Loader<V> loader) throws IOException {
+		CompletableFuture<V> call = join(key);
+		if (call != null) {
+			try {
+				return await(call);
+			} catch (TimeoutException e) {
+				return loader.load();
+			}
+		}
+		V value = null;
+		IOException failure = null;
+		try {
+			value = loader.load();
+			return value;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			if (failure != null) {
+				fail(key, failure);
+			} else {
+				finish(key, value);
+			}
+		}
+	}
+	
+	public CompletableFuture<V> join(K key) {
+		/* Return the call in flight for the key, or null if there isn't one, in which case the caller is now making it and must finish (or fail) it. */
+		return calls.putIfAbsent(key, new CompletableFuture<>());
+	}
+	
+	public V await(CompletableFuture<V> call) throws IOException, TimeoutException {
+		try {
+			return call.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for another request");
+		}
+	}
+	
+	public void finish(K key, V value) {
+		CompletableFuture<V> call = calls.remove(key);
+		if (call != null) {
+			call.complete(value);
+		}
+	}
+	
+	public void fail(K key, IOException e) {
+		CompletableFuture<V> call = calls.remove(key);
+		if (call != null) {
+			call.completeExceptionally(e);
+		}
+	}
+	
+	public interface Loader<V> {
+		V load() throws IOException;
+	}
+}
@@ -0,0 +1,122 @@
+package net.donotturnoff.jhttp;
+
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+public class WorkerPool {
+	
+	private final Logger log;
+	private final Executor executor;
+	private final Semaphore permits;
+	private final boolean blocking;
+	private final ConcurrentLinkedQueue<Runnable> waiting;
+	
+	public WorkerPool(JHTTP server, Executor executor) {
+		this(server.getLog(), executor);
+	}
+	
+	public WorkerPool(Logger log, Executor executor) {
+		
+		/* An unbounded pool: every task is run immediately by the given executor. */
+		this.log = log;
+		this.executor = executor;
+		this.permits = null;
+		this.blocking = false;
+		this.waiting = new ConcurrentLinkedQueue<>();
+	}
+	
+	public WorkerPool(JHTTP server) throws IllegalArgumentException {
+		
+		/*
+		 * A bounded pool with a fixed number of worker threads and a fixed-size queue.
+		 * Each running or queued task holds a permit, so the number of outstanding tasks (and the memory they use) can never exceed workers + queue.
+		 * When all permits are taken, the overload policy either rejects new tasks or blocks the submitter until a permit is released.
+		 * The permits are the only limit: a task releases its permit just before its thread is free again, so an executor queue of the same size could briefly be full.
+		 */
+		this.log = server.getLog();
+		Config cfg = server.getServerConfig();
+		int workers = Integer.parseInt(cfg.get("workers"));
+		int queue = Integer.parseInt(cfg.get("queue"));
+		this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+		this.permits = new Semaphore(workers + queue);
+		this.blocking = cfg.get("overload").equals("block");
+		this.waiting = new ConcurrentLinkedQueue<>();
+	}
+	
+	public boolean isBlocking() {
+		return permits != null && blocking;
+	}
+	
+	public boolean execute(Runnable task) {
+		/* Run the task, waiting for capacity if the overload policy says so. Returns false if the task was rejected. */
+		if (permits == null) {
+			return submit(task);
+		} else if (blocking) {
+			permits.acquireUninterruptibly();
+			return submit(task);
+		} else {
+			return tryExecute(task);
+		}
+	}
+	
+	public boolean tryExecute(Runnable task) {
+		/* Run the task only if there is capacity for it right now. Returns false if the task was rejected. */
+		if (permits == null || permits.tryAcquire()) {
+			return submit(task);
+		} else {
+			log.log(blocking ? Level.FINE : Level.WARNING, "Worker pool full");
+			return false;
+		}
+	}
+	
+	public void awaitCapacity() {
+		/* Wait until at least one more task could be accepted, without taking its permit. */
+		if (permits != null && blocking) {
+			permits.acquireUninterruptibly();
+			permits.release();
+		}
+	}
+	
+	public void whenAvailable(Runnable retry) {
+		
+		/*
+		 * Run the given callback once a permit has been released, for callers which must not block (such as the event loops) but should wait rather than be rejected.
+		 * The callback runs on the thread releasing the permit, so it should only hand the retry back to its owner. The permit may be taken by someone else first,
+		 * in which case the caller just waits again.
+		 */
+		waiting.add(retry);
+		wake();
+	}
+	
+	private void wake() {
+		Runnable retry;
+		while (permits.availablePermits() > 0 && (retry = waiting.poll()) != null) {
+			retry.run();
+		}
+	}
+	
+	private boolean submit(Runnable task) {
+		try {
+			if (permits == null) {
+				executor.execute(task);
+			} else {
+				executor.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+						wake();
+					}
+				});
+			}
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (permits != null) {
+				permits.release();
+				wake();
+			}
+			log.log(Level.WARNING, "Worker pool rejected task", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BodyDecoderTest {
+	
+	private final static Logger log = Logger.getLogger(BodyDecoderTest.class.getName());
+	
+	private Config cfg;
+	private RequestParser parser;
+	private BodyDecoder decoder;
+	
+	@BeforeEach
+	public void setUp() {
+		cfg = new Config();
+		parser = new RequestParser(cfg);
+		decoder = new BodyDecoder(cfg);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		decoder.discard();
+	}
+	
+	private static ByteBuffer bytes(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	private ByteBuffer start(String head) throws IOException {
+		
+		/* Parse a request's header section and prepare the decoder for its body, returning whatever follows the header section. */
+		ByteBuffer buffer = bytes(head);
+		assertTrue(parser.parse(buffer));
+		decoder.reset(parser, new RequestBody(log, cfg));
+		return buffer;
+	}
+	
+	private String body() throws IOException {
+		try (InputStream in = decoder.getBody().getInputStream()) {
+			return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+		}
+	}
+	
+	private static String rest(ByteBuffer buffer) {
+		return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.ISO_8859_1);
+	}
+	
+	private static int statusOf(HTTPException e) {
+		return Integer.parseInt(e.getStatus().getCode());
+	}
+	
+	@Test
+	public void requestWithoutBodyIsComplete() throws IOException {
+		start("GET / HTTP/1.1\r\n\r\n");
+		assertFalse(decoder.hasBody());
+		assertTrue(decoder.decode(bytes("")));
+		assertEquals(0, decoder.getBody().getSize());
+	}
+	
+	@Test
+	public void decodesContentLengthBody() throws IOException {
+		ByteBuffer buffer = start("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\nhel");
+		assertTrue(decoder.hasBody());
+		assertFalse(decoder.decode(buffer));
+		
+		/* Bytes after the body belong to the next pipelined request and are left in the buffer. */
+		ByteBuffer next = bytes("loGET / HTTP/1.1\r\n\r\n");
+		assertTrue(decoder.decode(next));
+		assertEquals("hello", body());
+		assertEquals("GET / HTTP/1.1\r\n\r\n", rest(next));
+	}
+	
+	@Test
+	public void decodesChunkedBody() throws IOException {
+		ByteBuffer buffer = start("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "4\r\nWiki\r\n5;name=value\r\npedia\r\nE\r\n in\r\n\r\nchunks.\r\n0\r\nX-Trailer: 1\r\n\r\nNEXT");
+		assertTrue(decoder.decode(buffer));
+		assertEquals("Wikipedia in\r\n\r\nchunks.", body());
+		assertEquals("NEXT", rest(buffer));
+	}
+	
+	@Test
+	public void decodesChunkedBodyInPieces() throws IOException {
+		
+		/* Every size line, chunk and CRLF is split between calls by feeding one byte at a time. */
+		start("POST / HTTP/1.1\r\nTransfer-Encoding: Chunked\r\n\r\n");
+		byte[] encoded = "3\r\nabc\r\na\nabcdefghij\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < encoded.length - 1; i++) {
+			assertFalse(decoder.decode(ByteBuffer.wrap(encoded, i, 1)));
+		}
+		assertTrue(decoder.decode(ByteBuffer.wrap(encoded, encoded.length - 1, 1)));
+		assertEquals("abcabcdefghij", body());
+	}
+	
+	@Test
+	public void rejectsBothLengthHeaders() {
+		HTTPException e = assertThrows(HTTPException.class, () -> start("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 4\r\n\r\n"));
+		assertEquals(400, statusOf(e));
+	}
+	
+	@Test
+	public void rejectsUnsupportedTransferCoding() {
+		HTTPException e = assertThrows(HTTPException.class, () -> start("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"));
+		assertEquals(501, statusOf(e));
+	}
+	
+	@Test
+	public void rejectsInvalidChunkSizes() throws IOException {
+		String[] sizes = {"", "x", "-1", "1 2", "1000000000000000", "+5", "-0", " 5", "5 ", "0x5", "5\t"};
+		for (String size: sizes) {
+			start("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+			HTTPException e = assertThrows(HTTPException.class, () -> decoder.decode(bytes(size + "\r\n")), size);
+			assertEquals(400, statusOf(e), size);
+			parser.reset();
+		}
+	}
+	
+	@Test
+	public void rejectsChunkLongerThanItsSize() throws IOException {
+		start("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+		HTTPException e = assertThrows(HTTPException.class, () -> decoder.decode(bytes("2\r\nabc\r\n0\r\n\r\n")));
+		assertEquals(400, statusOf(e));
+	}
+	
+	@Test
+	public void rejectsOversizedContentLength() {
+		cfg.put("maxbodysize", "16");
+		HTTPException e = assertThrows(HTTPException.class, () -> start("POST / HTTP/1.1\r\nContent-Length: 17\r\n\r\n"));
+		assertEquals(413, statusOf(e));
+	}
+	
+	@Test
+	public void acceptsBodyAtSizeLimit() throws IOException {
+		cfg.put("maxbodysize", "16");
+		ByteBuffer buffer = start("POST / HTTP/1.1\r\nContent-Length: 16\r\n\r\n0123456789abcdef");
+		assertTrue(decoder.decode(buffer));
+		assertEquals(16, decoder.getBody().getSize());
+	}
+	
+	@Test
+	public void rejectsOversizedChunkedBody() throws IOException {
+		
+		/* A chunked body has no declared length, so it is refused as soon as a chunk size would take it past the limit. */
+		cfg.put("maxbodysize", "16");
+		ByteBuffer buffer = start("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n8\r\n01234567\r\n9\r\n");
+		HTTPException e = assertThrows(HTTPException.class, () -> decoder.decode(buffer));
+		assertEquals(413, statusOf(e));
+		assertEquals(8, decoder.getBody().getSize());
+	}
+	
+	@Test
+	public void spillsLargeBodyToFile() throws IOException {
+		cfg.put("bodymemorysize", "8");
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			data.append(i % 10);
+		}
+		ByteBuffer buffer = start("POST / HTTP/1.1\r\nContent-Length: 1000\r\n\r\n" + data);
+		assertTrue(decoder.decode(buffer));
+		assertEquals(data.toString(), body());
+	}
+}
@@ -0,0 +1,203 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionPolicyTest {
+	
+	private Config cfg;
+	private CompressionPolicy policy;
+	
+	@BeforeEach
+	public void setUp() {
+		cfg = new Config();
+		policy = new CompressionPolicy(cfg);
+	}
+	
+	private static byte[] sample(int length) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < length; i++) {
+			text.append("line ").append(i).append(" of some compressible text\n");
+		}
+		return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	@Test
+	public void choosesEncodingByQuality() {
+		assertEquals("gzip", policy.chooseEncoding("gzip"));
+		assertEquals("gzip", policy.chooseEncoding("x-gzip"));
+		assertEquals("deflate", policy.chooseEncoding("deflate"));
+		assertEquals("gzip", policy.chooseEncoding("deflate, gzip"));
+		assertEquals("deflate", policy.chooseEncoding("gzip;q=0.5, deflate"));
+		assertEquals("deflate", policy.chooseEncoding("gzip; q=0.5, deflate; q=0.6"));
+		assertEquals("gzip", policy.chooseEncoding("gzip;q=0.5, deflate;q=0.5"));
+		assertEquals("gzip", policy.chooseEncoding("br, GZip;q=0.1"));
+	}
+	
+	@Test
+	public void refusesEncodingsWithZeroQuality() {
+		assertEquals("identity", policy.chooseEncoding(""));
+		assertEquals("identity", policy.chooseEncoding("identity"));
+		assertEquals("identity", policy.chooseEncoding("br"));
+		assertEquals("identity", policy.chooseEncoding("gzip;q=0"));
+		assertEquals("identity", policy.chooseEncoding("gzip;q=0.000, deflate;q=0"));
+		assertEquals("deflate", policy.chooseEncoding("gzip;q=0, deflate"));
+	}
+	
+	@Test
+	public void treatsInvalidQualityAsZero() {
+		assertEquals("identity", policy.chooseEncoding("gzip;q=high"));
+		assertEquals("deflate", policy.chooseEncoding("gzip;q=, deflate"));
+	}
+	
+	@Test
+	public void appliesWildcardToUnlistedEncodings() {
+		assertEquals("gzip", policy.chooseEncoding("*"));
+		assertEquals("identity", policy.chooseEncoding("*;q=0"));
+		assertEquals("deflate", policy.chooseEncoding("deflate, *;q=0"));
+		assertEquals("deflate", policy.chooseEncoding("gzip;q=0.2, *;q=0.5"));
+	}
+	
+	@Test
+	public void compressesOnlyMatchingTypesAndSizes() {
+		Status ok = new Status("200");
+		assertTrue(policy.isCompressible(ok, "text/html", 2048));
+		assertTrue(policy.isCompressible(ok, "Text/HTML; charset=UTF-8", 2048));
+		assertTrue(policy.isCompressible(ok, "application/json", 2048));
+		assertTrue(policy.isCompressible(ok, "text/plain", -1));
+		assertTrue(policy.isCompressible(ok, "text/plain", 1024));
+		assertFalse(policy.isCompressible(ok, "text/plain", 1023));
+		assertFalse(policy.isCompressible(ok, "image/png", 2048));
+		assertFalse(policy.isCompressible(ok, "text/event-stream", 2048));
+	}
+	
+	@Test
+	public void neverCompressesPartialOrEmptyResponses() {
+		for (String code: new String[] {"204", "206", "304"}) {
+			assertFalse(policy.isCompressible(new Status(code), "text/html", 2048), code);
+		}
+		assertTrue(policy.isCompressible(new Status("404"), "text/html", 2048));
+	}
+	
+	@Test
+	public void writesGzipFraming() throws IOException {
+		byte[] data = sample(100000);
+		byte[] compressed = policy.compress(data, "gzip");
+		
+		/* Header: magic number, deflate method, no flags, no time, no extra flags, unknown OS. */
+		assertEquals(0x1f, compressed[0] & 0xff);
+		assertEquals(0x8b, compressed[1] & 0xff);
+		assertEquals(Deflater.DEFLATED, compressed[2]);
+		assertEquals(0, compressed[3]);
+		
+		/* Trailer: CRC-32 and length of the uncompressed data, little-endian. */
+		ByteBuffer trailer = ByteBuffer.wrap(compressed, compressed.length - 8, 8).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		assertEquals((int) crc.getValue(), trailer.getInt());
+		assertEquals(data.length, trailer.getInt());
+		
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+		assertTrue(compressed.length < data.length / 4);
+	}
+	
+	@Test
+	public void writesZlibDeflate() throws IOException {
+		byte[] data = sample(50000);
+		byte[] compressed = policy.compress(data, "deflate");
+		try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+	}
+	
+	@Test
+	public void compressesEmptyBody() throws IOException {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(policy.compress(new byte[0], "gzip")))) {
+			assertEquals(0, in.readAllBytes().length);
+		}
+	}
+	
+	@Test
+	public void reusesPooledDeflatersCleanly() throws IOException {
+		
+		/* Deflaters go back to the pool after each body, so later bodies must not carry any state from earlier ones. */
+		for (int i = 0; i < 10; i++) {
+			byte[] data = sample(1000 + i * 997);
+			try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(policy.compress(data, "gzip")))) {
+				assertArrayEquals(data, in.readAllBytes());
+			}
+			try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(policy.compress(data, "deflate")))) {
+				assertArrayEquals(data, in.readAllBytes());
+			}
+		}
+	}
+	
+	@Test
+	public void flushesStreamedBodies() throws IOException {
+		
+		/* A flush must emit everything written so far, so the client can decompress a streamed body as it arrives. */
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		OutputStream out = policy.compress(sent, "gzip");
+		byte[] first = "first part of a streamed body\n".getBytes(StandardCharsets.US_ASCII);
+		out.write(first);
+		out.flush();
+		
+		byte[] partial = sent.toByteArray();
+		Inflater inflater = new Inflater(true);
+		inflater.setInput(partial, 10, partial.length - 10);
+		byte[] inflated = new byte[first.length];
+		try {
+			assertEquals(first.length, inflater.inflate(inflated));
+		} catch (DataFormatException e) {
+			fail(e);
+		} finally {
+			inflater.end();
+		}
+		assertArrayEquals(first, inflated);
+		
+		out.write("rest".getBytes(StandardCharsets.US_ASCII));
+		out.close();
+		out.close();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray()))) {
+			assertEquals("first part of a streamed body\nrest", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+		}
+	}
+	
+	@Test
+	public void discardsUnfinishedStreams() throws IOException {
+		
+		/* A stream whose body couldn't be sent gives its Deflater back without writing a trailer, and closing it afterwards does nothing. */
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		OutputStream out = policy.compress(sent, "gzip");
+		out.write(sample(5000));
+		policy.discard(out);
+		int length = sent.size();
+		out.close();
+		assertEquals(length, sent.size());
+		
+		byte[] data = sample(3000);
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(policy.compress(data, "gzip")))) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+	}
+	
+	@Test
+	public void rejectsUnsupportedEncoding() {
+		assertThrows(IOException.class, () -> policy.compress(new byte[1], "br"));
+	}
+	
+	@Test
+	public void rejectsInvalidLevel() {
+		cfg.put("compressionlevel", "10");
+		assertThrows(IllegalArgumentException.class, () -> new CompressionPolicy(cfg));
+	}
+}
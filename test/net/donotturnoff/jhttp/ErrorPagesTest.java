@@ -0,0 +1,153 @@
+package net.donotturnoff.jhttp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ErrorPagesTest {
+	
+	private final static Logger log = Logger.getLogger(ErrorPagesTest.class.getName());
+	
+	@TempDir
+	Path root;
+	
+	private Config cfg;
+	private ErrorPages pages;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		cfg = new Config();
+		pages = new ErrorPages(log, cfg, new MimeTypes(log, cfg));
+		Files.createDirectory(root.resolve("errors"));
+		Files.writeString(root.resolve("errors/404.html"), "custom 404");
+		Files.createDirectory(root.resolve("errors/500"));
+		Files.writeString(root.resolve("errors/500/index.html"), "custom 500");
+		Files.writeString(root.resolve("errors/403.php"), "<?php echo 'forbidden'; ?>");
+	}
+	
+	private Host host(String hostname, String... errorDocuments) throws IOException {
+		Config hostConfig = new Config();
+		hostConfig.put("root", root.toString());
+		for (int i = 0; i < errorDocuments.length; i += 2) {
+			hostConfig.put(errorDocuments[i], errorDocuments[i + 1]);
+		}
+		Host host = new Host(hostname, hostConfig, new HashMap<>());
+		host.setPathCache(new PathCache(cfg, host));
+		return host;
+	}
+	
+	private static String text(ErrorPages.Page page) {
+		return new String(page.getData(), StandardCharsets.UTF_8);
+	}
+	
+	@Test
+	public void reusesRenderedPages() throws IOException {
+		Host host = host("a");
+		ErrorPages.Page page = pages.get(host, new Status("404"), List.of());
+		assertSame(page, pages.get(host, new Status("404"), List.of()));
+		assertEquals("1 hits, 1 misses", pages.toString());
+		assertTrue(text(page).contains("<h1>Error 404</h1>"));
+		assertEquals("text/html", page.getHeaders().getHeader("Content-Type"));
+		assertEquals(Integer.toString(page.getData().length), page.getHeaders().getHeader("Content-Length"));
+	}
+	
+	@Test
+	public void keysPagesByHostAndStatus() throws IOException {
+		
+		/* Pages are kept for each host and status, so one host's error documents never show up on another host. */
+		Host custom = host("custom", "404", "/errors/404.html");
+		Host plain = host("plain");
+		ErrorPages.Page customNotFound = pages.get(custom, new Status("404"), List.of());
+		ErrorPages.Page plainNotFound = pages.get(plain, new Status("404"), List.of());
+		ErrorPages.Page customGone = pages.get(custom, new Status("410"), List.of());
+		
+		assertEquals("custom 404", text(customNotFound));
+		assertTrue(text(plainNotFound).contains("<h1>Error 404</h1>"));
+		assertTrue(text(customGone).contains("<h1>Error 410</h1>"));
+		assertSame(customNotFound, pages.get(custom, new Status("404"), List.of()));
+		assertSame(plainNotFound, pages.get(plain, new Status("404"), List.of()));
+		assertEquals("2 hits, 3 misses", pages.toString());
+	}
+	
+	@Test
+	public void readsCustomDocumentsFromDirectories() throws IOException {
+		ErrorPages.Page page = pages.get(host("a", "500", "/errors/500/"), new Status("500"), List.of());
+		assertEquals("custom 500", text(page));
+		assertEquals("text/html", page.getHeaders().getHeader("Content-Type"));
+	}
+	
+	@Test
+	public void leavesPHPErrorDocumentsToTheHandler() throws IOException {
+		assertNull(pages.get(host("a", "403", "/errors/403.php"), new Status("403"), List.of()));
+	}
+	
+	@Test
+	public void fallsBackToBuiltInPageWithReason() throws IOException {
+		Host host = host("a", "404", "/errors/missing.html");
+		ErrorPages.Page page = pages.get(host, new Status("404"), List.of());
+		assertTrue(text(page).contains("<h1>Error 404</h1>"));
+		assertTrue(text(page).contains("Could not read /errors/missing.html"));
+	}
+	
+	@Test
+	public void rendersRequestMessagesAfresh() throws IOException {
+		
+		/* Messages about one request go on a fresh copy of the built-in page, never into the kept one. */
+		Host host = host("a");
+		ErrorPages.Page plain = pages.get(host, new Status("400"), List.of());
+		ErrorPages.Page withMessage = pages.get(host, new Status("400"), List.of("Bad <header>"));
+		assertNotSame(plain, withMessage);
+		assertTrue(text(withMessage).contains("Bad &lt;header&gt;"));
+		assertFalse(text(pages.get(host, new Status("400"), List.of())).contains("header"));
+		
+		/* Custom error documents are sent as they are. */
+		Host custom = host("custom", "404", "/errors/404.html");
+		assertEquals("custom 404", text(pages.get(custom, new Status("404"), List.of("Not here"))));
+	}
+	
+	@Test
+	public void turnsNonErrorStatusesInto500() throws IOException {
+		ErrorPages.Page page = pages.get(host("a"), new Status("200"), List.of());
+		assertEquals("500", page.getStatus().getCode());
+		assertTrue(text(page).contains("non-error code 200"));
+	}
+	
+	@Test
+	public void dropsCustomPagesOnChange() throws IOException {
+		Host custom = host("custom", "404", "/errors/404.html");
+		Host plain = host("plain");
+		ErrorPages.Page builtIn = pages.get(plain, new Status("404"), List.of());
+		pages.get(custom, new Status("404"), List.of());
+		
+		Path document = root.resolve("errors/404.html");
+		Files.writeString(document, "changed 404");
+		pages.changed(document);
+		custom.getPathCache().changed(document.toRealPath());
+		assertEquals("changed 404", text(pages.get(custom, new Status("404"), List.of())));
+		assertSame(builtIn, pages.get(plain, new Status("404"), List.of()));
+	}
+	
+	@Test
+	public void rereadsCustomPagesAfterExpiry() throws IOException, InterruptedException {
+		cfg.put("pathcachettl", "1");
+		pages = new ErrorPages(log, cfg, new MimeTypes(log, cfg));
+		Host custom = host("custom", "404", "/errors/404.html");
+		Host plain = host("plain");
+		ErrorPages.Page builtIn = pages.get(plain, new Status("404"), List.of());
+		pages.get(custom, new Status("404"), List.of());
+		
+		Files.writeString(root.resolve("errors/404.html"), "changed 404");
+		Thread.sleep(20);
+		assertEquals("changed 404", text(pages.get(custom, new Status("404"), List.of())));
+		
+		/* The built-in pages never change, so they never expire. */
+		assertSame(builtIn, pages.get(plain, new Status("404"), List.of()));
+	}
+}
@@ -0,0 +1,369 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FastCGIConnectionTest {
+	
+	private final static Logger log = Logger.getLogger(FastCGIConnectionTest.class.getName());
+	
+	private Config cfg;
+	private ServerSocket listener;
+	private FastCGIClient client;
+	private Responder responder;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		cfg = new Config();
+		cfg.put("fastcgitimeout", "2000");
+		listener = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+	}
+	
+	@AfterEach
+	public void tearDown() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+		if (responder != null) {
+			responder.close();
+		}
+		listener.close();
+	}
+	
+	private FastCGIExchange connect(boolean multiplexed) throws Exception {
+		
+		/*
+		 * Start a client with a single connection and send a first request, then answer the FCGI_MPXS_CONNS query which the client sends before it.
+		 * The first request's records are left unread.
+		 */
+		client = new FastCGIClient(log, cfg, listener.getLocalSocketAddress(), 1);
+		FastCGIExchange first = client.execute(Map.of("SCRIPT_FILENAME", "/first.php"), body(""));
+		responder = new Responder(listener.accept());
+		Record query = responder.read();
+		assertEquals(FastCGIConnection.getValues, query.type);
+		assertEquals(0, query.id);
+		assertEquals(Map.of("FCGI_MPXS_CONNS", ""), Responder.readNameValues(query.content));
+		responder.write(FastCGIConnection.getValuesResult, 0, Responder.nameValues(Map.of("FCGI_MPXS_CONNS", multiplexed ? "1" : "0")), 0);
+		if (multiplexed) {
+			
+			/* The answer is read by the connection's reader thread, so it takes effect shortly after it is sent. */
+			for (int i = 0; i < 200 && !client.connections.get(0).isMultiplexed(); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(client.connections.get(0).isMultiplexed());
+		}
+		return first;
+	}
+	
+	private RequestBody body(String text) throws IOException {
+		RequestBody body = new RequestBody(log, cfg);
+		byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+		body.write(bytes, 0, bytes.length);
+		body.finish();
+		return body;
+	}
+	
+	private static String readAll(InputStream in) throws IOException {
+		return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+	}
+	
+	private static byte[] endBody(int appStatus) {
+		return new byte[] {(byte) (appStatus >> 24), (byte) (appStatus >> 16), (byte) (appStatus >> 8), (byte) appStatus, FastCGIConnection.requestComplete, 0, 0, 0};
+	}
+	
+	private void end(FastCGIExchange exchange, int appStatus) throws IOException {
+		responder.write(FastCGIConnection.stdout, exchange.getId(), new byte[0], 0);
+		responder.write(FastCGIConnection.stderr, exchange.getId(), new byte[0], 0);
+		responder.write(FastCGIConnection.endRequest, exchange.getId(), endBody(appStatus), 0);
+	}
+	
+	@Test
+	public void framesAndPadsRecords() throws Exception {
+		FastCGIExchange first = connect(false);
+		
+		/* BEGIN_REQUEST asks the backend to keep the connection open, and each stream is ended by an empty record. */
+		Record begin = responder.read();
+		assertEquals(FastCGIConnection.beginRequest, begin.type);
+		assertEquals(first.getId(), begin.id);
+		assertArrayEquals(new byte[] {0, FastCGIConnection.responder, FastCGIConnection.keepConnection, 0, 0, 0, 0, 0}, begin.content);
+		Record params = responder.read();
+		assertEquals(FastCGIConnection.params, params.type);
+		assertEquals(first.getId(), params.id);
+		assertEquals(Map.of("SCRIPT_FILENAME", "/first.php"), Responder.readNameValues(params.content));
+		Record paramsEnd = responder.read();
+		assertEquals(FastCGIConnection.params, paramsEnd.type);
+		assertEquals(0, paramsEnd.content.length);
+		Record stdinEnd = responder.read();
+		assertEquals(FastCGIConnection.stdin, stdinEnd.type);
+		assertEquals(0, stdinEnd.content.length);
+		end(first, 0);
+		assertEquals(0, first.getAppStatus());
+		
+		/* Content is padded to a multiple of eight bytes, and a value of 128 bytes or more has its length in four bytes. */
+		String longValue = "v".repeat(200);
+		FastCGIExchange exchange = client.execute(Map.of("LONG", longValue), body("hello"));
+		assertEquals(FastCGIConnection.beginRequest, responder.read().type);
+		params = responder.read();
+		assertEquals(Map.of("LONG", longValue), Responder.readNameValues(params.content));
+		assertEquals(1 + 4 + 4 + 200, params.content.length);
+		assertEquals((8 - params.content.length % 8) % 8, params.padding);
+		assertEquals(0, responder.read().content.length);
+		Record stdin = responder.read();
+		assertEquals(FastCGIConnection.stdin, stdin.type);
+		assertEquals("hello", new String(stdin.content, StandardCharsets.ISO_8859_1));
+		assertEquals(3, stdin.padding);
+		assertEquals(0, responder.read().content.length);
+		
+		/* The backend may pad its own records by any amount, and split its output across any number of records. */
+		responder.write(FastCGIConnection.stdout, exchange.getId(), "Content-Type: text/plain\r\n\r\nhel".getBytes(), 5);
+		responder.write(FastCGIConnection.stderr, exchange.getId(), "warning".getBytes(), 1);
+		responder.write(FastCGIConnection.stdout, exchange.getId(), "lo".getBytes(), 255);
+		end(exchange, 3);
+		assertEquals("Content-Type: text/plain\r\n\r\nhello", readAll(exchange.getOutput()));
+		assertEquals(3, exchange.getAppStatus());
+		assertEquals("warning", readAll(exchange.getErrors()));
+	}
+	
+	@Test
+	public void multiplexesWhenBackendAllows() throws Exception {
+		
+		/* A backend which multiplexes takes a second request on the same connection while the first is still running. */
+		FastCGIExchange first = connect(true);
+		FastCGIExchange second = client.execute(Map.of(), body(""));
+		assertEquals(1, client.connections.size());
+		assertNotEquals(first.getId(), second.getId());
+		responder.skipRequest();
+		assertEquals(second.getId(), responder.read().id);
+	}
+	
+	@Test
+	public void sendsOneRequestAtATimeOtherwise() throws Exception {
+		
+		/* A backend which doesn't multiplex gets one request at a time, so a second request waits for the first (and here times out). */
+		cfg.put("fastcgitimeout", "300");
+		connect(false);
+		assertThrows(SocketTimeoutException.class, () -> client.execute(Map.of(), body("")));
+	}
+	
+	@Test
+	public void routesRecordsByRequestId() throws Exception {
+		FastCGIExchange first = connect(true);
+		FastCGIExchange second = client.execute(Map.of(), body(""));
+		responder.skipRequest();
+		responder.skipRequest();
+		
+		/* Records for the two requests are interleaved, and the second finishes first. */
+		responder.write(FastCGIConnection.stdout, first.getId(), "one ".getBytes(), 0);
+		responder.write(FastCGIConnection.stdout, second.getId(), "two ".getBytes(), 0);
+		responder.write(FastCGIConnection.stderr, first.getId(), "error one".getBytes(), 0);
+		responder.write(FastCGIConnection.stdout, first.getId(), "first".getBytes(), 0);
+		responder.write(FastCGIConnection.stdout, second.getId(), "second".getBytes(), 0);
+		end(second, 2);
+		assertEquals("two second", readAll(second.getOutput()));
+		assertEquals(2, second.getAppStatus());
+		assertEquals("", readAll(second.getErrors()));
+		end(first, 1);
+		assertEquals("one first", readAll(first.getOutput()));
+		assertEquals(1, first.getAppStatus());
+		assertEquals("error one", readAll(first.getErrors()));
+	}
+	
+	@Test
+	public void abortsTimedOutRequestWhenMultiplexed() throws Exception {
+		
+		/* On a multiplexed connection, a request which times out is aborted and the connection is kept for the others. */
+		cfg.put("fastcgitimeout", "300");
+		FastCGIExchange exchange = connect(true);
+		responder.skipRequest();
+		assertThrows(SocketTimeoutException.class, () -> exchange.getOutput().read());
+		Record abort = responder.read();
+		assertEquals(FastCGIConnection.abortRequest, abort.type);
+		assertEquals(exchange.getId(), abort.id);
+		assertTrue(client.connections.get(0).isOpen());
+		
+		/* The backend then ends the aborted request, but it still counts as failed. */
+		end(exchange, 0);
+		assertThrows(SocketTimeoutException.class, exchange::getAppStatus);
+		FastCGIExchange next = client.execute(Map.of(), body(""));
+		responder.skipRequest();
+		responder.write(FastCGIConnection.stdout, next.getId(), "ok".getBytes(), 0);
+		end(next, 0);
+		assertEquals("ok", readAll(next.getOutput()));
+	}
+	
+	@Test
+	public void closesConnectionOnTimeoutOtherwise() throws Exception {
+		
+		/* Without multiplexing there is no way to abort just the one request, so the connection is closed. */
+		cfg.put("fastcgitimeout", "300");
+		FastCGIExchange exchange = connect(false);
+		FastCGIConnection connection = client.connections.get(0);
+		assertThrows(SocketTimeoutException.class, exchange::getAppStatus);
+		assertFalse(connection.isOpen());
+		assertThrows(SocketTimeoutException.class, () -> exchange.getOutput().read());
+	}
+	
+	@Test
+	public void holdsBackOutputForSlowReaderOtherwise() throws Exception {
+		
+		/* With only one request on the connection, the reader stops reading the backend's output once the buffer is full, rather than queueing it all in memory. */
+		cfg.put("fastcgibuffersize", "65536");
+		FastCGIExchange exchange = connect(false);
+		responder.skipRequest();
+		byte[] record = new byte[65528];
+		Arrays.fill(record, (byte) 'x');
+		Thread backend = new Thread(() -> {
+			try {
+				for (int i = 0; i < 64; i++) {
+					responder.write(FastCGIConnection.stdout, exchange.getId(), record, 0);
+				}
+				end(exchange, 0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		backend.start();
+		InputStream output = exchange.getOutput();
+		Thread.sleep(300);
+		assertTrue(output.available() <= 65536, Integer.toString(output.available()));
+		assertEquals(64L * record.length, output.transferTo(OutputStream.nullOutputStream()));
+		assertEquals(0, exchange.getAppStatus());
+		backend.join();
+	}
+	
+	@Test
+	public void spillsOutputToFileWhenMultiplexed() throws Exception {
+		
+		/* With other requests on the connection, output past the buffer goes to a file, so the reader never waits for one request and nothing is lost. */
+		cfg.put("fastcgibuffersize", "65536");
+		FastCGIExchange slow = connect(true);
+		FastCGIExchange fast = client.execute(Map.of(), body(""));
+		responder.skipRequest();
+		responder.skipRequest();
+		
+		byte[] record = new byte[65528];
+		for (int i = 0; i < record.length; i++) {
+			record[i] = (byte) i;
+		}
+		for (int i = 0; i < 32; i++) {
+			responder.write(FastCGIConnection.stdout, slow.getId(), record, 0);
+		}
+		responder.write(FastCGIConnection.stdout, fast.getId(), "done".getBytes(), 0);
+		end(fast, 0);
+		assertEquals("done", readAll(fast.getOutput()));
+		assertEquals(0, fast.getAppStatus());
+		
+		end(slow, 0);
+		InputStream output = slow.getOutput();
+		assertEquals(32L * record.length, output.available());
+		byte[] read = new byte[record.length];
+		for (int i = 0; i < 32; i++) {
+			assertEquals(record.length, output.readNBytes(read, 0, read.length));
+			assertArrayEquals(record, read);
+		}
+		assertEquals(-1, output.read());
+		assertEquals(0, slow.getAppStatus());
+	}
+	
+	private static class Record {
+		
+		private final int type;
+		private final int id;
+		private final byte[] content;
+		private final int padding;
+		
+		public Record(int type, int id, byte[] content, int padding) {
+			this.type = type;
+			this.id = id;
+			this.content = content;
+			this.padding = padding;
+		}
+	}
+	
+	private static class Responder {
+		
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		
+		public Responder(Socket socket) throws IOException {
+			
+			/* The backend's end of a FastCGI connection, which the tests drive one record at a time. */
+			this.socket = socket;
+			socket.setSoTimeout(5000);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+		
+		public Record read() throws IOException {
+			assertEquals(FastCGIConnection.version, in.readUnsignedByte());
+			int type = in.readUnsignedByte();
+			int id = in.readUnsignedShort();
+			int length = in.readUnsignedShort();
+			int padding = in.readUnsignedByte();
+			in.readUnsignedByte();
+			byte[] content = new byte[length];
+			in.readFully(content);
+			in.skipNBytes(padding);
+			return new Record(type, id, content, padding);
+		}
+		
+		public void skipRequest() throws IOException {
+			/* Read the records of one request, up to the empty record which ends its body. */
+			Record record;
+			do {
+				record = read();
+			} while (record.type != FastCGIConnection.stdin || record.content.length > 0);
+		}
+		
+		public synchronized void write(int type, int id, byte[] content, int padding) throws IOException {
+			out.write(new byte[] {FastCGIConnection.version, (byte) type, (byte) (id >> 8), (byte) id, (byte) (content.length >> 8), (byte) content.length, (byte) padding, 0});
+			out.write(content);
+			out.write(new byte[padding]);
+			out.flush();
+		}
+		
+		public static byte[] nameValues(Map<String, String> values) {
+			ByteArrayOutputStream pairs = new ByteArrayOutputStream();
+			for (Map.Entry<String, String> entry: values.entrySet()) {
+				pairs.write(entry.getKey().length());
+				pairs.write(entry.getValue().length());
+				pairs.writeBytes(entry.getKey().getBytes());
+				pairs.writeBytes(entry.getValue().getBytes());
+			}
+			return pairs.toByteArray();
+		}
+		
+		public static Map<String, String> readNameValues(byte[] content) {
+			Map<String, String> values = new HashMap<>();
+			int i = 0;
+			while (i < content.length) {
+				int[] lengths = new int[2];
+				for (int j = 0; j < 2; j++) {
+					int length = content[i] & 0xff;
+					if (length >= 128) {
+						length = ((length & 0x7f) << 24) | ((content[i + 1] & 0xff) << 16) | ((content[i + 2] & 0xff) << 8) | (content[i + 3] & 0xff);
+						i += 4;
+					} else {
+						i++;
+					}
+					lengths[j] = length;
+				}
+				values.put(new String(content, i, lengths[0]), new String(content, i + lengths[0], lengths[1]));
+				i += lengths[0] + lengths[1];
+			}
+			return values;
+		}
+		
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PHPCacheTest {
+	
+	private final static Logger log = Logger.getLogger(PHPCacheTest.class.getName());
+	private final static byte[] body = "body".getBytes(StandardCharsets.US_ASCII);
+	
+	private Config cfg;
+	private Config hostConfig;
+	private HashMap<String, Config> documentConfigs;
+	private Host host;
+	
+	@BeforeEach
+	public void setUp() {
+		cfg = new Config();
+		hostConfig = new Config();
+		hostConfig.put("phpcache", "yes");
+		hostConfig.put("phpcachettl", "60000");
+		hostConfig.put("phpcachestale", "0");
+		documentConfigs = new HashMap<>();
+		host = new Host("localhost", hostConfig, documentConfigs);
+	}
+	
+	private PHPCache cache() {
+		/* Refreshes run straight away on the calling thread, so the tests can see them. */
+		return new PHPCache(log, cfg, () -> new WorkerPool(log, Runnable::run));
+	}
+	
+	private static HashMap<String, String> headers(String... pairs) {
+		HashMap<String, String> headers = new HashMap<>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			headers.put(pairs[i], pairs[i + 1]);
+		}
+		return headers;
+	}
+	
+	private PHPCache.Entry put(PHPCache cache, String code, HashMap<String, String> headers) {
+		return cache.put("key", host, "/index.php", code, headers, "text/html", body);
+	}
+	
+	@Test
+	public void storesCacheableResponses() {
+		PHPCache cache = cache();
+		for (String code: new String[] {"200", "203", "301", "404", "410"}) {
+			PHPCache.Entry entry = cache.put(code, host, "/index.php", code, headers("X-Test", "1"), "text/html", body);
+			assertNotNull(entry, code);
+			assertSame(entry, cache.get(code, () -> fail("fresh entries aren't refreshed")));
+			assertEquals(code, entry.getStatus().getCode());
+		}
+		assertEquals(5, cache.getHits());
+		
+		/* Each response gets its own copy of the headers, with the length of the cached body. */
+		Headers first = cache.get("200", () -> {}).getHeaders();
+		first.setHeader("X-Test", "2");
+		Headers second = cache.get("200", () -> {}).getHeaders();
+		assertEquals("1", second.getHeader("X-Test"));
+		assertEquals("4", second.getHeader("Content-Length"));
+	}
+	
+	@Test
+	public void refusesUncacheableResponses() {
+		PHPCache cache = cache();
+		assertNull(put(cache, "500", headers()));
+		assertNull(put(cache, "302", headers()));
+		assertNull(put(cache, "200", headers("Set-Cookie", "a=b")));
+		for (String cacheControl: new String[] {"no-store", "no-cache", "private", "public, Private", "max-age=0", "max-age=x", "max-age", "s-maxage=0, max-age=60"}) {
+			assertNull(put(cache, "200", headers("Cache-Control", cacheControl)), cacheControl);
+		}
+		assertNull(cache.get("key", () -> {}));
+		assertEquals(1, cache.getMisses());
+	}
+	
+	@Test
+	public void refusesOversizedBodies() {
+		cfg.put("phpcacheentrysize", "3");
+		assertNull(put(cache(), "200", headers()));
+		
+		/* An entry can never be larger than the whole cache either. */
+		cfg.put("phpcacheentrysize", "1048576");
+		cfg.put("phpcachesize", "3");
+		assertNull(put(cache(), "200", headers()));
+	}
+	
+	@Test
+	public void usesCacheControlLifetimes() throws InterruptedException {
+		
+		/* max-age and s-maxage override the configured lifetime, and s-maxage wins whichever comes first. */
+		hostConfig.put("phpcachettl", "1");
+		PHPCache cache = cache();
+		assertNotNull(cache.put("max-age", host, "/index.php", "200", headers("Cache-Control", "max-age=60"), "text/html", body));
+		assertNotNull(cache.put("s-maxage", host, "/index.php", "200", headers("Cache-Control", "s-maxage=\"60\", max-age=0"), "text/html", body));
+		assertNotNull(cache.put("configured", host, "/index.php", "200", headers(), "text/html", body));
+		assertNull(cache.put("shared", host, "/index.php", "200", headers("Cache-Control", "max-age=60, s-maxage=0"), "text/html", body));
+		Thread.sleep(20);
+		
+		assertNotNull(cache.get("max-age", () -> fail("max-age=60 is still fresh")));
+		assertNotNull(cache.get("s-maxage", () -> fail("s-maxage=60 is still fresh")));
+		assertNull(cache.get("configured", () -> {}));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+	
+	@Test
+	public void usesDocumentSettings() {
+		Config documentConfig = new Config();
+		documentConfig.put("phpcachettl", "0");
+		documentConfigs.put("/nocache.php", documentConfig);
+		PHPCache cache = cache();
+		assertNull(cache.put("key", host, "/nocache.php", "200", headers(), "text/html", body));
+		assertNotNull(cache.put("key", host, "/index.php", "200", headers(), "text/html", body));
+	}
+	
+	@Test
+	public void servesStaleResponsesWhileRefreshing() throws InterruptedException {
+		hostConfig.put("phpcachettl", "1");
+		PHPCache cache = cache();
+		PHPCache.Entry entry = put(cache, "200", headers("Cache-Control", "stale-while-revalidate=60"));
+		assertNotNull(entry);
+		Thread.sleep(20);
+		
+		AtomicInteger refreshes = new AtomicInteger();
+		assertSame(entry, cache.get("key", refreshes::incrementAndGet));
+		assertEquals(1, refreshes.get());
+		assertEquals(1, cache.getStaleHits());
+		
+		/* Once the stale period is over too, the entry is gone. */
+		cache.put("gone", host, "/index.php", "200", headers(), "text/html", body);
+		Thread.sleep(20);
+		assertNull(cache.get("gone", () -> fail("expired entries aren't refreshed")));
+	}
+	
+	@Test
+	public void storesOnlyResponsesVaryingByKeyHeaders() {
+		PHPCache cache = cache();
+		assertNull(put(cache, "200", headers("Vary", "*")));
+		assertNull(put(cache, "200", headers("Vary", "Accept-Language")));
+		
+		hostConfig.put("phpcachevary", "Accept-Language, Cookie");
+		assertNotNull(put(cache, "200", headers("Vary", "accept-language")));
+		assertNotNull(put(cache, "200", headers("Vary", "Cookie, Accept-Language")));
+		assertNull(put(cache, "200", headers("Vary", "Cookie, User-Agent")));
+	}
+	
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		cfg.put("phpcachesize", "10");
+		PHPCache cache = cache();
+		cache.put("a", host, "/index.php", "200", headers(), "text/html", body);
+		cache.put("b", host, "/index.php", "200", headers(), "text/html", body);
+		assertNotNull(cache.get("a", () -> {}));
+		cache.put("c", host, "/index.php", "200", headers(), "text/html", body);
+		
+		assertEquals(1, cache.getEvictions());
+		assertNotNull(cache.get("a", () -> {}));
+		assertNull(cache.get("b", () -> {}));
+		assertNotNull(cache.get("c", () -> {}));
+	}
+}
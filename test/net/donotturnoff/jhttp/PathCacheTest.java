@@ -0,0 +1,153 @@
+package net.donotturnoff.jhttp;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PathCacheTest {
+	
+	@TempDir
+	Path root;
+	
+	private Config cfg;
+	private Config hostConfig;
+	private Host host;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		cfg = new Config();
+		hostConfig = new Config();
+		hostConfig.put("root", root.toString());
+		host = new Host("localhost", hostConfig, new HashMap<>());
+		Files.createDirectory(root.resolve("dir"));
+		Files.writeString(root.resolve("dir/index.html"), "index");
+		Files.writeString(root.resolve("file.html"), "file");
+	}
+	
+	private PathCache cache() throws IOException {
+		return new PathCache(cfg, host);
+	}
+	
+	@Test
+	public void resolvesFilesAndDirectories() throws IOException {
+		PathCache cache = cache();
+		ResolvedPath file = cache.resolve("/file.html");
+		assertFalse(file.isDirectory());
+		assertEquals(root.toRealPath().resolve("file.html"), file.getRealPath());
+		assertNull(file.getIndex());
+		file.checkAccess();
+		
+		ResolvedPath directory = cache.resolve("/dir/");
+		assertTrue(directory.isDirectory());
+		assertNotNull(directory.getIndex());
+		assertEquals(root.toRealPath().resolve("dir/index.html"), directory.getIndex().getRealPath());
+	}
+	
+	@Test
+	public void reusesResolutionsUntilTheyExpire() throws IOException, InterruptedException {
+		PathCache cache = cache();
+		ResolvedPath first = cache.resolve("/file.html");
+		assertSame(first, cache.resolve("/file.html"));
+		assertTrue(cache.toString().startsWith("1 hits, 1 misses"), cache.toString());
+		
+		cfg.put("pathcachettl", "1");
+		cache = cache();
+		first = cache.resolve("/file.html");
+		Thread.sleep(20);
+		assertNotSame(first, cache.resolve("/file.html"));
+	}
+	
+	@Test
+	public void evictsLeastRecentlyUsed() throws IOException {
+		cfg.put("pathcachesize", "2");
+		PathCache cache = cache();
+		ResolvedPath file = cache.resolve("/file.html");
+		ResolvedPath directory = cache.resolve("/dir/");
+		assertSame(file, cache.resolve("/file.html"));
+		cache.resolve("/dir/index.html");
+		assertSame(file, cache.resolve("/file.html"));
+		assertNotSame(directory, cache.resolve("/dir/"));
+	}
+	
+	@Test
+	public void remembersMissingPaths() throws IOException {
+		PathCache cache = cache();
+		assertFalse(cache.isMissing("/new.html"));
+		assertThrows(NoSuchFileException.class, () -> cache.resolve("/new.html"));
+		assertTrue(cache.isMissing("/new.html"));
+		assertFalse(cache.isMissing("/other.html"));
+		assertTrue(cache.toString().endsWith("1 known missing"), cache.toString());
+		
+		/* A file created without the cache hearing about it stays missing until the entry expires or is invalidated. */
+		Files.writeString(root.resolve("new.html"), "new");
+		assertTrue(cache.isMissing("/new.html"));
+		cache.invalidate("/new.html");
+		assertFalse(cache.isMissing("/new.html"));
+		assertFalse(cache.resolve("/new.html").isDirectory());
+	}
+	
+	@Test
+	public void forgetsMissingPathsWhenTurnedOffOrExpired() throws IOException, InterruptedException {
+		cfg.put("pathcachemissing", "0");
+		PathCache off = cache();
+		assertThrows(NoSuchFileException.class, () -> off.resolve("/new.html"));
+		assertFalse(off.isMissing("/new.html"));
+		
+		cfg.put("pathcachemissing", "4096");
+		cfg.put("pathcachettl", "1");
+		PathCache expiring = cache();
+		assertThrows(NoSuchFileException.class, () -> expiring.resolve("/new.html"));
+		Thread.sleep(20);
+		assertFalse(expiring.isMissing("/new.html"));
+	}
+	
+	@Test
+	public void invalidatesOnlyTheGivenPath() throws IOException {
+		PathCache cache = cache();
+		ResolvedPath file = cache.resolve("/file.html");
+		ResolvedPath directory = cache.resolve("/dir/");
+		cache.invalidate("/dir/");
+		assertSame(file, cache.resolve("/file.html"));
+		assertNotSame(directory, cache.resolve("/dir/"));
+	}
+	
+	@Test
+	public void dropsChangedPathsAndTheirDirectories() throws IOException {
+		
+		/* A change to a file drops it, anything resolved to it as an index page, and its directory; other entries are kept. */
+		PathCache cache = cache();
+		ResolvedPath file = cache.resolve("/file.html");
+		ResolvedPath directory = cache.resolve("/dir/");
+		ResolvedPath index = cache.resolve("/dir/index.html");
+		assertThrows(NoSuchFileException.class, () -> cache.resolve("/dir/new.html"));
+		
+		cache.changed(root.toRealPath().resolve("dir/index.html"));
+		assertSame(file, cache.resolve("/file.html"));
+		assertNotSame(directory, cache.resolve("/dir/"));
+		assertNotSame(index, cache.resolve("/dir/index.html"));
+		
+		/* Any change may have created a path which was missing. */
+		assertFalse(cache.isMissing("/dir/new.html"));
+	}
+	
+	@Test
+	public void refusesSymlinksUnlessAllowed() throws IOException {
+		Path outside = Files.createTempFile("jhttp-", ".html");
+		try {
+			Files.createSymbolicLink(root.resolve("link.html"), outside);
+			ResolvedPath link = cache().resolve("/link.html");
+			assertTrue(link.isSymlink());
+			assertThrows(AccessDeniedException.class, link::checkAccess);
+			
+			hostConfig.put("symlinks", "yes");
+			cache().resolve("/link.html").checkAccess();
+		} finally {
+			Files.delete(outside);
+		}
+	}
+}
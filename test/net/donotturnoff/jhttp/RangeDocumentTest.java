@@ -0,0 +1,121 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RangeDocumentTest {
+	
+	private final static byte[] content = "0123456789abcdefghij".getBytes(StandardCharsets.ISO_8859_1);
+	
+	private Document source;
+	
+	@BeforeEach
+	public void setUp() {
+		source = new Document();
+		source.path = Paths.get("range.txt");
+		source.type = "text/plain";
+		source.etag = "\"etag\"";
+		source.data = content;
+	}
+	
+	private static void assertRanges(String header, long... expected) {
+		List<long[]> ranges = RangeDocument.parseRanges(header, content.length);
+		assertNotNull(ranges, header);
+		assertEquals(expected.length / 2, ranges.size(), header);
+		for (int i = 0; i < ranges.size(); i++) {
+			assertArrayEquals(new long[] {expected[2 * i], expected[2 * i + 1]}, ranges.get(i), header);
+		}
+	}
+	
+	@Test
+	public void parsesRangeForms() {
+		assertRanges("bytes=0-4", 0, 5);
+		assertRanges("bytes=15-", 15, 5);
+		assertRanges("bytes=-5", 15, 5);
+		assertRanges("bytes=19-19", 19, 1);
+		assertRanges("bytes=0-1, 4-5 ,-2", 0, 2, 4, 2, 18, 2);
+	}
+	
+	@Test
+	public void clampsRangesToBody() {
+		assertRanges("bytes=10-100", 10, 10);
+		assertRanges("bytes=-100", 0, 20);
+	}
+	
+	@Test
+	public void ignoresMalformedRanges() {
+		
+		/* A malformed header is ignored, so the whole body is sent with a 200. */
+		String[] headers = {"items=0-4", "bytes=5", "bytes=a-b", "bytes=5-2", "bytes=-x", "bytes=0-1,,2-3"};
+		for (String header: headers) {
+			assertNull(RangeDocument.parseRanges(header, content.length), header);
+		}
+	}
+	
+	@Test
+	public void ignoresTooManyRanges() {
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= 16; i++) {
+			header.append(",").append(i).append("-").append(i);
+		}
+		assertNull(RangeDocument.parseRanges(header.toString(), content.length));
+	}
+	
+	@Test
+	public void findsUnsatisfiableRanges() {
+		
+		/* An empty list means none of the ranges lie within the body, which is answered with a 416. */
+		String[] headers = {"bytes=20-", "bytes=30-40", "bytes=-0", "bytes=20-21,25-"};
+		for (String header: headers) {
+			List<long[]> ranges = RangeDocument.parseRanges(header, content.length);
+			assertNotNull(ranges, header);
+			assertTrue(ranges.isEmpty(), header);
+		}
+		assertTrue(RangeDocument.parseRanges("bytes=0-", 0).isEmpty());
+	}
+	
+	@Test
+	public void dropsOnlyUnsatisfiableRanges() {
+		assertRanges("bytes=30-40,0-0", 0, 1);
+	}
+	
+	@Test
+	public void sendsSingleRangeAsItIs() {
+		RangeDocument document = new RangeDocument(source, RangeDocument.parseRanges("bytes=3-7", content.length));
+		assertEquals("text/plain", document.getType());
+		assertEquals("bytes 3-7/20", document.getContentRange());
+		assertEquals("5", document.getLength());
+		assertEquals("34567", new String(document.getData(), StandardCharsets.ISO_8859_1));
+		assertEquals("\"etag\"", document.getETag());
+	}
+	
+	@Test
+	public void sendsMultipleRangesAsMultipart() {
+		RangeDocument document = new RangeDocument(source, RangeDocument.parseRanges("bytes=0-1,-2", content.length));
+		String type = document.getType();
+		assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+		String boundary = type.substring(type.indexOf('=') + 1);
+		assertFalse(boundary.isEmpty());
+		
+		String expected = "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Range: bytes 0-1/20\r\n\r\n"
+				+ "01"
+				+ "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Range: bytes 18-19/20\r\n\r\n"
+				+ "ij"
+				+ "\r\n--" + boundary + "--\r\n";
+		byte[] data = document.getData();
+		assertEquals(expected, new String(data, StandardCharsets.ISO_8859_1));
+		
+		/* The length is worked out before anything is written, and must match what is sent. */
+		assertEquals(Integer.toString(data.length), document.getLength());
+		assertEquals(data.length, document.getSize());
+	}
+}
@@ -0,0 +1,164 @@
+package net.donotturnoff.jhttp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestParserTest {
+	
+	private Config cfg;
+	private RequestParser parser;
+	
+	@BeforeEach
+	public void setUp() {
+		cfg = new Config();
+		parser = new RequestParser(cfg);
+	}
+	
+	private static ByteBuffer bytes(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	private static int statusOf(HTTPException e) {
+		return Integer.parseInt(e.getStatus().getCode());
+	}
+	
+	@Test
+	public void parsesRequestLineAndHeaders() throws HTTPException {
+		assertTrue(parser.parse(bytes("GET /dir/page.html?a=1&b=2 HTTP/1.1\r\nhost: example.com\r\nX-Custom:  value \r\n\r\n")));
+		assertEquals("GET", parser.getVerb());
+		assertEquals("/dir/page.html?a=1&b=2", parser.getTarget());
+		assertEquals("/dir/page.html", parser.getPath());
+		assertEquals("a=1&b=2", parser.getQueryString());
+		assertEquals("HTTP/1.1", parser.getProtocol());
+		assertEquals("example.com", parser.getHeaders().getHeader("Host"));
+		assertEquals("value", parser.getHeaders().getHeader("X-Custom"));
+	}
+	
+	@Test
+	public void resumesAcrossPieces() throws HTTPException {
+		
+		/* The request is fed one byte at a time, splitting every line (and the CRLFs) between calls. */
+		byte[] request = "POST /upload HTTP/1.1\r\nContent-Length: 4\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		for (int i = 0; i < request.length - 1; i++) {
+			assertFalse(parser.parse(ByteBuffer.wrap(request, i, 1)));
+		}
+		assertTrue(parser.parse(ByteBuffer.wrap(request, request.length - 1, 1)));
+		assertEquals("POST", parser.getVerb());
+		assertEquals(4, parser.getContentLength());
+	}
+	
+	@Test
+	public void leavesBodyInBuffer() throws HTTPException {
+		ByteBuffer buffer = bytes("PUT /f HTTP/1.1\nContent-Length: 5\n\nhello");
+		assertTrue(parser.parse(buffer));
+		assertEquals(5, buffer.remaining());
+		assertEquals('h', buffer.get());
+	}
+	
+	@Test
+	public void ignoresBlankLinesBeforeRequest() throws HTTPException {
+		assertTrue(parser.parse(bytes("\r\n\r\nGET / HTTP/1.0\r\n\r\n")));
+		assertEquals("", parser.getPath());
+		assertEquals("HTTP/1.0", parser.getProtocol());
+	}
+	
+	@Test
+	public void combinesRepeatedHeaders() throws HTTPException {
+		assertTrue(parser.parse(bytes("GET / HTTP/1.1\r\nAccept: text/html\r\naccept: text/plain\r\n\r\n")));
+		assertEquals("text/html, text/plain", parser.getHeaders().getHeader("Accept"));
+	}
+	
+	@Test
+	public void resetsForNextRequest() throws HTTPException {
+		assertTrue(parser.parse(bytes("GET /a?x HTTP/1.1\r\nContent-Length: 3\r\n\r\n")));
+		parser.reset();
+		assertFalse(parser.isStarted());
+		assertTrue(parser.parse(bytes("GET /b HTTP/1.1\r\n\r\n")));
+		assertEquals("/b", parser.getPath());
+		assertEquals("", parser.getQueryString());
+		assertEquals(0, parser.getContentLength());
+	}
+	
+	@Test
+	public void rejectsOversizedHeaderSection() {
+		cfg.put("maxheadersize", "64");
+		parser = new RequestParser(cfg);
+		HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(64) + "\r\n\r\n")));
+		assertEquals(431, statusOf(e));
+	}
+	
+	@Test
+	public void rejectsOversizedHeaderSectionWithoutLineEnd() {
+		
+		/* A line which never ends must still be cut off once it passes the limit, rather than buffered indefinitely. */
+		cfg.put("maxheadersize", "64");
+		parser = new RequestParser(cfg);
+		assertThrows(HTTPException.class, () -> {
+			for (int i = 0; i < 10; i++) {
+				parser.parse(bytes("aaaaaaaaaa"));
+			}
+		});
+	}
+	
+	@Test
+	public void acceptsHeaderSectionAtLimit() throws HTTPException {
+		String request = "GET / HTTP/1.1\r\nHost: a\r\n\r\n";
+		cfg.put("maxheadersize", Integer.toString(request.length()));
+		parser = new RequestParser(cfg);
+		assertTrue(parser.parse(bytes(request)));
+	}
+	
+	@Test
+	public void rejectsTooManyHeaders() {
+		cfg.put("maxheaders", "2");
+		parser = new RequestParser(cfg);
+		HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n")));
+		assertEquals(431, statusOf(e));
+	}
+	
+	@Test
+	public void rejectsMalformedRequestLines() {
+		String[] lines = {"GET\r\n", "GET /\r\n", "GET / \r\n", " / HTTP/1.1\r\n", "GET / FTP/1.0\r\n", "GET /a b HTTP/1.1\r\n"};
+		for (String line: lines) {
+			parser.reset();
+			HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes(line)), line);
+			assertEquals(400, statusOf(e), line);
+		}
+	}
+	
+	@Test
+	public void rejectsMalformedHeaders() {
+		String[] fields = {"NoColon\r\n", ": empty name\r\n", "Bad Name: x\r\n", "Name : x\r\n", " folded\r\n"};
+		for (String field: fields) {
+			parser.reset();
+			HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes("GET / HTTP/1.1\r\nHost: a\r\n" + field + "\r\n")), field);
+			assertEquals(400, statusOf(e), field);
+		}
+	}
+	
+	@Test
+	public void rejectsConflictingContentLengths() {
+		HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes("POST / HTTP/1.1\r\nContent-Length: 4\r\nContent-Length: 5\r\n\r\n")));
+		assertEquals(400, statusOf(e));
+	}
+	
+	@Test
+	public void acceptsRepeatedEqualContentLengths() throws HTTPException {
+		assertTrue(parser.parse(bytes("POST / HTTP/1.1\r\nContent-Length: 4\r\nContent-Length: 4\r\n\r\n")));
+		assertEquals(4, parser.getContentLength());
+	}
+	
+	@Test
+	public void rejectsInvalidContentLengths() {
+		String[] values = {"", "-1", "+4", "0x10", "4 4", "1234567890123456789"};
+		for (String value: values) {
+			parser.reset();
+			HTTPException e = assertThrows(HTTPException.class, () -> parser.parse(bytes("POST / HTTP/1.1\r\nContent-Length: " + value + "\r\n\r\n")), value);
+			assertEquals(400, statusOf(e), value);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package net.donotturnoff.jhttp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTest {
+	
+	private ExecutorService executor;
+	
+	@BeforeEach
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+	
+	private List<Future<String>> callConcurrently(SingleFlight<String, String> flight, int callers, SingleFlight.Loader<String> loader, CountDownLatch joined) {
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < callers; i++) {
+			results.add(executor.submit(() -> {
+				joined.countDown();
+				return flight.execute("key", loader);
+			}));
+		}
+		return results;
+	}
+	
+	private static void await(CountDownLatch latch) throws InterruptedIOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+	
+	@Test
+	public void sharesResultOfConcurrentCalls() throws Exception {
+		
+		/* The first caller's load is held open until every caller has started, so the others must join it rather than load for themselves. */
+		SingleFlight<String, String> flight = new SingleFlight<>(10000);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch joined = new CountDownLatch(8);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = callConcurrently(flight, 8, () -> {
+			loads.incrementAndGet();
+			await(release);
+			return "value";
+		}, joined);
+		
+		joined.await();
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<String> result: results) {
+			assertEquals("value", result.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+	}
+	
+	@Test
+	public void sharesFailureOfConcurrentCalls() throws Exception {
+		SingleFlight<String, String> flight = new SingleFlight<>(10000);
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch joined = new CountDownLatch(4);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Future<String>> results = callConcurrently(flight, 4, () -> {
+			loads.incrementAndGet();
+			await(release);
+			throw new FileNotFoundException("missing");
+		}, joined);
+		
+		joined.await();
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<String> result: results) {
+			ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+			assertInstanceOf(FileNotFoundException.class, e.getCause());
+			assertEquals("missing", e.getCause().getMessage());
+		}
+		assertEquals(1, loads.get());
+	}
+	
+	@Test
+	public void loadsAgainOnceCallHasFinished() throws IOException {
+		
+		/* Results aren't cached: a call after the last one has finished loads again, whether the last one succeeded or failed. */
+		SingleFlight<String, String> flight = new SingleFlight<>(10000);
+		AtomicInteger loads = new AtomicInteger();
+		assertEquals("1", flight.execute("key", () -> Integer.toString(loads.incrementAndGet())));
+		assertEquals("2", flight.execute("key", () -> Integer.toString(loads.incrementAndGet())));
+		assertThrows(IOException.class, () -> flight.execute("key", () -> {
+			throw new IOException("failed");
+		}));
+		assertEquals("3", flight.execute("key", () -> Integer.toString(loads.incrementAndGet())));
+		assertNull(flight.join("key"));
+	}
+	
+	@Test
+	public void keepsKeysSeparate() throws IOException {
+		
+		/* A call in flight for one key doesn't hold up another key. */
+		SingleFlight<String, String> flight = new SingleFlight<>(10000);
+		assertNull(flight.join("a"));
+		assertEquals("b", flight.execute("b", () -> "b"));
+		flight.finish("a", "a");
+	}
+	
+	@Test
+	public void loadsItselfAfterTimeout() throws Exception {
+		
+		/* A caller which waits longer than the timeout for a stuck call does the work itself, and the stuck call can still finish later. */
+		SingleFlight<String, String> flight = new SingleFlight<>(50);
+		assertNull(flight.join("key"));
+		long start = System.nanoTime();
+		assertEquals("own", flight.execute("key", () -> "own"));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		
+		CompletableFuture<String> stuck = flight.join("key");
+		assertNotNull(stuck);
+		assertThrows(TimeoutException.class, () -> flight.await(stuck));
+		flight.finish("key", "late");
+		assertEquals("late", flight.await(stuck));
+		assertNull(flight.join("key"));
+	}
+	
+	@Test
+	public void wrapsUncheckedFailures() {
+		SingleFlight<String, String> flight = new SingleFlight<>(10000);
+		CompletableFuture<String> call = new CompletableFuture<>();
+		call.completeExceptionally(new IllegalStateException("broken"));
+		IOException e = assertThrows(IOException.class, () -> flight.await(call));
+		assertInstanceOf(IllegalStateException.class, e.getCause());
+	}
+}